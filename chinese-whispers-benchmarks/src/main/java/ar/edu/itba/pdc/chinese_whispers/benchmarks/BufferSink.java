@@ -0,0 +1,76 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.BufferedOutputConsumer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BufferedOutputConsumer} that stores output in a single direct buffer (as the proxy's handlers do),
+ * discarding it once the buffer is full.
+ */
+/* package */ final class BufferSink implements BufferedOutputConsumer {
+
+    /**
+     * The buffer in which output is stored.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * Amount of bytes consumed by this sink.
+     */
+    private long amountOfBytes;
+
+
+    /* package */ BufferSink(int bufferSize) {
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.amountOfBytes = 0;
+    }
+
+    /**
+     * Returns the amount of bytes consumed by this sink.
+     *
+     * @return The amount of bytes.
+     */
+    /* package */ long getAmountOfBytes() {
+        return amountOfBytes + buffer.position();
+    }
+
+    @Override
+    public void consumeMessage(byte[] message) {
+        consumeMessage(message, 0, message.length);
+    }
+
+    @Override
+    public void consumeMessage(byte[] message, int offset, int length) {
+        // Copies data as handlers did before output was written straight into their buffers
+        int end = offset + length;
+        while (offset < end) {
+            int amount = Math.min(buffer.remaining(), end - offset);
+            buffer.put(message, offset, amount);
+            offset += amount;
+            if (!buffer.hasRemaining()) {
+                discard();
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getWritableBuffer(int minimumSpace) {
+        if (buffer.remaining() < minimumSpace) {
+            discard();
+        }
+        return buffer;
+    }
+
+    @Override
+    public void commitOutput() {
+        // Nothing to do
+    }
+
+    /**
+     * Discards the stored output, as if it was written into a channel.
+     */
+    private void discard() {
+        amountOfBytes += buffer.position();
+        buffer.clear();
+    }
+}
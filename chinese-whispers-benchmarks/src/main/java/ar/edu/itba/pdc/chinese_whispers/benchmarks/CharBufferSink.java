@@ -0,0 +1,32 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.CharacterSink;
+
+import java.nio.CharBuffer;
+
+/**
+ * A {@link CharacterSink} that stores characters in a {@link CharBuffer}.
+ */
+/* package */ final class CharBufferSink implements CharacterSink {
+
+    private final CharBuffer buffer;
+
+
+    /* package */ CharBufferSink(int capacity) {
+        this.buffer = CharBuffer.allocate(capacity);
+    }
+
+    /* package */ CharBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public void append(char[] characters, int offset, int length) {
+        buffer.put(characters, offset, length);
+    }
+
+    @Override
+    public void append(String string) {
+        buffer.put(string);
+    }
+}
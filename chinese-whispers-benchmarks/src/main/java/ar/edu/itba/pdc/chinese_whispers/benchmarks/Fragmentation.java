@@ -0,0 +1,52 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Ways in which benchmarked traffic is split into reads.
+ */
+public enum Fragmentation {
+
+    /**
+     * Each read holds exactly one message (e.g. one stanza), as when peers are slow enough to be read one at a time.
+     */
+    WHOLE {
+        @Override
+        /* package */ int[] split(int[] messagesEnds, Random random) {
+            return messagesEnds.clone();
+        }
+    },
+    /**
+     * Reads end at random byte offsets (even inside tags or multi-byte characters), as when traffic crosses
+     * TCP segments or fills the read buffer.
+     */
+    RANDOM {
+        @Override
+        /* package */ int[] split(int[] messagesEnds, Random random) {
+            int length = messagesEnds[messagesEnds.length - 1];
+            int[] ends = new int[length];
+            int amount = 0;
+            int position = 0;
+            while (position < length) {
+                position = Math.min(length, position + 1 + random.nextInt(MAX_RANDOM_READ_SIZE));
+                ends[amount++] = position;
+            }
+            return Arrays.copyOf(ends, amount);
+        }
+    };
+
+    /**
+     * The largest read produced by {@link #RANDOM} fragmentation (about a TCP segment).
+     */
+    private static final int MAX_RANDOM_READ_SIZE = 1460;
+
+    /**
+     * Splits traffic into reads.
+     *
+     * @param messagesEnds The positions at which each message of the traffic ends (the last one being its length).
+     * @param random       The random used to choose offsets (seeded, so runs are comparable).
+     * @return The positions at which each read ends (exclusive), in increasing order.
+     */
+    /* package */ abstract int[] split(int[] messagesEnds, Random random);
+}
@@ -0,0 +1,115 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.FrameTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building protocol frames (an error stream header with a new id, and a silenced message error) as strings
+ * and encoding them (as the proxy did before), against writing pre-encoded {@link FrameTemplate}s straight into a
+ * (direct) output buffer.
+ * Run with {@code -prof gc} to compare allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameTemplateBenchmark {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0' encoding='UTF-8'?>" +
+            "<stream:stream version='1.0' " +
+            "xmlns:stream='http://etherx.jabber.org/streams' " +
+            "xmlns='jabber:client' " +
+            "xmlns:xml='http://www.w3.org/XML/1998/namespace'";
+
+    private static final String POLICY_VIOLATION = "><error type='wait'><policy-violation " +
+            "xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></message>";
+
+    private static final FrameTemplate STREAM_HEADER_FRAME = FrameTemplate.compile(STREAM_HEADER + " id='{id}'>");
+
+    private static final FrameTemplate SILENCED_MESSAGE_ERROR_FRAME =
+            FrameTemplate.compile("<message{@from}{@to}{@id}>" + POLICY_VIOLATION.substring(1));
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(8 * 1024);
+
+    private final String to = "bob@localhost/desktop";
+
+    private final String from = "alice@localhost/phone";
+
+    private final String id = "purple3f5a1c2e";
+
+
+    @Benchmark
+    public ByteBuffer streamHeaderString() {
+        buffer.clear();
+        return buffer.put((STREAM_HEADER + " id='" + IdGenerator.generateId() + "'>").getBytes());
+    }
+
+    @Benchmark
+    public ByteBuffer streamHeaderFrame() {
+        buffer.clear();
+        STREAM_HEADER_FRAME.writeTo(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer silencedMessageErrorString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<message from='");
+        appendEscaped(builder, to);
+        builder.append("' to='");
+        appendEscaped(builder, from);
+        builder.append("' id='");
+        appendEscaped(builder, id);
+        builder.append("'").append(POLICY_VIOLATION);
+        buffer.clear();
+        return buffer.put(builder.toString().getBytes());
+    }
+
+    @Benchmark
+    public ByteBuffer silencedMessageErrorFrame() {
+        buffer.clear();
+        SILENCED_MESSAGE_ERROR_FRAME.writeTo(buffer, to, from, id);
+        return buffer;
+    }
+
+    /**
+     * Escapes attribute values as the silenced message error was built before frame templates.
+     */
+    private static void appendEscaped(StringBuilder builder, String value) {
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '\'':
+                    builder.append("&apos;");
+                    break;
+                case '\"':
+                    builder.append("&quot;");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+}
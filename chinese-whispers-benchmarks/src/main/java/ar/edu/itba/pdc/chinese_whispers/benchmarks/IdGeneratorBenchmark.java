@@ -0,0 +1,43 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures stream ids generation, both as strings and written into an array, from several threads at once
+ * (as selectors do). Run with {@code -prof gc} to check that writing ids into arrays allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class IdGeneratorBenchmark {
+
+    private final byte[] destination = new byte[IdGenerator.ID_LENGTH];
+
+
+    @Benchmark
+    public String string() {
+        return IdGenerator.generateId();
+    }
+
+    @Benchmark
+    public byte[] bytes() {
+        IdGenerator.generateId(destination, 0);
+        return destination;
+    }
+}
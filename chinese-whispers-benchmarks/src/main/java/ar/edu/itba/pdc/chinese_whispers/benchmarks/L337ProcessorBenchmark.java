@@ -0,0 +1,86 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the table-driven {@link L337Processor} (appending to a {@link StringBuilder} or to a character sink)
+ * against the previous per-character switch ({@link LegacyL337Processor}), for bodies of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class L337ProcessorBenchmark {
+
+    /**
+     * Size (in characters) of the processed body.
+     */
+    @Param({"16", "256", "4096", "65536"})
+    public int bodySize;
+
+    /**
+     * Says if L337 processing is enabled (otherwise, bodies are only escaped).
+     */
+    @Param({"true", "false"})
+    public boolean l337;
+
+    private char[] body;
+    private StringBuilder stringBuilder;
+    private CharBufferSink sink;
+    private L337Processor processor;
+    private LegacyL337Processor legacyProcessor;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Configurations.getInstance().setL337Processing(l337);
+        String alphabet = "Hello there, it's <a> cat & \"a\" dog. Ñandú 你好 ";
+        body = new char[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = alphabet.charAt(i % alphabet.length());
+        }
+        // Replacements take up to 6 characters
+        stringBuilder = new StringBuilder(bodySize * 6);
+        sink = new CharBufferSink(bodySize * 6);
+        processor = L337Processor.getInstance();
+        legacyProcessor = new LegacyL337Processor(Configurations.getInstance());
+    }
+
+    @Benchmark
+    public int legacy() {
+        stringBuilder.setLength(0);
+        legacyProcessor.processMessageBody(stringBuilder, body, true);
+        return stringBuilder.length();
+    }
+
+    @Benchmark
+    public int table() {
+        stringBuilder.setLength(0);
+        processor.processMessageBody(stringBuilder, body, 0, body.length, true);
+        return stringBuilder.length();
+    }
+
+    @Benchmark
+    public int tableToSink() {
+        sink.getBuffer().clear();
+        processor.processMessageBody(sink, body, 0, body.length, true);
+        return sink.getBuffer().position();
+    }
+}
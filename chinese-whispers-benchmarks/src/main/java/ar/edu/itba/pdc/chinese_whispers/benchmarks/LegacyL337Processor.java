@@ -0,0 +1,66 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+
+/**
+ * The L337 processing used by the proxy before it became table driven.
+ * It switches on every character, reading the configuration each time.
+ */
+/* package */ final class LegacyL337Processor {
+
+    private final Configurations configurations;
+
+
+    /* package */ LegacyL337Processor(Configurations configurations) {
+        this.configurations = configurations;
+    }
+
+    /* package */ void processMessageBody(StringBuilder stringBuilder, char[] message, boolean isInBodyTag) {
+        for (char c : message) {
+            switch (c) {
+                case 'A':
+                case 'a':
+                    stringBuilder.append((isInBodyTag && configurations.isProcessL337()) ? "4" : c);
+                    break;
+                case 'E':
+                case 'e':
+                    stringBuilder.append((isInBodyTag && configurations.isProcessL337()) ? "3" : c);
+                    break;
+                case 'I':
+                case 'i':
+                    stringBuilder.append((isInBodyTag && configurations.isProcessL337()) ? "1" : c);
+                    break;
+                case 'O':
+                case 'o':
+                    stringBuilder.append((isInBodyTag && configurations.isProcessL337()) ? "0" : c);
+                    break;
+                case 'C':
+                case 'c':
+                    stringBuilder.append((isInBodyTag && configurations.isProcessL337()) ? "&lt;" : c);
+                    break;
+                case 'T':
+                case 't':
+                    stringBuilder.append((isInBodyTag && configurations.isProcessL337()) ? "7" : c);
+                    break;
+                case '<':
+                    stringBuilder.append("&lt;");
+                    break;
+                case '>':
+                    stringBuilder.append("&gt;");
+                    break;
+                case '&':
+                    stringBuilder.append("&amp;");
+                    break;
+                case '\'':
+                    stringBuilder.append("&apos;");
+                    break;
+                case '\"':
+                    stringBuilder.append("&quot;");
+                    break;
+                default:
+                    stringBuilder.append(c);
+                    break;
+            }
+        }
+    }
+}
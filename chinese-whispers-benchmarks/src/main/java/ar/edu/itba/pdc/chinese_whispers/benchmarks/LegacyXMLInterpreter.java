@@ -0,0 +1,99 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.BaseXMLInterpreter;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * The re-serializer used by the proxy before output was written straight into the handlers' buffers.
+ * Processed data is built in a {@link StringBuilder}, which is then encoded into a new array and handed to the
+ * {@link OutputConsumer}. Silencing is left out, as it's not measured.
+ */
+/* package */ final class LegacyXMLInterpreter extends BaseXMLInterpreter {
+
+    private final ApplicationProcessor applicationProcessor;
+    private boolean isInBodyTag;
+
+
+    /* package */ LegacyXMLInterpreter(ApplicationProcessor applicationProcessor, OutputConsumer outputConsumer) {
+        super(outputConsumer);
+        this.applicationProcessor = applicationProcessor;
+    }
+
+    @Override
+    protected ParserResponse process() throws XMLStreamException {
+        if (!parser.hasNext()) {
+            return ParserResponse.EVERYTHING_NORMAL;
+        }
+        StringBuilder readXML = new StringBuilder();
+        while (parser.hasNext()) {
+            switch (next()) {
+                case AsyncXMLStreamReader.START_ELEMENT:
+                    if (parser.getLocalName().equals("body")) {
+                        isInBodyTag = true;
+                    }
+                    readXML.append("<");
+                    if (!parser.getName().getPrefix().isEmpty()) {
+                        appendEscapedCharacters(readXML, parser.getPrefix());
+                        readXML.append(":");
+                    }
+                    readXML.append(parser.getLocalName());
+                    int namespaceCount = parser.getNamespaceCount();
+                    if (namespaceCount > 0) {
+                        readXML.append(" ");
+                        for (int i = 0; i < namespaceCount; i++) {
+                            readXML.append("xmlns");
+                            if (!parser.getNamespacePrefix(i).isEmpty()) {
+                                readXML.append(":");
+                                appendEscapedCharacters(readXML, parser.getNamespacePrefix(i));
+                            }
+                            readXML.append("=\'");
+                            appendEscapedCharacters(readXML, parser.getNamespaceURI(i));
+                            readXML.append("\'").append(i < namespaceCount - 1 ? " " : "");
+                        }
+                    }
+                    int attrCount = parser.getAttributeCount();
+                    if (attrCount > 0) {
+                        readXML.append(" ");
+                        for (int i = 0; i < attrCount; i++) {
+                            if (!parser.getAttributePrefix(i).isEmpty()) {
+                                appendEscapedCharacters(readXML, parser.getAttributePrefix(i));
+                                readXML.append(":");
+                            }
+                            appendEscapedCharacters(readXML, parser.getAttributeLocalName(i));
+                            readXML.append("=\'");
+                            appendEscapedCharacters(readXML, parser.getAttributeValue(i));
+                            readXML.append("\'").append(i < attrCount - 1 ? " " : "");
+                        }
+                    }
+                    readXML.append(">");
+                    break;
+                case AsyncXMLStreamReader.CHARACTERS:
+                    applicationProcessor.processMessageBody(readXML, parser.getText().toCharArray(), isInBodyTag);
+                    break;
+                case AsyncXMLStreamReader.END_ELEMENT:
+                    readXML.append("</");
+                    if (!parser.getName().getPrefix().isEmpty()) {
+                        readXML.append(parser.getPrefix()).append(":");
+                    }
+                    readXML.append(parser.getLocalName());
+                    readXML.append(">");
+                    if (parser.getLocalName().equals("body")) {
+                        isInBodyTag = false;
+                    }
+                    break;
+                case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                    outputConsumer.consumeMessage(readXML.toString().getBytes());
+                    return ParserResponse.EVENT_INCOMPLETE;
+                case -1:
+                    return ParserResponse.XML_ERROR;
+            }
+        }
+        outputConsumer.consumeMessage(readXML.toString().getBytes());
+        return ParserResponse.EVERYTHING_NORMAL;
+    }
+}
@@ -0,0 +1,149 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.BaseNegotiationProcessor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ClientNegotiationProcessor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ServerNegotiationProcessor;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole negotiations (i.e. logins) from the first byte of the stream till authentication ends:
+ * the one performed with clients ({@link ServerNegotiationProcessor}, which answers the stream header with the
+ * features and receives the plain authentication) and the one performed with origin servers
+ * ({@link ClientNegotiationProcessor}, which sends the stream header, receives the features, sends the
+ * authentication and receives the success).
+ * <p>
+ * The score is given in negotiations per second, and the {@code bytes} secondary result in received bytes per
+ * second. Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is then the amount of bytes allocated per
+ * negotiation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NegotiationBenchmark {
+
+    private static final String AUTHENTICATION = Base64.getEncoder()
+            .encodeToString("\0alice\0secret".getBytes(StandardCharsets.UTF_8));
+
+    private static final String CLIENT_TRAFFIC = "<?xml version='1.0'?><stream:stream to='localhost' "
+            + "xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0' xml:lang='en'>"
+            + "<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>"
+            + AUTHENTICATION
+            + "</auth>";
+
+    private static final String ORIGIN_TRAFFIC = "<?xml version='1.0'?><stream:stream "
+            + "xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client' id='o1' from='localhost' "
+            + "version='1.0' xml:lang='en'><stream:features>"
+            + "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
+            + "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>SCRAM-SHA-1</mechanism>"
+            + "<mechanism>DIGEST-MD5</mechanism><mechanism>PLAIN</mechanism></mechanisms>"
+            + "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' node='http://www.process-one.net/en/ejabberd/' "
+            + "ver='k4nbPM9O5DHYSI0S3mz6fMNCKls='/></stream:features>"
+            + "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>";
+
+    /**
+     * Seed used to fragment traffic, so all runs feed the same reads.
+     */
+    private static final long SEED = 0x5eed;
+
+    /**
+     * How traffic is split into reads.
+     */
+    @Param({"WHOLE", "RANDOM"})
+    public Fragmentation fragmentation;
+
+    /**
+     * Throughput in bytes, reported as a secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Traffic {
+
+        /**
+         * Amount of fed bytes.
+         */
+        public long bytes;
+    }
+
+    private byte[] clientTraffic;
+    private int[] clientReadsEnds;
+    private byte[] originTraffic;
+    private int[] originReadsEnds;
+    private Map<String, String> initialParameters;
+    private BufferSink sink;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        clientTraffic = CLIENT_TRAFFIC.getBytes(StandardCharsets.UTF_8);
+        clientReadsEnds = fragmentation.split(new int[]{CLIENT_TRAFFIC.indexOf("<auth"), clientTraffic.length},
+                new Random(SEED));
+        originTraffic = ORIGIN_TRAFFIC.getBytes(StandardCharsets.UTF_8);
+        originReadsEnds = fragmentation.split(new int[]{ORIGIN_TRAFFIC.indexOf("<success"), originTraffic.length},
+                new Random(SEED));
+        initialParameters = new HashMap<>();
+        initialParameters.put("to", "localhost");
+        initialParameters.put("version", "1.0");
+        initialParameters.put("xml:lang", "en");
+        sink = new BufferSink(8 * 1024);
+    }
+
+    @Benchmark
+    public long server(Traffic traffic) {
+        ServerNegotiationProcessor processor = new ServerNegotiationProcessor(sink);
+        negotiate(processor, clientTraffic, clientReadsEnds);
+        traffic.bytes += clientTraffic.length;
+        return sink.getAmountOfBytes();
+    }
+
+    @Benchmark
+    public long client(Traffic traffic) {
+        ClientNegotiationProcessor processor = new ClientNegotiationProcessor(sink, AUTHENTICATION,
+                initialParameters);
+        processor.sendInitialMessage();
+        negotiate(processor, originTraffic, originReadsEnds);
+        traffic.bytes += originTraffic.length;
+        return sink.getAmountOfBytes();
+    }
+
+    /**
+     * Feeds the given traffic one read at a time, checking that the negotiation ends with the last one.
+     */
+    private static void negotiate(BaseNegotiationProcessor processor, byte[] traffic, int[] readsEnds) {
+        int start = 0;
+        ParserResponse response = null;
+        for (int end : readsEnds) {
+            response = processor.feed(traffic, start, end - start);
+            if (response != ParserResponse.EVERYTHING_NORMAL && response != ParserResponse.EVENT_INCOMPLETE
+                    && !(response == ParserResponse.NEGOTIATION_END && end == traffic.length)) {
+                throw new IllegalStateException("Negotiation failed with " + response);
+            }
+            start = end;
+        }
+        if (response != ParserResponse.NEGOTIATION_END) {
+            throw new IllegalStateException("Negotiation did not end (last response was " + response + ")");
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.XMLInterpreter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link XMLInterpreter#feed(byte[], int, int)} over realistic client traffic, both while messages are
+ * L337ed (so every stanza goes through the parser and is re-serialized) and while they are forwarded untouched
+ * (so the interpreter runs in passthrough mode).
+ * <p>
+ * Each invocation feeds a batch of {@link #STANZAS_PER_BATCH} stanzas of an already opened stream, so the score is
+ * given in stanzas per second, and the {@code bytes} secondary result in bytes per second.
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is then the amount of bytes allocated per stanza.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLInterpreterBenchmark {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream "
+            + "xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client' to='localhost' version='1.0'>";
+
+    /**
+     * Amount of stanzas fed in each invocation.
+     */
+    private static final int STANZAS_PER_BATCH = 100;
+
+    /**
+     * Seed used to fragment traffic, so all runs feed the same reads.
+     */
+    private static final long SEED = 0x5eed;
+
+    /**
+     * Kinds of traffic that can be fed.
+     */
+    public enum Corpus {
+        /**
+         * Short one-to-one chat messages, with chat state notifications.
+         */
+        CHAT {
+            @Override
+            /* package */ String stanza(int index) {
+                String[] bodies = {"hi!", "are you there?", "sure, see you at 5 :)", "¿Dónde estás? 你好",
+                        "ok & thanks <3"};
+                return "<message to='bob@localhost' from='alice@localhost/phone' id='m" + index + "' type='chat'>"
+                        + "<body>" + escape(bodies[index % bodies.length]) + "</body>"
+                        + "<active xmlns='http://jabber.org/protocol/chatstates'/></message>";
+            }
+        },
+        /**
+         * Presence broadcasts of a large roster, with status and entity capabilities.
+         */
+        PRESENCE_FLOOD {
+            @Override
+            /* package */ String stanza(int index) {
+                return "<presence from='contact" + index + "@localhost/desktop' to='alice@localhost/phone'>"
+                        + "<show>" + (index % 3 == 0 ? "away" : "chat") + "</show>"
+                        + "<status>Working from home</status><priority>5</priority>"
+                        + "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' "
+                        + "node='http://psi-im.org' ver='q07IKJEyjvHSyhy//CH0CxmKi8w='/></presence>";
+            }
+        },
+        /**
+         * Messages carrying large bodies (e.g. pasted logs).
+         */
+        LARGE_BODY {
+            @Override
+            /* package */ String stanza(int index) {
+                String alphabet = "Lorem ipsum dolor sit amet, <consectetur> & adipiscing elit. Ñandú 你好\n";
+                StringBuilder body = new StringBuilder(LARGE_BODY_SIZE);
+                while (body.length() < LARGE_BODY_SIZE) {
+                    body.append(alphabet.charAt((body.length() + index) % alphabet.length()));
+                }
+                return "<message to='bob@localhost' from='alice@localhost/phone' id='l" + index + "' type='chat'>"
+                        + "<body>" + escape(body.toString()) + "</body></message>";
+            }
+        },
+        /**
+         * Results of iq queries holding deeply nested payloads (as some pubsub and private storage results do).
+         */
+        NESTED_IQ {
+            @Override
+            /* package */ String stanza(int index) {
+                StringBuilder stanza = new StringBuilder();
+                stanza.append("<iq type='result' id='q").append(index)
+                        .append("' to='alice@localhost/phone' from='pubsub.localhost'>")
+                        .append("<pubsub xmlns='http://jabber.org/protocol/pubsub'><items node='storage'>");
+                for (int i = 0; i < NESTED_IQ_DEPTH; i++) {
+                    stanza.append("<item id='").append(i).append("' level='").append(i).append("'>");
+                }
+                stanza.append("<value>payload ").append(index).append("</value>");
+                for (int i = 0; i < NESTED_IQ_DEPTH; i++) {
+                    stanza.append("</item>");
+                }
+                return stanza.append("</items></pubsub></iq>").toString();
+            }
+        };
+
+        /**
+         * Builds a stanza of this corpus.
+         *
+         * @param index The position of the stanza in the batch (used to vary its content).
+         * @return The stanza.
+         */
+        /* package */ abstract String stanza(int index);
+    }
+
+    /**
+     * Size (in characters) of the {@link Corpus#LARGE_BODY} bodies.
+     */
+    private static final int LARGE_BODY_SIZE = 8 * 1024;
+
+    /**
+     * Amount of nested elements inside the {@link Corpus#NESTED_IQ} results.
+     */
+    private static final int NESTED_IQ_DEPTH = 64;
+
+    /**
+     * The fed traffic.
+     */
+    @Param({"CHAT", "PRESENCE_FLOOD", "LARGE_BODY", "NESTED_IQ"})
+    public Corpus corpus;
+
+    /**
+     * How traffic is split into reads.
+     */
+    @Param({"WHOLE", "RANDOM"})
+    public Fragmentation fragmentation;
+
+    /**
+     * Says if L337 processing is enabled (otherwise, the interpreter forwards stanzas in passthrough mode).
+     */
+    @Param({"false", "true"})
+    public boolean l337;
+
+    /**
+     * Throughput in bytes, reported as a secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Traffic {
+
+        /**
+         * Amount of fed bytes.
+         */
+        public long bytes;
+    }
+
+    private byte[] batch;
+    private int[] readsEnds;
+    private BufferSink sink;
+    private XMLInterpreter interpreter;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Configurations.getInstance().setL337Processing(l337);
+        ByteArrayOutputStream traffic = new ByteArrayOutputStream();
+        int[] stanzasEnds = new int[STANZAS_PER_BATCH];
+        for (int i = 0; i < STANZAS_PER_BATCH; i++) {
+            byte[] stanza = corpus.stanza(i).getBytes(StandardCharsets.UTF_8);
+            traffic.write(stanza, 0, stanza.length);
+            stanzasEnds[i] = traffic.size();
+        }
+        batch = traffic.toByteArray();
+        readsEnds = fragmentation.split(stanzasEnds, new Random(SEED));
+
+        sink = new BufferSink(64 * 1024);
+        interpreter = new XMLInterpreter(L337Processor.getInstance(), sink, null);
+        byte[] header = STREAM_HEADER.getBytes(StandardCharsets.UTF_8);
+        feed(interpreter, header, 0, header.length);
+
+        // Checks that the corpus is parsed as expected before measuring it
+        feedBatch();
+        int stanzas = interpreter.takeCompletedStanzas();
+        if (stanzas != STANZAS_PER_BATCH) {
+            throw new IllegalStateException("Expected " + STANZAS_PER_BATCH + " stanzas, but got " + stanzas);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STANZAS_PER_BATCH)
+    public long feed(Traffic traffic) {
+        feedBatch();
+        interpreter.takeCompletedStanzas(); // As the handler does, so the counter is reset
+        traffic.bytes += batch.length;
+        return sink.getAmountOfBytes();
+    }
+
+    /**
+     * Feeds the whole batch, one read at a time.
+     */
+    private void feedBatch() {
+        int start = 0;
+        for (int end : readsEnds) {
+            feed(interpreter, batch, start, end - start);
+            start = end;
+        }
+    }
+
+    private static void feed(XMLInterpreter interpreter, byte[] data, int offset, int length) {
+        ParserResponse response = interpreter.feed(data, offset, length);
+        if (response != ParserResponse.EVERYTHING_NORMAL && response != ParserResponse.EVENT_INCOMPLETE) {
+            throw new IllegalStateException("Interpreter failed with " + response);
+        }
+    }
+
+    /**
+     * Escapes the XML special characters that can appear in the corpora texts.
+     *
+     * @param text The text to escape.
+     * @return The escaped text.
+     */
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
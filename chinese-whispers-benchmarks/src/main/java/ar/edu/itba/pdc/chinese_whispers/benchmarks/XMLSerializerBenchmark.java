@@ -0,0 +1,102 @@
+package ar.edu.itba.pdc.chinese_whispers.benchmarks;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.BaseXMLInterpreter;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.XMLInterpreter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the XML re-serializer that writes UTF-8 straight into output buffers ({@link XMLInterpreter}) against
+ * the previous one, which built a string that was then encoded and copied into the buffers
+ * ({@link LegacyXMLInterpreter}).
+ * <p>
+ * Each invocation feeds a whole message stanza while L337 processing is enabled, so every stanza is re-serialized.
+ * Run with {@code -prof gc} to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLSerializerBenchmark {
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns:stream='http://etherx.jabber.org/streams' "
+            + "xmlns='jabber:client' to='localhost' version='1.0'>";
+
+    /**
+     * Size (in characters) of the messages' bodies.
+     */
+    @Param({"16", "1024", "16384"})
+    public int bodySize;
+
+    /**
+     * Says if bodies contain non-ASCII characters.
+     */
+    @Param({"false", "true"})
+    public boolean unicode;
+
+    private byte[] stanza;
+    private BufferSink writerSink;
+    private BufferSink legacySink;
+    private XMLInterpreter writerInterpreter;
+    private LegacyXMLInterpreter legacyInterpreter;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Configurations.getInstance().setL337Processing(true);
+        StringBuilder body = new StringBuilder(bodySize);
+        String alphabet = unicode ? "Hola, ¿cómo estás? 你好 " : "Hello there, it's a cat & a dog ";
+        while (body.length() < bodySize) {
+            body.append(alphabet.charAt(body.length() % alphabet.length()));
+        }
+        String escapedBody = body.toString().replace("&", "&amp;");
+        stanza = ("<message to='bob@localhost' from='alice@localhost/res' id='m1' type='chat'><body>" + escapedBody
+                + "</body><active xmlns='http://jabber.org/protocol/chatstates'/></message>")
+                .getBytes(StandardCharsets.UTF_8);
+
+        writerSink = new BufferSink(8 * 1024);
+        legacySink = new BufferSink(8 * 1024);
+        writerInterpreter = new XMLInterpreter(L337Processor.getInstance(), writerSink, null);
+        legacyInterpreter = new LegacyXMLInterpreter(L337Processor.getInstance(), legacySink);
+        byte[] header = STREAM_HEADER.getBytes(StandardCharsets.UTF_8);
+        feed(writerInterpreter, header);
+        feed(legacyInterpreter, header);
+    }
+
+    @Benchmark
+    public long writer() {
+        feed(writerInterpreter, stanza);
+        return writerSink.getAmountOfBytes();
+    }
+
+    @Benchmark
+    public long legacy() {
+        feed(legacyInterpreter, stanza);
+        return legacySink.getAmountOfBytes();
+    }
+
+    private static void feed(BaseXMLInterpreter interpreter, byte[] data) {
+        ParserResponse response = interpreter.feed(data, data.length);
+        if (response != ParserResponse.EVERYTHING_NORMAL && response != ParserResponse.EVENT_INCOMPLETE) {
+            throw new IllegalStateException("Interpreter failed with " + response);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import ar.edu.itba.pdc.chinese_whispers.application.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Drives the simulated XMPP clients (all of them from the calling thread, using a single selector), in three
+ * phases: logging in (i.e. performing the whole negotiation, including resource binding), exchanging stanzas
+ * according to a {@link MessageMix}, and logging out.
+ * <p>
+ * Stanzas carry their sending time in their id, so their end-to-end latency (client to proxy to origin, and back
+ * through the proxy to the recipient client) is measured when they are received.
+ */
+/* package */ final class ClientDriver implements Closeable {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream to='"
+            + FakeOriginServer.DOMAIN + "' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' "
+            + "version='1.0'>";
+
+    private static final String BIND_REQUEST = "<iq type='set' id='bind'>"
+            + "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><resource>load</resource></bind></iq>";
+
+    private static final String CLOSE_MESSAGE = "</stream:stream>";
+
+    /**
+     * The steps of a simulated client's session.
+     */
+    private enum State {
+        CONNECTING,
+        AWAITING_FEATURES,
+        AWAITING_SUCCESS,
+        AWAITING_BIND_FEATURES,
+        AWAITING_BIND,
+        LOGGED_IN,
+        CLOSING,
+        CLOSED
+    }
+
+    private final int proxyPort;
+    private final int messagesPerClient;
+    private final int window;
+    private final MessageMix mix;
+    private final String body;
+    private final String largeBody;
+    private final Random random;
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    private final List<SimulatedClient> clients;
+
+    /**
+     * Time taken by each login (from connecting till resource is bound).
+     */
+    private final LatencyHistogram loginLatency;
+    /**
+     * End-to-end latency of each kind of stanza.
+     */
+    private final Map<MessageMix.Kind, LatencyHistogram> stanzaLatencies;
+
+    private int loggedIn;
+    private int failedLogins;
+    private int closed;
+    private long receivedStanzas;
+    private long sentBytes;
+
+
+    /**
+     * Constructor.
+     *
+     * @param proxyPort         The port in which the proxy listens (on loopback).
+     * @param amountOfClients   The amount of clients to simulate.
+     * @param messagesPerClient The amount of stanzas each client sends once logged in.
+     * @param window            The maximum amount of stanzas each client has in flight.
+     * @param mix               The proportions in which each kind of stanza is sent.
+     * @param bodySize          The size (in characters) of chat messages' bodies.
+     * @param largeBodySize     The size (in characters) of large messages' bodies.
+     * @param seed              Seed for choosing stanzas, so runs are comparable.
+     * @throws IOException If the selector couldn't be opened.
+     */
+    /* package */ ClientDriver(int proxyPort, int amountOfClients, int messagesPerClient, int window,
+                               MessageMix mix, int bodySize, int largeBodySize, long seed) throws IOException {
+        if (amountOfClients <= 0 || messagesPerClient < 0 || window <= 0 || bodySize < 0 || largeBodySize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.proxyPort = proxyPort;
+        this.messagesPerClient = messagesPerClient;
+        this.window = window;
+        this.mix = mix;
+        this.body = text(bodySize);
+        this.largeBody = text(largeBodySize);
+        this.random = new Random(seed);
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        this.clients = new ArrayList<>(amountOfClients);
+        for (int i = 0; i < amountOfClients; i++) {
+            clients.add(new SimulatedClient(i));
+        }
+        this.loginLatency = new LatencyHistogram();
+        this.stanzaLatencies = new EnumMap<>(MessageMix.Kind.class);
+        for (MessageMix.Kind kind : MessageMix.Kind.values()) {
+            stanzaLatencies.put(kind, new LatencyHistogram());
+        }
+        this.loggedIn = 0;
+        this.failedLogins = 0;
+        this.closed = 0;
+        this.receivedStanzas = 0;
+        this.sentBytes = 0;
+    }
+
+    /**
+     * Logs in all clients, keeping at most the given amount of negotiations in progress.
+     *
+     * @param concurrency The maximum amount of clients negotiating at the same time.
+     * @param deadline    Time (as given by {@link System#nanoTime()}) at which the phase is abandoned.
+     * @return {@code true} if the phase finished (even if some logins failed), or {@code false} if it timed out.
+     * @throws IOException If an I/O error occurs.
+     */
+    /* package */ boolean login(int concurrency, long deadline) throws IOException {
+        int started = 0;
+        while (loggedIn + failedLogins < clients.size()) {
+            while (started < clients.size() && started - loggedIn - failedLogins < concurrency) {
+                clients.get(started++).connect();
+            }
+            if (!select(deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes every logged in client send its stanzas, till all of them are received.
+     *
+     * @param deadline Time (as given by {@link System#nanoTime()}) at which the phase is abandoned.
+     * @return {@code true} if the phase finished, or {@code false} if it timed out (or connections were lost).
+     * @throws IOException If an I/O error occurs.
+     */
+    /* package */ boolean exchange(long deadline) throws IOException {
+        long expected = 0;
+        for (SimulatedClient client : clients) {
+            if (client.state == State.LOGGED_IN) {
+                expected += messagesPerClient;
+                client.sendStanzas();
+            }
+        }
+        while (receivedStanzas < expected) {
+            if (!select(deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the streams of all clients, waiting for the proxy to close them too.
+     *
+     * @param deadline Time (as given by {@link System#nanoTime()}) at which the phase is abandoned.
+     * @return {@code true} if the phase finished, or {@code false} if it timed out.
+     * @throws IOException If an I/O error occurs.
+     */
+    /* package */ boolean logout(long deadline) throws IOException {
+        for (SimulatedClient client : clients) {
+            if (client.state == State.LOGGED_IN) {
+                client.state = State.CLOSING;
+                client.send(CLOSE_MESSAGE);
+            }
+        }
+        while (closed < clients.size()) {
+            if (!select(deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Performs a select operation, handling selected connections.
+     *
+     * @param deadline Time (as given by {@link System#nanoTime()}) at which selection is abandoned.
+     * @return {@code true} if the deadline was not reached, or {@code false} otherwise.
+     * @throws IOException If an I/O error occurs.
+     */
+    private boolean select(long deadline) throws IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        selector.select(Math.max(1, remaining / 1_000_000));
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SimulatedClient client = (SimulatedClient) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isConnectable()) {
+                client.finishConnect();
+                continue;
+            }
+            if (key.isReadable()) {
+                client.handleRead(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                client.handleWrite();
+            }
+        }
+        return true;
+    }
+
+    /* package */ int getLoggedIn() {
+        return loggedIn;
+    }
+
+    /* package */ int getFailedLogins() {
+        return failedLogins;
+    }
+
+    /* package */ long getReceivedStanzas() {
+        return receivedStanzas;
+    }
+
+    /* package */ long getSentBytes() {
+        return sentBytes;
+    }
+
+    /* package */ LatencyHistogram getLoginLatency() {
+        return loginLatency;
+    }
+
+    /* package */ Map<MessageMix.Kind, LatencyHistogram> getStanzaLatencies() {
+        return stanzaLatencies;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Builds a body text of the given size (including characters that must be escaped, and non-ASCII ones).
+     */
+    private static String text(int size) {
+        String alphabet = "Hello there, it's a cat & a dog. Ñandú 你好 ";
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append(alphabet.charAt(text.length() % alphabet.length()));
+        }
+        return text.toString().replace("&", "&amp;");
+    }
+
+
+    /**
+     * A simulated client, logging in as {@code load<index>}.
+     */
+    private final class SimulatedClient extends LoopbackConnection {
+
+        private final int index;
+        private final String user;
+        private State state;
+        /**
+         * Time at which connection started.
+         */
+        private long connectionStartedAt;
+        /**
+         * Amount of stanzas sent.
+         */
+        private int sent;
+        /**
+         * Amount of sent stanzas that were not received yet.
+         */
+        private int inFlight;
+
+
+        private SimulatedClient(int index) throws IOException {
+            super(SocketChannel.open());
+            this.index = index;
+            this.user = "load" + index;
+            this.state = State.CONNECTING;
+            this.sent = 0;
+            this.inFlight = 0;
+        }
+
+        private void connect() throws IOException {
+            connectionStartedAt = System.nanoTime();
+            SocketChannel channel = getChannel();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            setKey(key);
+            if (channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort))) {
+                connected(key);
+            }
+        }
+
+        private void finishConnect() {
+            try {
+                if (!getChannel().finishConnect()) {
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            connected(getChannel().keyFor(selector));
+        }
+
+        private void connected(SelectionKey key) {
+            key.interestOps(SelectionKey.OP_READ);
+            state = State.AWAITING_FEATURES;
+            send(STREAM_HEADER);
+        }
+
+        @Override
+        /* package */ void send(String data) {
+            byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            sentBytes += bytes.length;
+            send(bytes);
+        }
+
+        @Override
+        protected void handleToken(String token) {
+            if (token.startsWith("</stream:stream")) {
+                close();
+                return;
+            }
+            switch (state) {
+                case AWAITING_FEATURES:
+                    if (token.startsWith("<stream:features")) {
+                        state = State.AWAITING_SUCCESS;
+                        send("<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>"
+                                + Base64.getEncoder().encodeToString(("\0" + user + "\0secret")
+                                .getBytes(StandardCharsets.UTF_8)) + "</auth>");
+                    }
+                    break;
+                case AWAITING_SUCCESS:
+                    if (token.startsWith("<success")) {
+                        state = State.AWAITING_BIND_FEATURES;
+                        send(STREAM_HEADER);
+                    } else if (token.startsWith("<failure") || token.startsWith("<stream:error")) {
+                        close();
+                    }
+                    break;
+                case AWAITING_BIND_FEATURES:
+                    if (token.startsWith("<stream:features")) {
+                        state = State.AWAITING_BIND;
+                        send(BIND_REQUEST);
+                    }
+                    break;
+                case AWAITING_BIND:
+                    if (token.startsWith("<iq")) {
+                        state = State.LOGGED_IN;
+                        loggedIn++;
+                        loginLatency.record(System.nanoTime() - connectionStartedAt);
+                    }
+                    break;
+                case LOGGED_IN:
+                case CLOSING:
+                    if (token.startsWith("<message") || token.startsWith("<presence")) {
+                        received(token);
+                    }
+                    break;
+                default:
+                    // Ignored
+            }
+        }
+
+        /**
+         * Sends stanzas till the window is full (or all stanzas were sent).
+         */
+        private void sendStanzas() {
+            while (inFlight < window && sent < messagesPerClient && state == State.LOGGED_IN) {
+                MessageMix.Kind kind = mix.pick(random);
+                String id = kind.ordinal() + "." + index + "." + System.nanoTime();
+                String peer = "load" + ((index + 1) % clients.size()) + "@" + FakeOriginServer.DOMAIN;
+                switch (kind) {
+                    case CHAT:
+                        send("<message to='" + peer + "' id='" + id + "' type='chat'><body>" + body
+                                + "</body><active xmlns='http://jabber.org/protocol/chatstates'/></message>");
+                        break;
+                    case LARGE:
+                        send("<message to='" + peer + "' id='" + id + "' type='chat'><body>" + largeBody
+                                + "</body></message>");
+                        break;
+                    case PRESENCE:
+                        send("<presence id='" + id + "'><show>chat</show><status>Load testing</status>"
+                                + "</presence>");
+                        break;
+                }
+                sent++;
+                inFlight++;
+            }
+        }
+
+        /**
+         * Records the latency of a received stanza, letting its sender send more stanzas.
+         */
+        private void received(String token) {
+            String id = StanzaReader.attribute(token, "id");
+            String[] parts = id == null ? new String[0] : id.split("\\.");
+            if (parts.length != 3) {
+                return; // Not sent by a simulated client
+            }
+            long now = System.nanoTime();
+            MessageMix.Kind kind = MessageMix.Kind.values()[Integer.parseInt(parts[0])];
+            stanzaLatencies.get(kind).record(now - Long.parseLong(parts[2]));
+            receivedStanzas++;
+            SimulatedClient sender = clients.get(Integer.parseInt(parts[1]));
+            sender.inFlight--;
+            sender.sendStanzas();
+        }
+
+        @Override
+        protected void handleClose() {
+            if (state.ordinal() < State.LOGGED_IN.ordinal()) {
+                failedLogins++;
+            }
+            state = State.CLOSED;
+            closed++;
+        }
+    }
+}
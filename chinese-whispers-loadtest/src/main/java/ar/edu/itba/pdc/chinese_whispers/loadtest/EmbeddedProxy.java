@@ -0,0 +1,95 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Main;
+import ch.qos.logback.classic.Level;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the proxy inside the load testing process, started through {@link Main} (as it is deployed) on ephemeral
+ * ports, with a loopback origin server as its default one.
+ */
+/* package */ final class EmbeddedProxy {
+
+    /**
+     * Prefixes of the names of the threads that run the proxy.
+     */
+    private static final String[] PROXY_THREADS = {"proxy", "reactor-", "event-loop-watchdog", "name-resolver-"};
+
+    private static final long PROXY_START_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+
+    private EmbeddedProxy() {
+    }
+
+    /**
+     * Starts the proxy in a new thread, waiting till it accepts connections.
+     *
+     * @param originPort The port of the default origin server (on loopback).
+     * @param reactors   The amount of worker selectors.
+     * @return The port in which the proxy accepts XMPP connections.
+     * @throws IOException           If no free ports were found.
+     * @throws IllegalStateException If the proxy didn't start.
+     */
+    /* package */ static int start(int originPort, int reactors) throws IOException, InterruptedException {
+        // The proxy logs each connection, which would be measured too
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                .setLevel(Level.WARN);
+
+        int xmppPort = freePort();
+        int adminPort = freePort();
+        String[] args = {String.valueOf(xmppPort), String.valueOf(adminPort),
+                InetAddress.getLoopbackAddress().getHostAddress(), String.valueOf(originPort),
+                String.valueOf(reactors)};
+        Thread proxyThread = new Thread(() -> Main.main(args), "proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+
+        long deadline = System.nanoTime() + PROXY_START_TIMEOUT;
+        while (System.nanoTime() < deadline && proxyThread.isAlive()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), xmppPort), 100);
+                return xmppPort;
+            } catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+        throw new IllegalStateException("The proxy didn't start.");
+    }
+
+    /**
+     * Returns an ephemeral port that is free (at least right now).
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns the CPU time used so far by the proxy's threads.
+     *
+     * @return The CPU time (in nanoseconds).
+     */
+    /* package */ static long getCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long time = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            for (String prefix : PROXY_THREADS) {
+                if (thread.getName().startsWith(prefix)) {
+                    time += Math.max(0, threads.getThreadCpuTime(thread.getId()));
+                    break;
+                }
+            }
+        }
+        return time;
+    }
+}
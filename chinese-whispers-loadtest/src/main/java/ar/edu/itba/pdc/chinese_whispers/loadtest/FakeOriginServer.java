@@ -0,0 +1,254 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A minimal in-process XMPP server, listening on loopback, which speaks just enough of the protocol to satisfy the
+ * proxy's negotiation with origin servers and the simulated clients: it offers the PLAIN mechanism, accepts any
+ * credentials, offers and performs resource binding, and then routes messages to the connection of the user they
+ * are addressed to (echoing presences to their sender).
+ * <p>
+ * All connections are handled by a single thread, so the server costs little compared to the proxy.
+ */
+/* package */ final class FakeOriginServer implements Runnable, Closeable {
+
+    /**
+     * The domain served by this server.
+     */
+    /* package */ static final String DOMAIN = "localhost";
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream "
+            + "xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client' from='" + DOMAIN + "' "
+            + "version='1.0' id='";
+
+    private static final String AUTH_FEATURES = "<stream:features>"
+            + "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms>"
+            + "</stream:features>";
+
+    private static final String BIND_FEATURES = "<stream:features>"
+            + "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/></stream:features>";
+
+    private static final String SUCCESS = "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>";
+
+    private static final String FAILURE = "<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><not-authorized/>"
+            + "</failure>";
+
+    private static final String CLOSE_MESSAGE = "</stream:stream>";
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    /**
+     * Bound connections, by the bare JID of their users.
+     */
+    private final Map<String, OriginConnection> connections;
+    /**
+     * Buffer in which all connections read data.
+     */
+    private final ByteBuffer readBuffer;
+    /**
+     * Generates the streams ids.
+     */
+    private long nextStreamId;
+
+
+    /**
+     * Opens the server, binding an ephemeral loopback port.
+     *
+     * @throws IOException If the server couldn't be opened.
+     */
+    /* package */ FakeOriginServer() throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.connections = new HashMap<>();
+        this.readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        this.nextStreamId = 0;
+    }
+
+    /**
+     * Returns the port in which this server listens.
+     *
+     * @return The port.
+     */
+    /* package */ int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    OriginConnection connection = (OriginConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.handleRead(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // The server was closed
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        OriginConnection connection = new OriginConnection(channel);
+        connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        serverChannel.close();
+    }
+
+
+    /**
+     * The negotiation steps of an origin connection.
+     */
+    private enum State {
+        AWAITING_STREAM,
+        AWAITING_AUTH,
+        AWAITING_RESTART,
+        BOUND
+    }
+
+    /**
+     * A connection accepted by the origin server (i.e. established by the proxy on behalf of a client).
+     */
+    private final class OriginConnection extends LoopbackConnection {
+
+        private State state;
+        /**
+         * The bare JID of the authenticated user ({@code null} till authentication).
+         */
+        private String jid;
+
+
+        private OriginConnection(SocketChannel channel) {
+            super(channel);
+            this.state = State.AWAITING_STREAM;
+            this.jid = null;
+        }
+
+        @Override
+        protected void handleToken(String token) {
+            if (token.startsWith("<?")) {
+                return;
+            }
+            if (token.startsWith("<stream:stream")) {
+                send(STREAM_HEADER + (++nextStreamId) + "'>"
+                        + (state == State.AWAITING_STREAM ? AUTH_FEATURES : BIND_FEATURES));
+                state = state == State.AWAITING_STREAM ? State.AWAITING_AUTH : State.BOUND;
+                return;
+            }
+            if (token.startsWith("</stream:stream")) {
+                send(CLOSE_MESSAGE);
+                closeAfterWriting();
+                return;
+            }
+            switch (state) {
+                case AWAITING_AUTH:
+                    authenticate(token);
+                    break;
+                case BOUND:
+                    route(token);
+                    break;
+                default:
+                    // Ignored
+            }
+        }
+
+        /**
+         * Accepts any PLAIN authentication, remembering the user.
+         */
+        private void authenticate(String token) {
+            if (!token.startsWith("<auth")) {
+                return;
+            }
+            String[] credentials;
+            try {
+                String encoded = token.substring(token.indexOf('>') + 1, token.lastIndexOf("</auth>"));
+                credentials = new String(Base64.getDecoder().decode(encoded.trim()), StandardCharsets.UTF_8)
+                        .split("\0");
+            } catch (IllegalArgumentException e) {
+                credentials = new String[0];
+            }
+            if (credentials.length < 2) {
+                send(FAILURE);
+                return;
+            }
+            jid = credentials[1] + "@" + DOMAIN;
+            send(SUCCESS);
+            state = State.AWAITING_RESTART;
+        }
+
+        /**
+         * Answers resource binding, and routes messages and presences.
+         */
+        private void route(String token) {
+            if (token.startsWith("<iq")) {
+                if (token.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+                    connections.put(jid, this);
+                    send("<iq type='result' id='" + StanzaReader.attribute(token, "id") + "'>"
+                            + "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>" + jid + "/load</jid></bind>"
+                            + "</iq>");
+                }
+                return;
+            }
+            if (token.startsWith("<message")) {
+                String to = StanzaReader.attribute(token, "to");
+                int resourceStart = to == null ? -1 : to.indexOf('/');
+                OriginConnection recipient = connections.get(resourceStart < 0 ? to : to.substring(0,
+                        resourceStart));
+                (recipient == null ? this : recipient).send(token);
+                return;
+            }
+            if (token.startsWith("<presence")) {
+                send(token);
+            }
+        }
+
+        @Override
+        protected void handleClose() {
+            if (jid != null) {
+                connections.remove(jid, this);
+            }
+        }
+    }
+}
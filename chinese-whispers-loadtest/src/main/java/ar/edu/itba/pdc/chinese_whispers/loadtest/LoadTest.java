@@ -0,0 +1,193 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.LatencyHistogram;
+import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test of the proxy, running entirely in this process and on loopback: it starts a
+ * {@link FakeOriginServer}, starts the proxy (see {@link EmbeddedProxy}) on ephemeral ports with the fake server as its
+ * default origin, and drives simulated clients through the whole negotiation and a configurable mix of stanzas
+ * (see {@link ClientDriver}).
+ * <p>
+ * It reports logins per second, end-to-end latency percentiles, and the CPU time used by the proxy's threads.
+ */
+public class LoadTest {
+
+    private static final String USAGE_MESSAGE = "Usage: [--clients=<n>] [--messages=<per-client>] "
+            + "[--window=<in-flight-per-client>] [--mix=chat=<w>,large=<w>,presence=<w>] [--body-size=<chars>] "
+            + "[--large-body-size=<chars>] [--login-concurrency=<n>] [--reactors=<n>] [--l337] "
+            + "[--timeout=<seconds-per-phase>] [--seed=<n>]";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("clients", "100");
+        options.put("messages", "100");
+        options.put("window", "1");
+        options.put("mix", "chat=80,large=5,presence=15");
+        options.put("body-size", "64");
+        options.put("large-body-size", "16384");
+        options.put("login-concurrency", "50");
+        options.put("reactors", "0");
+        options.put("l337", "false");
+        options.put("timeout", "120");
+        options.put("seed", "42");
+        int clients;
+        int messages;
+        int window;
+        MessageMix mix;
+        int bodySize;
+        int largeBodySize;
+        int loginConcurrency;
+        int reactors;
+        long timeout;
+        long seed;
+        try {
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException();
+                }
+                int separator = arg.indexOf('=');
+                String name = separator < 0 ? arg.substring(2) : arg.substring(2, separator);
+                if (!options.containsKey(name)) {
+                    throw new IllegalArgumentException();
+                }
+                options.put(name, separator < 0 ? "true" : arg.substring(separator + 1));
+            }
+            clients = Integer.parseInt(options.get("clients"));
+            messages = Integer.parseInt(options.get("messages"));
+            window = Integer.parseInt(options.get("window"));
+            mix = MessageMix.parse(options.get("mix"));
+            bodySize = Integer.parseInt(options.get("body-size"));
+            largeBodySize = Integer.parseInt(options.get("large-body-size"));
+            loginConcurrency = Integer.parseInt(options.get("login-concurrency"));
+            reactors = Integer.parseInt(options.get("reactors"));
+            timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("timeout")));
+            seed = Long.parseLong(options.get("seed"));
+            if (clients <= 0 || messages < 0 || window <= 0 || bodySize < 0 || largeBodySize < 0
+                    || loginConcurrency <= 0 || reactors < 0 || timeout <= 0) {
+                throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            System.out.println(USAGE_MESSAGE);
+            System.exit(1);
+            return;
+        }
+
+        FakeOriginServer origin = new FakeOriginServer();
+        Thread originThread = new Thread(origin, "fake-origin");
+        originThread.setDaemon(true);
+        originThread.start();
+
+        int proxyPort = EmbeddedProxy.start(origin.getPort(), reactors);
+        Configurations.getInstance().setL337Processing(Boolean.parseBoolean(options.get("l337")));
+        System.out.printf("Proxy listening on port %d (%d reactors), origin on port %d%n", proxyPort, reactors,
+                origin.getPort());
+        System.out.printf("%d clients, %d stanzas each (window %d, mix %s), l337 %s%n", clients, messages, window,
+                mix, options.get("l337"));
+
+        boolean finished;
+        try (ClientDriver driver = new ClientDriver(proxyPort, clients, messages, window, mix, bodySize,
+                largeBodySize, seed)) {
+            Phase login = new Phase();
+            finished = driver.login(loginConcurrency, System.nanoTime() + timeout);
+            login.end();
+            System.out.printf("%nLogin: %d logged in, %d failed, in %.3f s%n", driver.getLoggedIn(),
+                    driver.getFailedLogins(), login.getSeconds());
+            System.out.printf("  %.1f logins/s, proxy CPU %.1f%% (%.1f us per login)%n",
+                    driver.getLoggedIn() / login.getSeconds(), login.getProxyCpuPercentage(),
+                    login.getProxyCpuMicros() / Math.max(1, driver.getLoggedIn()));
+            printPercentiles("login", driver.getLoginLatency());
+
+            if (finished && driver.getLoggedIn() > 0) {
+                long sentBytes = driver.getSentBytes();
+                Phase exchange = new Phase();
+                finished = driver.exchange(System.nanoTime() + timeout);
+                exchange.end();
+                long stanzas = driver.getReceivedStanzas();
+                System.out.printf("%nExchange: %d stanzas in %.3f s%n", stanzas, exchange.getSeconds());
+                System.out.printf("  %.1f stanzas/s, %.1f KiB/s sent by clients, proxy CPU %.1f%% "
+                                + "(%.1f us per stanza)%n", stanzas / exchange.getSeconds(),
+                        (driver.getSentBytes() - sentBytes) / 1024.0 / exchange.getSeconds(),
+                        exchange.getProxyCpuPercentage(), exchange.getProxyCpuMicros() / Math.max(1, stanzas));
+                for (Map.Entry<MessageMix.Kind, LatencyHistogram> entry : driver.getStanzaLatencies().entrySet()) {
+                    printPercentiles(entry.getKey().name().toLowerCase(), entry.getValue());
+                }
+            }
+
+            if (finished) {
+                Phase logout = new Phase();
+                finished = driver.logout(System.nanoTime() + timeout);
+                logout.end();
+                System.out.printf("%nLogout: %.3f s%n", logout.getSeconds());
+            }
+        }
+
+        System.out.println();
+        System.out.println("Proxy latency metrics (count p50 p99 p999 max, in us):");
+        for (Map.Entry<String, String> entry : MetricsManager.getInstance().getLatencyMetrics().entrySet()) {
+            System.out.printf("  %s: %s%n", entry.getKey(), entry.getValue());
+        }
+        if (!finished) {
+            System.out.println("Load test timed out.");
+        }
+        origin.close();
+        System.exit(finished ? 0 : 1);
+    }
+
+    private static void printPercentiles(String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        long[] values = histogram.getValuesAtQuantiles(QUANTILES);
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("  %-9s count %d", name, histogram.getCount()));
+        for (int i = 0; i < QUANTILES.length; i++) {
+            line.append(String.format(", p%s %.3f ms", String.valueOf(QUANTILES[i] * 100).replaceAll("\\.?0+$", ""),
+                    values[i] / 1e6));
+        }
+        line.append(String.format(", max %.3f ms", histogram.getMax() / 1e6));
+        System.out.println(line);
+    }
+
+    /**
+     * Measures the wall time and the proxy's CPU time of a load test phase.
+     */
+    private static final class Phase {
+
+        private final long startedAt;
+        private final long startCpuTime;
+        private long wallTime;
+        private long cpuTime;
+
+
+        private Phase() {
+            this.startCpuTime = EmbeddedProxy.getCpuTime();
+            this.startedAt = System.nanoTime();
+        }
+
+        private void end() {
+            wallTime = System.nanoTime() - startedAt;
+            cpuTime = EmbeddedProxy.getCpuTime() - startCpuTime;
+        }
+
+        private double getSeconds() {
+            return wallTime / 1e9;
+        }
+
+        private double getProxyCpuPercentage() {
+            return 100.0 * cpuTime / wallTime;
+        }
+
+        private double getProxyCpuMicros() {
+            return cpuTime / 1e3;
+        }
+    }
+}
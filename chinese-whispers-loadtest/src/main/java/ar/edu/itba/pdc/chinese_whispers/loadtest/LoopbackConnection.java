@@ -0,0 +1,184 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A non-blocking connection driven by one of the load test's selectors (either of the origin server or of the
+ * simulated clients), which receives traffic as tokens (see {@link StanzaReader}).
+ * <p>
+ * Note: Instances must only be used by the thread driving their selector.
+ */
+/* package */ abstract class LoopbackConnection {
+
+    /**
+     * The channel of this connection.
+     */
+    private final SocketChannel channel;
+    /**
+     * Splits received traffic into tokens.
+     */
+    private final StanzaReader reader;
+    /**
+     * Holds data waiting to be sent (ready to be read from).
+     */
+    private ByteBuffer output;
+    /**
+     * The key of this connection ({@code null} till it's registered).
+     */
+    private SelectionKey key;
+    /**
+     * Says if the connection must be closed once pending output is sent.
+     */
+    private boolean closeRequested;
+    /**
+     * Says if the connection was closed.
+     */
+    private boolean closed;
+
+
+    /* package */ LoopbackConnection(SocketChannel channel) {
+        this.channel = channel;
+        this.reader = new StanzaReader();
+        this.output = ByteBuffer.allocate(4 * 1024);
+        this.output.flip();
+        this.key = null;
+        this.closeRequested = false;
+        this.closed = false;
+    }
+
+    /* package */ SocketChannel getChannel() {
+        return channel;
+    }
+
+    /* package */ void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /* package */ boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Sends the given data (as soon as the channel is writable).
+     *
+     * @param data The data to be sent.
+     */
+    /* package */ void send(String data) {
+        send(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the given data (as soon as the channel is writable).
+     *
+     * @param data The data to be sent.
+     */
+    /* package */ void send(byte[] data) {
+        if (closed) {
+            return;
+        }
+        if (output.capacity() - output.remaining() < data.length) {
+            ByteBuffer newOutput = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.remaining()
+                    + data.length));
+            newOutput.put(output);
+            output = newOutput;
+        } else {
+            output.compact();
+        }
+        output.put(data);
+        output.flip();
+        handleWrite();
+    }
+
+    /**
+     * Closes this connection once all pending output is sent.
+     */
+    /* package */ void closeAfterWriting() {
+        closeRequested = true;
+        if (!output.hasRemaining()) {
+            close();
+        }
+    }
+
+    /**
+     * Reads available data, handling each received token.
+     *
+     * @param readBuffer A buffer in which data can be read.
+     */
+    /* package */ void handleRead(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int readBytes;
+        try {
+            readBytes = channel.read(readBuffer);
+        } catch (IOException e) {
+            readBytes = -1;
+        }
+        if (readBytes < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        reader.feed(readBuffer);
+        String token;
+        while (!closed && (token = reader.next()) != null) {
+            handleToken(token);
+        }
+    }
+
+    /**
+     * Writes as much pending output as possible, waiting for the channel to be writable if something is left.
+     */
+    /* package */ void handleWrite() {
+        if (closed) {
+            return;
+        }
+        try {
+            channel.write(output);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (output.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closeRequested) {
+            close();
+        }
+    }
+
+    /**
+     * Closes this connection.
+     */
+    /* package */ void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing to do
+        }
+        handleClose();
+    }
+
+    /**
+     * Handles a received token.
+     *
+     * @param token The token (see {@link StanzaReader#next()}).
+     */
+    protected abstract void handleToken(String token);
+
+    /**
+     * Called once this connection was closed.
+     */
+    protected abstract void handleClose();
+}
@@ -0,0 +1,102 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The proportions in which each kind of stanza is sent by simulated clients once they are logged in.
+ */
+/* package */ final class MessageMix {
+
+    /**
+     * Kinds of stanzas sent by simulated clients.
+     */
+    /* package */ enum Kind {
+        /**
+         * A short chat message, addressed to another client.
+         */
+        CHAT,
+        /**
+         * A message with a large body, addressed to another client.
+         */
+        LARGE,
+        /**
+         * A presence, echoed by the origin server to its sender.
+         */
+        PRESENCE
+    }
+
+    /**
+     * The kinds of stanzas, with their accumulated weights.
+     */
+    private final Map<Kind, Integer> accumulatedWeights;
+    private final int totalWeight;
+
+
+    private MessageMix(Map<Kind, Integer> weights) {
+        this.accumulatedWeights = new EnumMap<>(Kind.class);
+        int total = 0;
+        for (Map.Entry<Kind, Integer> entry : weights.entrySet()) {
+            total += entry.getValue();
+            accumulatedWeights.put(entry.getKey(), total);
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The mix must have a positive weight.");
+        }
+        this.totalWeight = total;
+    }
+
+    /**
+     * Parses a mix with the format {@code kind=weight[,kind=weight...]} (e.g. {@code chat=80,large=5,presence=15}).
+     *
+     * @param mix The mix to parse.
+     * @return The parsed mix.
+     * @throws IllegalArgumentException If the mix is not valid.
+     */
+    /* package */ static MessageMix parse(String mix) {
+        Map<Kind, Integer> weights = new EnumMap<>(Kind.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Invalid weight: " + weight);
+            }
+            weights.put(Kind.valueOf(parts[0].trim().toUpperCase()), weight);
+        }
+        return new MessageMix(weights);
+    }
+
+    /**
+     * Chooses the kind of the next stanza to send.
+     *
+     * @param random The random used to choose.
+     * @return The kind of stanza.
+     */
+    /* package */ Kind pick(Random random) {
+        int value = random.nextInt(totalWeight);
+        for (Map.Entry<Kind, Integer> entry : accumulatedWeights.entrySet()) {
+            if (value < entry.getValue()) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException(); // Can't happen
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        int previous = 0;
+        for (Map.Entry<Kind, Integer> entry : accumulatedWeights.entrySet()) {
+            if (entry.getValue() > previous) {
+                result.append(result.length() == 0 ? "" : ",").append(entry.getKey().name().toLowerCase())
+                        .append("=").append(entry.getValue() - previous);
+            }
+            previous = entry.getValue();
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,250 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelectorGroup;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.ClosingManager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running soak test of the proxy (in this process and on loopback, as the {@link LoadTest}): it cycles many
+ * short sessions (connect, negotiate, exchange a few messages and close) in batches of concurrent sessions,
+ * sampling the retained heap and the sizes of the proxy-wide structures that grow with traffic.
+ * <p>
+ * As no session outlives its batch, retained memory must be bounded by the amount of concurrent sessions.
+ * The test fails if the retained heap grows with the amount of sessions (more than a given amount of bytes per
+ * session, measured from the first sample so warm-up allocations are not counted), or if any structure retains
+ * more entries than there were concurrent sessions.
+ */
+public class SoakTest {
+
+    private static final String USAGE_MESSAGE = "Usage: [--sessions=<n>] [--concurrency=<n>] [--samples=<n>] "
+            + "[--messages=<per-session>] [--reactors=<n>] [--max-growth=<bytes-per-session>] "
+            + "[--timeout=<seconds-per-batch>]";
+
+    /**
+     * Time given to the proxy to close its side of finished sessions.
+     */
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Maximum amount of garbage collections performed to take a sample.
+     */
+    private static final int MAX_COLLECTIONS = 60;
+
+    /**
+     * Amount of consecutive garbage collections that must not shrink the heap to consider it measured
+     * (spanning more than the proxy's select timeout, as the handlers of closed connections are only released
+     * once their selector wakes up and deregisters their keys).
+     */
+    private static final int STABLE_COLLECTIONS = 16;
+
+    /**
+     * Time (in milliseconds) between garbage collections.
+     */
+    private static final int COLLECTIONS_INTERVAL = 250;
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("sessions", "20000");
+        options.put("concurrency", "100");
+        options.put("samples", "10");
+        options.put("messages", "2");
+        options.put("reactors", "0");
+        options.put("max-growth", "16");
+        options.put("timeout", "60");
+        int sessions;
+        int concurrency;
+        int samples;
+        int messages;
+        int reactors;
+        long maxGrowth;
+        long timeout;
+        try {
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0 || !options.containsKey(arg.substring(2, separator))) {
+                    throw new IllegalArgumentException();
+                }
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+            sessions = Integer.parseInt(options.get("sessions"));
+            concurrency = Integer.parseInt(options.get("concurrency"));
+            samples = Integer.parseInt(options.get("samples"));
+            messages = Integer.parseInt(options.get("messages"));
+            reactors = Integer.parseInt(options.get("reactors"));
+            maxGrowth = Long.parseLong(options.get("max-growth"));
+            timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("timeout")));
+            if (concurrency <= 0 || samples < 3 || sessions < concurrency * samples || messages < 0
+                    || reactors < 0 || maxGrowth < 0 || timeout <= 0) {
+                throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            System.out.println(USAGE_MESSAGE);
+            System.exit(1);
+            return;
+        }
+
+        FakeOriginServer origin = new FakeOriginServer();
+        Thread originThread = new Thread(origin, "fake-origin");
+        originThread.setDaemon(true);
+        originThread.start();
+        int proxyPort = EmbeddedProxy.start(origin.getPort(), reactors);
+        System.out.printf("%d sessions, %d concurrent, %d messages each, %d reactors%n", sessions, concurrency,
+                messages, reactors);
+        System.out.printf("%10s %12s %16s %17s %12s%n", "sessions", "heap (KiB)", "connection tries",
+                "closable handlers", "connections");
+
+        MessageMix mix = MessageMix.parse("chat=1");
+        int batchesPerSample = sessions / concurrency / samples;
+        List<Sample> taken = new ArrayList<>(samples);
+        int completed = 0;
+        int failed = 0;
+        boolean finished = true;
+        for (int i = 0; i < samples && finished; i++) {
+            for (int batch = 0; batch < batchesPerSample && finished; batch++) {
+                try (ClientDriver driver = new ClientDriver(proxyPort, concurrency, messages, 1, mix, 64, 0,
+                        completed)) {
+                    long deadline = System.nanoTime() + timeout;
+                    finished = driver.login(concurrency, deadline) && driver.exchange(deadline)
+                            && driver.logout(deadline);
+                    completed += driver.getLoggedIn();
+                    failed += driver.getFailedLogins();
+                }
+            }
+            finished &= awaitClosedConnections();
+            Sample sample = Sample.take(completed);
+            taken.add(sample);
+            System.out.printf("%10d %12d %16d %17d %12d%n", sample.sessions, sample.heap / 1024,
+                    sample.connectionTries, sample.closableHandlers, sample.connections);
+        }
+        origin.close();
+        if (!finished) {
+            System.out.println("FAILED: the soak test timed out (or connections were lost).");
+            System.exit(1);
+        }
+        if (failed > 0) {
+            System.out.printf("FAILED: %d logins failed.%n", failed);
+            System.exit(1);
+        }
+
+        List<String> failures = new ArrayList<>();
+        Sample first = taken.get(0);
+        Sample last = taken.get(taken.size() - 1);
+        double growth = growthPerSession(taken.subList(1, taken.size()));
+        System.out.printf("Retained heap growth: %.1f bytes per session (limit %d)%n", growth, maxGrowth);
+        if (growth > maxGrowth) {
+            failures.add(String.format("retained heap grows %.1f bytes per session", growth));
+        }
+        checkBounded(failures, "TCPSelector.connectionTries", first.connectionTries, last.connectionTries,
+                concurrency);
+        checkBounded(failures, "ClosingManager.closableHandlers", first.closableHandlers, last.closableHandlers,
+                concurrency);
+        checkBounded(failures, "accepted connections", first.connections, last.connections, concurrency);
+        if (!failures.isEmpty()) {
+            System.out.println("FAILED: " + String.join("; ", failures));
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+        System.exit(0);
+    }
+
+    /**
+     * Waits till the proxy closed all finished sessions (so they are not counted as retained).
+     *
+     * @return {@code true} if all connections were closed, or {@code false} otherwise.
+     */
+    private static boolean awaitClosedConnections() throws InterruptedException {
+        long deadline = System.nanoTime() + CLOSE_TIMEOUT;
+        while (TCPSelectorGroup.getInstance().getAmountOfConnections() > 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Computes the slope of the retained heap against the amount of sessions (by least squares).
+     *
+     * @param samples The samples (at least two, as the first one is taken after warming up).
+     * @return The growth (in bytes per session).
+     */
+    private static double growthPerSession(List<Sample> samples) {
+        double meanSessions = 0;
+        double meanHeap = 0;
+        for (Sample sample : samples) {
+            meanSessions += sample.sessions;
+            meanHeap += sample.heap;
+        }
+        meanSessions /= samples.size();
+        meanHeap /= samples.size();
+        double covariance = 0;
+        double variance = 0;
+        for (Sample sample : samples) {
+            covariance += (sample.sessions - meanSessions) * (sample.heap - meanHeap);
+            variance += (sample.sessions - meanSessions) * (sample.sessions - meanSessions);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    /**
+     * Adds a failure if a structure grew past the amount of concurrent sessions.
+     */
+    private static void checkBounded(List<String> failures, String name, int first, int last, int concurrency) {
+        if (last > first && last > concurrency) {
+            failures.add(String.format("%s grew from %d to %d entries (%d concurrent sessions)", name, first, last,
+                    concurrency));
+        }
+    }
+
+
+    /**
+     * The retained heap and structures sizes after a given amount of sessions.
+     */
+    private static final class Sample {
+
+        private final int sessions;
+        private final long heap;
+        private final int connectionTries;
+        private final int closableHandlers;
+        private final int connections;
+
+
+        private Sample(int sessions, long heap, int connectionTries, int closableHandlers, int connections) {
+            this.sessions = sessions;
+            this.heap = heap;
+            this.connectionTries = connectionTries;
+            this.closableHandlers = closableHandlers;
+            this.connections = connections;
+        }
+
+        /**
+         * Takes a sample, collecting garbage first so only retained memory is measured.
+         * As finished sessions might still be releasing resources, garbage is collected till the heap stops
+         * shrinking.
+         */
+        private static Sample take(int sessions) throws InterruptedException {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long heap = Long.MAX_VALUE;
+            int stableCollections = 0;
+            for (int i = 0; i < MAX_COLLECTIONS && stableCollections < STABLE_COLLECTIONS; i++) {
+                System.gc();
+                Thread.sleep(COLLECTIONS_INTERVAL);
+                long used = memory.getHeapMemoryUsage().getUsed();
+                stableCollections = used < heap ? 0 : stableCollections + 1;
+                heap = Math.min(heap, used);
+            }
+            return new Sample(sessions, heap, TCPSelectorGroup.getInstance().getAmountOfConnectionTries(),
+                    ClosingManager.getInstance().getAmountOfClosableHandlers(),
+                    TCPSelectorGroup.getInstance().getAmountOfConnections());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package ar.edu.itba.pdc.chinese_whispers.loadtest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits received XMPP traffic into top-level tokens: the XML declaration, stream headers and closing tags,
+ * and whole stanzas (including stream features).
+ * <p>
+ * This is not an XML parser: it only understands the traffic generated by the load test (i.e. attribute values
+ * don't contain {@code '>'}, and stanzas don't contain elements named as themselves), which is enough to play
+ * both the clients and the origin server without adding parsing costs to the measured ones.
+ */
+/* package */ final class StanzaReader {
+
+    private static final byte[] STREAM_HEADER_START = "<stream:stream".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Holds received bytes that were not returned as tokens yet.
+     */
+    private byte[] buffer;
+    /**
+     * Position of the first byte that was not returned yet.
+     */
+    private int start;
+    /**
+     * Position after the last received byte.
+     */
+    private int end;
+
+
+    /* package */ StanzaReader() {
+        this.buffer = new byte[4 * 1024];
+        this.start = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Adds received data (from its position till its limit).
+     *
+     * @param data The received data.
+     */
+    /* package */ void feed(ByteBuffer data) {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (buffer.length - end < data.remaining()) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, end + data.remaining()));
+        }
+        int amount = data.remaining();
+        data.get(buffer, end, amount);
+        end += amount;
+    }
+
+    /**
+     * Returns the next complete token.
+     *
+     * @return The token, or {@code null} if more data is needed.
+     */
+    /* package */ String next() {
+        while (start < end && Character.isWhitespace(buffer[start])) {
+            start++;
+        }
+        if (end - start < 2) {
+            return null;
+        }
+        int tokenEnd;
+        if (buffer[start + 1] == '?' || buffer[start + 1] == '/' || startsWith(STREAM_HEADER_START)) {
+            tokenEnd = indexOf('>', start); // Declarations, closing tags and stream headers end with their tag
+        } else {
+            tokenEnd = stanzaEnd();
+        }
+        if (tokenEnd < 0) {
+            return null;
+        }
+        String token = new String(buffer, start, tokenEnd + 1 - start, StandardCharsets.UTF_8);
+        start = tokenEnd + 1;
+        return token;
+    }
+
+    /**
+     * Returns the position of the last byte of the stanza that starts at {@link #start}.
+     *
+     * @return The position, or -1 if the stanza is not complete.
+     */
+    private int stanzaEnd() {
+        int startTagEnd = indexOf('>', start);
+        if (startTagEnd < 0) {
+            return -1;
+        }
+        if (buffer[startTagEnd - 1] == '/') {
+            return startTagEnd; // Empty element
+        }
+        int nameEnd = start + 1;
+        while (nameEnd < startTagEnd && buffer[nameEnd] != ' ' && buffer[nameEnd] != '>') {
+            nameEnd++;
+        }
+        byte[] closingTag = new byte[nameEnd - start + 2];
+        closingTag[0] = '<';
+        closingTag[1] = '/';
+        System.arraycopy(buffer, start + 1, closingTag, 2, nameEnd - start - 1);
+        closingTag[closingTag.length - 1] = '>';
+        int closingTagStart = indexOf(closingTag, startTagEnd + 1);
+        return closingTagStart < 0 ? -1 : closingTagStart + closingTag.length - 1;
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] bytes, int from) {
+        outer:
+        for (int i = from; i <= end - bytes.length; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                if (buffer[i + j] != bytes[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of an attribute of the given token's start tag.
+     *
+     * @param token The token.
+     * @param name  The attribute's name.
+     * @return The value, or {@code null} if the start tag doesn't have the attribute.
+     */
+    /* package */ static String attribute(String token, String name) {
+        int tagEnd = token.indexOf('>');
+        int index = 0;
+        while (true) {
+            index = token.indexOf(name + "=", index);
+            if (index < 0 || index > tagEnd) {
+                return null;
+            }
+            // Checks that a whole attribute name was found (e.g. not "to" inside "proto")
+            if (token.charAt(index - 1) == ' ') {
+                break;
+            }
+            index += name.length();
+        }
+        int valueStart = index + name.length() + 2;
+        char quote = token.charAt(valueStart - 1);
+        int valueEnd = token.indexOf(quote, valueStart);
+        return valueEnd < 0 ? null : token.substring(valueStart, valueEnd);
+    }
+}
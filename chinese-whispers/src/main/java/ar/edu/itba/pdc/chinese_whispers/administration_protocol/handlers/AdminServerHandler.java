@@ -5,8 +5,10 @@ import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.Confi
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
 import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import ar.edu.itba.pdc.chinese_whispers.application.OriginGroup;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPHandler;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPReadWriteHandler;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -66,6 +68,9 @@ public class AdminServerHandler implements TCPReadWriteHandler {
 
     private static final int MAX_PARAMETER_SIZE = 100;
     private static final String WRONG_SYNTAX_PORT_MESSAGE = "Port needs to be a number between 1 and 65534";
+    private static final int MAX_WARM_CONNECTIONS = 32;
+    private static final String WRONG_SYNTAX_STRATEGY_MESSAGE =
+            "Strategy needs to be ROUND_ROBIN, LEAST_CONNECTIONS or CONSISTENT_HASH";
 
 
     /**
@@ -158,9 +163,14 @@ public class AdminServerHandler implements TCPReadWriteHandler {
         authCommand = new HashSet<>();
         authCommand.add("L337");
         authCommand.add("UNL337");
+        authCommand.add("SPEC");
+        authCommand.add("UNSPEC");
+        authCommand.add("POOL");
         authCommand.add("BLCK");
         authCommand.add("UNBLCK");
         authCommand.add("MPLX");
+        authCommand.add("GROUP");
+        authCommand.add("UNGROUP");
         authCommand.add("CNFG");
         authCommand.add("MTRC");
         authCommand.add("USER");
@@ -343,6 +353,40 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                     response.setToDefaultOK();
                 }
                 break;
+            case "SPEC":
+                if (checkLength(requestElements.length, new int[]{1}, response)) {
+                    configurationsConsumer.setSpeculativeConnects(true);
+                    logger.info("Speculative connects enabled");
+                    response.setToDefaultOK();
+                }
+                break;
+            case "UNSPEC":
+                if (checkLength(requestElements.length, new int[]{1}, response)) {
+                    configurationsConsumer.setSpeculativeConnects(false);
+                    logger.info("Speculative connects disabled");
+                    response.setToDefaultOK();
+                }
+                break;
+            case "POOL":
+                if (checkLength(requestElements.length, new int[]{2}, response)) {
+                    try {
+                        int warmConnections = Integer.valueOf(requestElements[1]);
+                        if (warmConnections < 0 || warmConnections > MAX_WARM_CONNECTIONS) {
+                            response.setResponseCode(WRONG_SYNTAX_OF_PARAMETERS_CODE);
+                            response.setResponseMessage("Pool size needs to be a number between 0 and "
+                                    + MAX_WARM_CONNECTIONS);
+                        } else {
+                            configurationsConsumer.setWarmConnections(warmConnections);
+                            logger.info("Set origin connections pool size to {}", warmConnections);
+                            response.setToDefaultOK();
+                        }
+                    } catch (NumberFormatException nfe) {
+                        response.setResponseCode(WRONG_SYNTAX_OF_PARAMETERS_CODE);
+                        response.setResponseMessage("Pool size needs to be a number between 0 and "
+                                + MAX_WARM_CONNECTIONS);
+                    }
+                }
+                break;
             case "LANG":
                 if (requestElements.length == 1) {
                     response.setResponseMessage("en");
@@ -407,7 +451,7 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                 break;
             case "HELP":
                 if (checkLength(requestElements.length, new int[]{1}, response)) {
-                    response.setResponseMessage("AUTH LANG HELP QUIT L337 UNL337 BLCK UNBLCK MPLX CNFG MTRC LOGOUT");
+                    response.setResponseMessage("AUTH LANG HELP QUIT L337 UNL337 SPEC UNSPEC POOL BLCK UNBLCK MPLX GROUP UNGROUP CNFG MTRC LOGOUT");
                     response.setResponseCode(OK_CODE);
                 }
                 break;
@@ -434,6 +478,27 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                 break;
             case "MPLX":
                 if (checkLength(requestElements.length, new int[]{3, 4}, response)) {
+                    if (requestElements.length == 4 && requestElements[2].equals("GROUP")) {
+                        try {
+                            if (requestElements[1].equals("DEFAULT")) {
+                                configurationsConsumer.setDefaultGroup(requestElements[3]);
+                                logger.info("Set default server to group {}", requestElements[3]);
+                                response.setToDefaultOK();
+                            } else if (hasCnfgSpace()) {
+                                configurationsConsumer.multiplexUserToGroup(requestElements[1], requestElements[3]);
+                                logger.info("Multiplexing {} to group {}", requestElements[1], requestElements[3]);
+                                response.setToDefaultOK();
+                            } else {
+                                response.setResponseCode(POLICY_VIOLATION_CODE);
+                                logger.info("No config space, not multiplexing {} to group {}", requestElements[1], requestElements[3]);
+                                response.setResponseMessage("Maximum number of silenced/multiplexed users");
+                            }
+                        } catch (IllegalArgumentException e) {
+                            response.setResponseCode(NOT_FOUND_CODE);
+                            response.setResponseMessage("Unknown group");
+                        }
+                        break;
+                    }
                     if (requestElements.length == 4) {
                         if (requestElements[1].equals("DEFAULT")) {
                             try {
@@ -489,6 +554,56 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                     }
                 }
                 break;
+            case "GROUP":
+                // GROUP name strategy host port [host port ...]
+                if (requestElements.length < 5 || requestElements.length % 2 == 0) {
+                    checkLength(requestElements.length, new int[]{}, response);
+                    break;
+                }
+                OriginGroup.Strategy strategy;
+                try {
+                    strategy = OriginGroup.Strategy.valueOf(requestElements[2]);
+                } catch (IllegalArgumentException e) {
+                    response.setResponseCode(WRONG_SYNTAX_OF_PARAMETERS_CODE);
+                    response.setResponseMessage(WRONG_SYNTAX_STRATEGY_MESSAGE);
+                    break;
+                }
+                List<Configurations.HostAndPort> members = new ArrayList<>();
+                try {
+                    for (int i = 3; i < requestElements.length; i += 2) {
+                        members.add(new Configurations.HostAndPort(requestElements[i],
+                                Integer.valueOf(requestElements[i + 1])));
+                    }
+                } catch (IllegalArgumentException e) { // Includes NumberFormatException
+                    response.setResponseCode(WRONG_SYNTAX_OF_PARAMETERS_CODE);
+                    response.setResponseMessage(WRONG_SYNTAX_PORT_MESSAGE);
+                    break;
+                }
+                if (!hasCnfgSpace()) {
+                    response.setResponseCode(POLICY_VIOLATION_CODE);
+                    logger.info("No config space, not creating group {}", requestElements[1]);
+                    response.setResponseMessage("Maximum number of silenced/multiplexed users");
+                    break;
+                }
+                configurationsConsumer.setOriginGroup(requestElements[1], strategy, members);
+                logger.info("Set group {} to {} {}", requestElements[1], strategy, members);
+                response.setToDefaultOK();
+                break;
+            case "UNGROUP":
+                if (checkLength(requestElements.length, new int[]{2}, response)) {
+                    try {
+                        configurationsConsumer.removeOriginGroup(requestElements[1]);
+                        logger.info("Removed group {}", requestElements[1]);
+                        response.setToDefaultOK();
+                    } catch (IllegalStateException e) {
+                        response.setResponseCode(POLICY_VIOLATION_CODE);
+                        response.setResponseMessage("Group is being used by the default server or multiplexed users");
+                    } catch (IllegalArgumentException e) {
+                        response.setResponseCode(NOT_FOUND_CODE);
+                        response.setResponseMessage("Unknown group");
+                    }
+                }
+                break;
             case "CNFG":
                 if (checkLength(requestElements.length, new int[]{1}, response)) {
                     logger.info("Requested current configuration");
@@ -516,11 +631,26 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                         }
                     }
                     responseBuilder.append(" # DEFAULT ");
-                    if (Configurations.getInstance().getDefaultServerHost() == null || Configurations.getInstance().getDefaultServerPort() == null) {
+                    if (configurationsConsumer.getDefaultRoute() == null) {
                         responseBuilder.append("NONE");
                     } else {
-                        responseBuilder.append(Configurations.getInstance().getDefaultServerHost() + " " + Configurations.getInstance().getDefaultServerPort());
+                        responseBuilder.append(configurationsConsumer.getDefaultRoute());
                     }
+                    responseBuilder.append(" # GROUP");
+                    Map<String, String> originGroups = configurationsConsumer.getOriginGroups();
+                    if (originGroups.isEmpty()) {
+                        responseBuilder.append(" NONE");
+                    } else {
+                        Iterator<Map.Entry<String, String>> iterator = originGroups.entrySet().iterator();
+                        while (iterator.hasNext()) {
+                            Map.Entry<String, String> group = iterator.next();
+                            responseBuilder.append(" ").append(group.getKey()).append(" ").append(group.getValue());
+                            if (iterator.hasNext()) responseBuilder.append(" *");
+                        }
+                    }
+                    responseBuilder.append(" # SPEC");
+                    responseBuilder.append(Configurations.getInstance().isSpeculativeConnects() ? " ON" : " OFF");
+                    responseBuilder.append(" # POOL ").append(Configurations.getInstance().getWarmConnections());
                     response.setResponseCode(OK_CODE);
                     response.setResponseMessage(responseBuilder.toString());
                 }
@@ -549,6 +679,32 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                             }
                             response.setResponseMessage(responseBuilder.toString());
                             response.setResponseCode(OK_CODE);
+                        } else if (requestElements[1].equals("JIDS") || requestElements[1].equals("CONNECTIONS")
+                                || requestElements[1].equals("LATENCY") || requestElements[1].equals("LOOP")) {
+                            // Breakdowns are aggregated on demand (latencies are "stage samples p50 p99 p999 max")
+                            Map<String, String> breakdown;
+                            if (requestElements[1].equals("JIDS")) {
+                                breakdown = metricsProvider.getJidsMetrics();
+                            } else if (requestElements[1].equals("CONNECTIONS")) {
+                                breakdown = metricsProvider.getConnectionsMetrics();
+                            } else if (requestElements[1].equals("LATENCY")) {
+                                breakdown = metricsProvider.getLatencyMetrics();
+                            } else {
+                                breakdown = metricsProvider.getLoopMetrics();
+                            }
+                            responseBuilder.setLength(0);
+                            if (breakdown.isEmpty()) {
+                                responseBuilder.append("NONE");
+                            } else {
+                                Iterator<Map.Entry<String, String>> iterator = breakdown.entrySet().iterator();
+                                while (iterator.hasNext()) {
+                                    Map.Entry<String, String> entry = iterator.next();
+                                    responseBuilder.append(entry.getKey()).append(" ").append(entry.getValue());
+                                    if (iterator.hasNext()) responseBuilder.append(" * ");
+                                }
+                            }
+                            response.setResponseMessage(responseBuilder.toString());
+                            response.setResponseCode(OK_CODE);
                         } else {
                             String metricName = requestElements[1];
                             if (!metrics.containsKey(metricName)) {
@@ -572,7 +728,7 @@ public class AdminServerHandler implements TCPReadWriteHandler {
     }
 
     private boolean hasCnfgSpace() {
-        return MAX_PARAMETER_SIZE+configurationsConsumer.getSilencedUsers().size()*(MAX_PARAMETER_SIZE+2)+configurationsConsumer.getMultiplexedUsers().keySet().size()*(2*MAX_PARAMETER_SIZE+20)<OUTPUT_BUFFER_SIZE-MAX_PARAMETER_SIZE*2;
+        return MAX_PARAMETER_SIZE+configurationsConsumer.getSilencedUsers().size()*(MAX_PARAMETER_SIZE+2)+configurationsConsumer.getMultiplexedUsers().keySet().size()*(2*MAX_PARAMETER_SIZE+20)+configurationsConsumer.getOriginGroups().size()*INPUT_BUFFER_SIZE<OUTPUT_BUFFER_SIZE-MAX_PARAMETER_SIZE*2;
     }
 
     private boolean checkLength(int length, int[] lengths, Response response) {
@@ -690,6 +846,8 @@ public class AdminServerHandler implements TCPReadWriteHandler {
         } catch (IOException e) {
             // TODO: what should we do here?
             return false;
+        } finally {
+            TCPSelector.getCurrent().deregister(key);
         }
         return true;
     }
@@ -1,5 +1,9 @@
 package ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces;
 
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.ConfigurationsSnapshot;
+import ar.edu.itba.pdc.chinese_whispers.application.OriginGroup;
+
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -19,6 +23,22 @@ public interface ConfigurationsConsumer {
      */
     void setL337Processing(boolean isL337);
 
+    /**
+     * Sets the speculative connects property (when {@code true}, the connection to the default server will start
+     * as soon as a client opens its stream, hiding the connection latency while the client authenticates).
+     *
+     * @param speculativeConnects The speculative connects new value.
+     */
+    void setSpeculativeConnects(boolean speculativeConnects);
+
+    /**
+     * Sets the amount of already connected sockets that each selector keeps for each origin server
+     * (i.e. the default server and those to which users are multiplexed).
+     *
+     * @param warmConnections The amount of warm connections (0 disables pooling).
+     */
+    void setWarmConnections(int warmConnections);
+
     /**
      * Silences the given user (i.e. the user can receive messages but not send them).
      *
@@ -41,6 +61,14 @@ public interface ConfigurationsConsumer {
      */
     void setDefaultServer(String host, int port);
 
+    /**
+     * Makes the system route users that are not multiplexed to the given origin group.
+     *
+     * @param groupName The group's name.
+     * @throws IllegalArgumentException If there is no group with the given name.
+     */
+    void setDefaultGroup(String groupName);
+
     /**
      * Multiplexes an user.
      *
@@ -59,6 +87,42 @@ public interface ConfigurationsConsumer {
      */
     void multiplexToDefaultServer(String clientJid);
 
+    /**
+     * Multiplexes an user to an origin group.
+     *
+     * @param clientJid The user's JID.
+     * @param groupName The group's name.
+     * @throws IllegalArgumentException If there is no group with the given name.
+     */
+    void multiplexUserToGroup(String clientJid, String groupName);
+
+    /**
+     * Creates an origin group, or replaces the group with the same name
+     * (users routed to the replaced group will be routed to the new one).
+     *
+     * @param name     The group's name.
+     * @param strategy The strategy used to choose the member that will serve each session.
+     * @param members  The origin servers belonging to the group.
+     */
+    void setOriginGroup(String name, OriginGroup.Strategy strategy, List<Configurations.HostAndPort> members);
+
+    /**
+     * Removes an origin group.
+     *
+     * @param name The group's name.
+     * @throws IllegalArgumentException If there is no group with the given name.
+     * @throws IllegalStateException    If users are being routed to the group.
+     */
+    void removeOriginGroup(String name);
+
+    /**
+     * Returns the actual configurations. The returned snapshot never changes,
+     * so it can be used to take several decisions consistently.
+     *
+     * @return The actual configurations snapshot.
+     */
+    ConfigurationsSnapshot getSnapshot();
+
     /**
      * Returns server to which the user must be connected to.
      *
@@ -95,6 +159,17 @@ public interface ConfigurationsConsumer {
      */
     Map<String,String> getMultiplexedUsers();
 
+    /**
+     * Returns a copy of a map with the description ("STRATEGY host port ...") of each origin group (by name).
+     */
+    Map<String,String> getOriginGroups();
+
+    /**
+     * Returns the description of the default route ("host port", or "GROUP name").
+     * @return
+     */
+    String getDefaultRoute();
+
     /**
      * Returns the current default server host.
      * @return
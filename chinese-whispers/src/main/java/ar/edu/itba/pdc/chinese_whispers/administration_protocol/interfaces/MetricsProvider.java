@@ -1,5 +1,7 @@
 package ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces;
 
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.ConnectionMetrics;
 
 import java.util.List;
 import java.util.Map;
@@ -13,9 +15,33 @@ public interface MetricsProvider {
 
     public Map<String,String> getMetrics();
 
-    public void addReadBytes(long readBytes);
+    /**
+     * Returns the traffic of the users with open connections, aggregated by JID (those with more traffic first).
+     * @return A map holding, for each JID, its read bytes, sent bytes, read stanzas and open connections
+     * (separated by spaces).
+     */
+    public Map<String,String> getJidsMetrics();
+
+    /**
+     * Returns the traffic of each open connection (those with more traffic first).
+     * @return A map holding, for each connection identifier, its remote address, JID ("-" if not known yet),
+     * read bytes, sent bytes and read stanzas (separated by spaces).
+     */
+    public Map<String,String> getConnectionsMetrics();
+
+    /**
+     * Starts aggregating the given connection traffic counters
+     * (does nothing if they are already registered, or if they were unregistered).
+     * @param connectionMetrics The connection traffic counters.
+     */
+    public void registerConnection(ConnectionMetrics connectionMetrics);
 
-    public void addSentBytes(long sentBytes);
+    /**
+     * Stops aggregating the given connection traffic counters for good, keeping their values in the totals
+     * (does nothing if they are not registered). Traffic counted afterwards is not reported.
+     * @param connectionMetrics The connection traffic counters.
+     */
+    public void unregisterConnection(ConnectionMetrics connectionMetrics);
 
     public void addAccesses(long numAccesses);
 
@@ -25,6 +51,207 @@ public interface MetricsProvider {
 
     public void addNumSilencedMessages(long numMessagesSilenced);
 
+    /**
+     * Updates the amount of connections that are currently open.
+     * @param activeConnections The amount of connections to be added (negative when connections are closed).
+     */
+    public void addActiveConnections(long activeConnections);
+
+    /**
+     * Adds connections that were rejected because the maximum amount of connections was reached.
+     * @param rejectedConnections The amount of rejected connections.
+     */
+    public void addRejectedConnections(long rejectedConnections);
+
+    /**
+     * Updates the amount of buffers the buffer pools can give without allocating new memory.
+     * @param capacity The amount of buffers to be added (negative when memory is released).
+     */
+    public void addBufferPoolCapacity(long capacity);
+
+    /**
+     * Updates the amount of pooled buffers being used.
+     * @param buffersInUse The amount of buffers to be added (negative when buffers are returned to the pool).
+     */
+    public void addBufferPoolInUse(long buffersInUse);
+
+    /**
+     * Adds buffer requests that were served with an already allocated buffer.
+     * @param hits The amount of hits.
+     */
+    public void addBufferPoolHits(long hits);
+
+    /**
+     * Adds buffer requests that required allocating memory (i.e. a new slab, or a fallback buffer).
+     * @param misses The amount of misses.
+     */
+    public void addBufferPoolMisses(long misses);
+
+    /**
+     * Adds buffers allocated outside the pools because they reached their maximum size.
+     * @param fallbacks The amount of fallback allocations.
+     */
+    public void addBufferPoolFallbacks(long fallbacks);
+
+    /**
+     * Adds host name resolutions that were served from the resolver's cache.
+     * @param hits The amount of hits.
+     */
+    public void addNameResolverHits(long hits);
+
+    /**
+     * Adds host name resolutions that required a lookup.
+     * @param misses The amount of misses.
+     */
+    public void addNameResolverMisses(long misses);
+
+    /**
+     * Adds the time spent performing a lookup.
+     * @param millis The lookup duration (in milliseconds).
+     */
+    public void addNameResolutionTime(long millis);
+
+    /**
+     * Adds lookups that failed (i.e. the host name couldn't be resolved).
+     * @param failures The amount of failed lookups.
+     */
+    public void addNameResolutionFailures(long failures);
+
+    /**
+     * Adds origin server connections that were taken from an origin connections pool.
+     * @param hits The amount of hits.
+     */
+    public void addOriginPoolHits(long hits);
+
+    /**
+     * Adds origin server connections that had to be started because the pool was empty.
+     * @param misses The amount of misses.
+     */
+    public void addOriginPoolMisses(long misses);
+
+    /**
+     * Updates the amount of connections that are currently open with the given origin server.
+     * @param origin The origin server.
+     * @param connections The amount of connections to be added (negative when connections are closed).
+     */
+    public void addOriginConnections(Configurations.HostAndPort origin, long connections);
+
+    /**
+     * Returns the amount of connections that are currently open with the given origin server.
+     * @param origin The origin server.
+     * @return The amount of open connections.
+     */
+    public long getOriginConnections(Configurations.HostAndPort origin);
+
+    /**
+     * Records that the circuit breaker of the given origin server changed its state.
+     * @param origin The origin server.
+     * @param state The new state.
+     */
+    public void addOriginStateTransition(Configurations.HostAndPort origin, String state);
+
+    /**
+     * Adds logins that failed fast because the circuit breakers of their origin servers were open.
+     * @param fastFailures The amount of fast failures.
+     */
+    public void addOriginFastFailures(long fastFailures);
+
+    /**
+     * Adds origin server connections that were routed to another member of a group because of failures.
+     * @param reroutes The amount of reroutes.
+     */
+    public void addOriginReroutes(long reroutes);
+
+    /**
+     * Adds origin server connection retries that were scheduled (with backoff).
+     * @param retries The amount of retries.
+     */
+    public void addOriginRetries(long retries);
+
+    /**
+     * Adds origin server connection retries that were rejected because the origin server had too many pending retries.
+     * @param rejectedRetries The amount of rejected retries.
+     */
+    public void addOriginRetriesRejected(long rejectedRetries);
+
+    /**
+     * Records the time spent parsing data read from a connection (excluding messages bodies transformation).
+     * @param nanos The parsing time (in nanoseconds).
+     */
+    public void addParseTime(long nanos);
+
+    /**
+     * Records the time spent transforming messages bodies of data read from a connection.
+     * @param nanos The transformation time (in nanoseconds).
+     */
+    public void addTransformTime(long nanos);
+
+    /**
+     * Records the time output data waited in a connection's output buffers till writing it started.
+     * @param nanos The queued time (in nanoseconds).
+     */
+    public void addQueuedTime(long nanos);
+
+    /**
+     * Records the time from the first attempt to write a connection's output data till it was fully written.
+     * @param nanos The writing time (in nanoseconds).
+     */
+    public void addWriteTime(long nanos);
+
+    /**
+     * Records the latency added by the proxy to output data, from the moment the data that produced it was read
+     * till it was fully written.
+     * @param nanos The latency (in nanoseconds).
+     */
+    public void addProxyLatency(long nanos);
+
+    /**
+     * Returns the latency percentiles of each pipeline stage (parse, transform, queued, write and total).
+     * @return A map holding, for each stage, its amount of samples and its p50, p99, p999 and max latencies
+     * (in microseconds, separated by spaces).
+     */
+    public Map<String,String> getLatencyMetrics();
+
+    /**
+     * Records the time a selector spent blocked in a select operation.
+     * @param nanos The blocked time (in nanoseconds).
+     */
+    public void addSelectTime(long nanos);
+
+    /**
+     * Records the time a selector spent running its "always-run" tasks.
+     * @param nanos The tasks time (in nanoseconds).
+     */
+    public void addAlwaysRunTasksTime(long nanos);
+
+    /**
+     * Records the time a selector spent running its "nothing-to-do" tasks.
+     * @param nanos The tasks time (in nanoseconds).
+     */
+    public void addNothingToDoTasksTime(long nanos);
+
+    /**
+     * Records the amount of keys selected by an iteration of a selector's event loop.
+     * @param keys The amount of selected keys.
+     */
+    public void addSelectedKeys(long keys);
+
+    /**
+     * Records the time a handler callback took.
+     * @param handlerType The class of the handler.
+     * @param callback    The callback's name (e.g. "handleRead").
+     * @param nanos       The callback time (in nanoseconds).
+     */
+    public void addHandlerTime(Class<?> handlerType, String callback, long nanos);
+
+    /**
+     * Returns the event loop statistics: the select, "always-run" tasks, and "nothing-to-do" tasks times,
+     * the selected keys per iteration, and the time of each callback of each handler type.
+     * @return A map holding, for each statistic, its amount of samples and its p50, p99, p999 and max values
+     * (in microseconds, except for keys, separated by spaces).
+     */
+    public Map<String,String> getLoopMetrics();
+
     /**
      * Returns a list of silenced users (i.e. users that can receive messages but can not send them).
      * @return A list of silenced users' JIDs.
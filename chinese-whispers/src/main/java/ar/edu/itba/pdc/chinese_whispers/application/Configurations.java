@@ -2,6 +2,8 @@ package ar.edu.itba.pdc.chinese_whispers.application;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.AuthenticationProvider;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.connection.OriginHealthMonitor;
 
 import java.util.*;
 
@@ -10,27 +12,27 @@ import java.util.*;
  * <p>
  * Class that manages system configurations.
  * This class implements the singleton pattern.
+ * <p>
+ * Configurations are held in an immutable {@link ConfigurationsSnapshot}, published through a volatile reference.
+ * Changes (performed by the administration protocol) replace the snapshot with an updated copy,
+ * so the selectors' threads can read configurations without locking.
  */
 public class Configurations implements ConfigurationsConsumer, AuthenticationProvider {
 
 
     private static final int DEFAULT_PORT = 5222;
     /**
-     * States if the system is l337ing.
-     */
-    private boolean processL337;
-    /**
-     * Stores users that are being silenced.
+     * Object that tracks the active connections with each origin server (used by origin groups).
      */
-    private Set<String> silencedUsers;
+    private final MetricsProvider metricsProvider;
     /**
-     * Stores to which server is being multiplexed each user belonging to this map key set.
+     * Object that tells which origin servers are accepting connections (used by origin groups).
      */
-    private Map<String, HostAndPort> multiplexedUsers;
+    private final OriginHealthMonitor healthMonitor;
     /**
-     * Stores where the default server is listening.
+     * The actual configurations.
      */
-    private HostAndPort defaultServer;
+    private volatile ConfigurationsSnapshot snapshot; // Read by all the selectors' threads
     /**
      * Map storing user and passwords for administration protocol
      */
@@ -47,10 +49,10 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
      * Private constructor to implement singleton pattern.
      */
     private Configurations() {
-        silencedUsers = new HashSet<>();
-        processL337 = false;
-        multiplexedUsers = new HashMap<>();
-        defaultServer = new HostAndPort("localhost", DEFAULT_PORT);
+        metricsProvider = MetricsManager.getInstance();
+        healthMonitor = OriginHealthMonitor.getInstance();
+        snapshot = new ConfigurationsSnapshot(OriginGroup.single(new HostAndPort("localhost", DEFAULT_PORT),
+                metricsProvider, healthMonitor));
         authorizationMap = new HashMap<>();
         authorizationMap.put("protos", "42"); //username lowercase
 
@@ -72,13 +74,29 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
         return configurationsInstance;
     }
 
+    @Override
+    public ConfigurationsSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     /**
      * Returns the l337 property (when {@code true}, system is L337ing messages).
      *
      * @return
      */
     public boolean isProcessL337() {
-        return processL337;
+        return snapshot.isProcessL337();
+    }
+
+
+    /**
+     * Returns the speculative connects property (when {@code true}, origin server connections start
+     * while clients are still authenticating).
+     *
+     * @return The speculative connects property.
+     */
+    public boolean isSpeculativeConnects() {
+        return snapshot.isSpeculativeConnects();
     }
 
 
@@ -89,29 +107,31 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
      * @return {@code true} if the user is silenced, or {@code false} otherwise.
      */
     public boolean isSilenced(String clientJID) {
-        return silencedUsers.contains(clientJID);
+        return snapshot.isSilenced(clientJID);
     }
 
     /**
      * Returns the host in which the user is being multiplexed.
+     * If the user is routed to a group, a member is chosen (so consecutive calls might return different hosts);
+     * use {@link ConfigurationsSnapshot#getOrigin(String)} to get the host and the port of the same member.
      *
      * @param clientJid The user's JID.
      * @return The host.
      */
     public String getMultiplexedServerHost(String clientJid) {
-        HostAndPort hap = multiplexedUsers.get(clientJid);
-        return hap == null ? defaultServer.host : hap.host;
+        return snapshot.getOrigin(clientJid).host;
     }
 
     /**
      * Returns the port in which the host (to which to user is being multiplexed) is listening.
+     * If the user is routed to a group, a member is chosen (so consecutive calls might return different ports);
+     * use {@link ConfigurationsSnapshot#getOrigin(String)} to get the host and the port of the same member.
      *
      * @param clientJid The user's JID
      * @return The port.
      */
     public Integer getMultiplexedServerPort(String clientJid) {
-        HostAndPort hap = multiplexedUsers.get(clientJid);
-        return hap == null ? defaultServer.port : hap.port;
+        return snapshot.getOrigin(clientJid).port;
     }
 
     /**
@@ -139,7 +159,7 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
     @Override
     public Set<String> getSilencedUsers() {
         HashSet silencedUsersClone = new LinkedHashSet<>();
-        for (String silencedUser : silencedUsers) {
+        for (String silencedUser : snapshot.getSilencedUsers()) {
             silencedUsersClone.add(silencedUser);
         }
         return silencedUsersClone;
@@ -148,12 +168,36 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
     @Override
     public Map<String, String> getMultiplexedUsers() {
         Map<String, String> multiplexedUsersClone = new HashMap<>();
-        for (String clientJid : multiplexedUsers.keySet()) {
-            multiplexedUsersClone.put(clientJid, multiplexedUsers.get(clientJid).toString());
+        for (Map.Entry<String, OriginGroup> each : snapshot.getMultiplexedUsers().entrySet()) {
+            multiplexedUsersClone.put(each.getKey(), describeRoute(each.getValue()));
         }
         return multiplexedUsersClone;
     }
 
+    @Override
+    public Map<String, String> getOriginGroups() {
+        Map<String, String> groupsClone = new LinkedHashMap<>();
+        for (OriginGroup each : snapshot.getGroups().values()) {
+            StringBuilder description = new StringBuilder(each.getStrategy().name());
+            for (HostAndPort member : each.getMembers()) {
+                description.append(" ").append(member);
+            }
+            groupsClone.put(each.getName(), description.toString());
+        }
+        return groupsClone;
+    }
+
+    /**
+     * Describes the given route, as shown by the administration protocol
+     * (i.e. "host port" for a single server, or "GROUP name" for a named group).
+     *
+     * @param route The route.
+     * @return The route's description.
+     */
+    private static String describeRoute(OriginGroup route) {
+        return route.getName() == null ? route.toString() : "GROUP " + route.getName();
+    }
+
 
     // ConfigurationsConsumer
 
@@ -163,53 +207,135 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
      * @param isL337 the L337 new value.
      */
     @Override
-    public void setL337Processing(boolean isL337) {
-        this.processL337 = isL337;
+    public synchronized void setL337Processing(boolean isL337) {
+        snapshot = snapshot.withProcessL337(isL337);
+    }
+
+    /**
+     * Sets the speculative connects property (when {@code true}, origin server connections will start
+     * while clients are still authenticating).
+     *
+     * @param speculativeConnects The speculative connects new value.
+     */
+    @Override
+    public synchronized void setSpeculativeConnects(boolean speculativeConnects) {
+        snapshot = snapshot.withSpeculativeConnects(speculativeConnects);
     }
 
     @Override
-    public void silenceUser(String username) {
-        silencedUsers.add(username);
+    public synchronized void setWarmConnections(int warmConnections) {
+        snapshot = snapshot.withWarmConnections(warmConnections);
+    }
+
+    /**
+     * Returns the amount of already connected sockets that each selector keeps for each origin server.
+     *
+     * @return The amount of warm connections (0 means that connections are not pooled).
+     */
+    public int getWarmConnections() {
+        return snapshot.getWarmConnections();
     }
 
     @Override
-    public void unSilenceUser(String username) {
-        silencedUsers.remove(username);
+    public synchronized void silenceUser(String username) {
+        snapshot = snapshot.withSilencedUser(username, true);
     }
 
     @Override
-    public void setDefaultServer(String host, int port) {
+    public synchronized void unSilenceUser(String username) {
+        snapshot = snapshot.withSilencedUser(username, false);
+    }
 
-        defaultServer = new HostAndPort(host, port);
+    @Override
+    public synchronized void setDefaultServer(String host, int port) {
+        snapshot = snapshot.withDefaultRoute(OriginGroup.single(new HostAndPort(host, port), metricsProvider,
+                healthMonitor));
+    }
 
+    @Override
+    public synchronized void setDefaultGroup(String groupName) {
+        snapshot = snapshot.withDefaultRoute(getGroup(groupName));
     }
 
+    /**
+     * Returns the default route, as shown by the administration protocol
+     * (i.e. "host port" for a single server, or "GROUP name" for a named group).
+     *
+     * @return The default route's description.
+     */
+    @Override
+    public String getDefaultRoute() {
+        return describeRoute(snapshot.getDefaultRoute());
+    }
+
+    /**
+     * Returns the host of the default server (the first member, if the default route is a group).
+     *
+     * @return The default server host.
+     */
     public String getDefaultServerHost() {
-        if (defaultServer != null) return defaultServer.host;
-        return null;
+        return snapshot.getDefaultRoute().getMembers().get(0).host;
     }
 
+    /**
+     * Returns the port of the default server (the first member, if the default route is a group).
+     *
+     * @return The default server port.
+     */
     public String getDefaultServerPort() {
-        if (defaultServer != null) return String.valueOf(defaultServer.port);
-        return null;
+        return String.valueOf(snapshot.getDefaultRoute().getMembers().get(0).port);
     }
 
     @Override
-    public void multiplexUser(String clientJid, String host, int port) {
+    public synchronized void multiplexUser(String clientJid, String host, int port) {
         if (clientJid == null) {
             // Rest of params are checked when creating HostAndPort object
             throw new IllegalArgumentException();
         }
-        HostAndPort hap = multiplexedUsers.get(clientJid);
-        if (hap == null) {
-            hap = defaultServer;
+        snapshot = snapshot.withMultiplexedUser(clientJid,
+                OriginGroup.single(new HostAndPort(host, port), metricsProvider, healthMonitor));
+    }
+
+    @Override
+    public synchronized void multiplexUserToGroup(String clientJid, String groupName) {
+        if (clientJid == null) {
+            throw new IllegalArgumentException();
+        }
+        snapshot = snapshot.withMultiplexedUser(clientJid, getGroup(groupName));
+    }
+
+    @Override
+    public synchronized void setOriginGroup(String name, OriginGroup.Strategy strategy, List<HostAndPort> members) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        // Members are checked when creating the group
+        snapshot = snapshot.withGroup(new OriginGroup(name, strategy, members, metricsProvider, healthMonitor));
+    }
+
+    @Override
+    public synchronized void removeOriginGroup(String name) {
+        snapshot = snapshot.withoutGroup(name);
+    }
+
+    /**
+     * Returns the named group with the given name.
+     *
+     * @param groupName The group's name.
+     * @return The group.
+     * @throws IllegalArgumentException If there is no group with the given name.
+     */
+    private OriginGroup getGroup(String groupName) {
+        OriginGroup group = snapshot.getGroups().get(groupName);
+        if (group == null) {
+            throw new IllegalArgumentException();
         }
-        multiplexedUsers.put(clientJid, new HostAndPort(host, port));
+        return group;
     }
 
     @Override
-    public void multiplexToDefaultServer(String userJid) {
-        multiplexedUsers.remove(userJid);
+    public synchronized void multiplexToDefaultServer(String userJid) {
+        snapshot = snapshot.withMultiplexedUser(userJid, null);
     }
 
 
@@ -222,12 +348,13 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
 
     /**
      * Class that encapsulates host and port.
+     * Instances are immutable, and equal when both host and port are equal (so they can be used as keys).
      */
-    private static class HostAndPort {
-        private final String host;
-        private final int port;
+    public static final class HostAndPort {
+        /* package */ final String host;
+        /* package */ final int port;
 
-        private HostAndPort(String host, int port) {
+        public HostAndPort(String host, int port) {
             if (host == null || host.isEmpty() || port < 0 || port > 0xFFFF) {
                 throw new IllegalArgumentException();
             }
@@ -235,6 +362,31 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
             this.port = port;
         }
 
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof HostAndPort)) {
+                return false;
+            }
+            HostAndPort that = (HostAndPort) o;
+            return port == that.port && host.equals(that.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * host.hashCode() + port;
+        }
+
         @Override
         public String toString() {
             return host + " " + port;
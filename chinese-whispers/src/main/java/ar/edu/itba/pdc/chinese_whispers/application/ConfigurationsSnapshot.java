@@ -0,0 +1,329 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable and versioned view of the system configurations.
+ * <p>
+ * Snapshots are never changed. Each configuration change creates a new snapshot (with a greater version),
+ * copying the previous one, so snapshots can be read by any thread without locking,
+ * and readers can cache decisions taken from a snapshot till the version changes.
+ */
+public final class ConfigurationsSnapshot {
+
+    /**
+     * The version of this snapshot (greater versions are newer).
+     */
+    private final long version;
+    /**
+     * States if the system is l337ing.
+     */
+    private final boolean processL337;
+    /**
+     * States if connections to the origin server start while clients are still authenticating.
+     */
+    private final boolean speculativeConnects;
+    /**
+     * Amount of already connected sockets that each selector keeps for each origin server.
+     */
+    private final int warmConnections;
+    /**
+     * Stores users that are being silenced.
+     */
+    private final Set<String> silencedUsers;
+    /**
+     * Stores to which route (a single server, or a named group) is being multiplexed each user
+     * belonging to this map key set.
+     */
+    private final Map<String, OriginGroup> multiplexedUsers;
+    /**
+     * Stores the route used by users that are not multiplexed (a single server, or a named group).
+     */
+    private final OriginGroup defaultRoute;
+    /**
+     * Stores the named origin groups (by name).
+     */
+    private final Map<String, OriginGroup> groups;
+    /**
+     * Stores all the origin servers (i.e. the members of the default route, and of those to which users
+     * are multiplexed).
+     */
+    private final Set<Configurations.HostAndPort> origins;
+
+
+    /* package */ ConfigurationsSnapshot(OriginGroup defaultRoute) {
+        this(0, false, false, 0, Collections.emptySet(), Collections.emptyMap(), defaultRoute,
+                Collections.emptyMap());
+    }
+
+    private ConfigurationsSnapshot(long version, boolean processL337, boolean speculativeConnects,
+                                   int warmConnections, Set<String> silencedUsers,
+                                   Map<String, OriginGroup> multiplexedUsers, OriginGroup defaultRoute,
+                                   Map<String, OriginGroup> groups) {
+        if (defaultRoute == null || warmConnections < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.version = version;
+        this.processL337 = processL337;
+        this.speculativeConnects = speculativeConnects;
+        this.warmConnections = warmConnections;
+        this.silencedUsers = Collections.unmodifiableSet(silencedUsers);
+        this.multiplexedUsers = Collections.unmodifiableMap(multiplexedUsers);
+        this.defaultRoute = defaultRoute;
+        this.groups = Collections.unmodifiableMap(groups);
+        Set<Configurations.HostAndPort> origins = new LinkedHashSet<>();
+        origins.addAll(defaultRoute.getMembers());
+        for (OriginGroup each : multiplexedUsers.values()) {
+            origins.addAll(each.getMembers());
+        }
+        this.origins = Collections.unmodifiableSet(origins);
+    }
+
+
+    /**
+     * Returns this snapshot's version. Each configuration change increments the version.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the l337 property (when {@code true}, system is L337ing messages).
+     *
+     * @return The l337 property.
+     */
+    public boolean isProcessL337() {
+        return processL337;
+    }
+
+    /**
+     * Returns the speculative connects property (when {@code true}, the connection to the default server starts
+     * as soon as a client opens its stream, while it's still authenticating).
+     *
+     * @return The speculative connects property.
+     */
+    public boolean isSpeculativeConnects() {
+        return speculativeConnects;
+    }
+
+    /**
+     * Returns the amount of already connected sockets that each selector keeps for each origin server
+     * (0 means that connections are not pooled).
+     *
+     * @return The amount of warm connections.
+     */
+    public int getWarmConnections() {
+        return warmConnections;
+    }
+
+    /**
+     * Returns all the origin servers (i.e. the members of the default route, and of those to which users
+     * are multiplexed).
+     *
+     * @return An unmodifiable set with the origin servers.
+     */
+    public Set<Configurations.HostAndPort> getOrigins() {
+        return origins;
+    }
+
+    /**
+     * Returns {@code true} if the user is silenced (i.e. it can receive messages, but not send).
+     *
+     * @param clientJid The user's JID.
+     * @return {@code true} if the user is silenced, or {@code false} otherwise.
+     */
+    public boolean isSilenced(String clientJid) {
+        return silencedUsers.contains(clientJid);
+    }
+
+    /**
+     * Returns the route (a single server, or a named group) to which the user must be connected.
+     *
+     * @param clientJid The user's JID.
+     * @return The route.
+     */
+    public OriginGroup getRoute(String clientJid) {
+        OriginGroup route = multiplexedUsers.get(clientJid);
+        return route == null ? defaultRoute : route;
+    }
+
+    /**
+     * Chooses the origin server to which a new session of the user must be connected.
+     * Note that each call might choose a different member of the user's route (depending on its strategy).
+     *
+     * @param clientJid The user's JID.
+     * @return The chosen origin server.
+     */
+    public Configurations.HostAndPort getOrigin(String clientJid) {
+        return getRoute(clientJid).choose(clientJid);
+    }
+
+    /**
+     * Returns the route used by users that are not multiplexed.
+     *
+     * @return The default route.
+     */
+    public OriginGroup getDefaultRoute() {
+        return defaultRoute;
+    }
+
+    /* package */ Set<String> getSilencedUsers() {
+        return silencedUsers;
+    }
+
+    /* package */ Map<String, OriginGroup> getMultiplexedUsers() {
+        return multiplexedUsers;
+    }
+
+    /* package */ Map<String, OriginGroup> getGroups() {
+        return groups;
+    }
+
+
+    /**
+     * Creates a new snapshot with the given l337 property.
+     *
+     * @param processL337 The new l337 property.
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withProcessL337(boolean processL337) {
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, multiplexedUsers, defaultRoute, groups);
+    }
+
+    /**
+     * Creates a new snapshot with the given speculative connects property.
+     *
+     * @param speculativeConnects The new speculative connects property.
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withSpeculativeConnects(boolean speculativeConnects) {
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, multiplexedUsers, defaultRoute, groups);
+    }
+
+    /**
+     * Creates a new snapshot with the given amount of warm connections.
+     *
+     * @param warmConnections The new amount of warm connections.
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withWarmConnections(int warmConnections) {
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, multiplexedUsers, defaultRoute, groups);
+    }
+
+    /**
+     * Creates a new snapshot in which the given user is silenced or not.
+     *
+     * @param clientJid The user's JID.
+     * @param silenced  Whether the user is silenced.
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withSilencedUser(String clientJid, boolean silenced) {
+        Set<String> newSilencedUsers = new HashSet<>(silencedUsers);
+        if (silenced) {
+            newSilencedUsers.add(clientJid);
+        } else {
+            newSilencedUsers.remove(clientJid);
+        }
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                newSilencedUsers, multiplexedUsers, defaultRoute, groups);
+    }
+
+    /**
+     * Creates a new snapshot in which the given user is multiplexed to the given route.
+     *
+     * @param clientJid The user's JID.
+     * @param route     The route (a single server, or a named group) to which the user is multiplexed,
+     *                  or {@code null} to use the default route.
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withMultiplexedUser(String clientJid, OriginGroup route) {
+        checkRoute(route);
+        Map<String, OriginGroup> newMultiplexedUsers = new HashMap<>(multiplexedUsers);
+        if (route != null) {
+            newMultiplexedUsers.put(clientJid, route);
+        } else {
+            newMultiplexedUsers.remove(clientJid);
+        }
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, newMultiplexedUsers, defaultRoute, groups);
+    }
+
+    /**
+     * Creates a new snapshot with the given default route.
+     *
+     * @param defaultRoute The new default route (a single server, or a named group).
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withDefaultRoute(OriginGroup defaultRoute) {
+        checkRoute(defaultRoute);
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, multiplexedUsers, defaultRoute, groups);
+    }
+
+    /**
+     * Creates a new snapshot in which the given named group is added, or replaces the group with the same name
+     * (in which case, routes using the replaced group use the new one).
+     *
+     * @param group The group.
+     * @return The new snapshot.
+     */
+    /* package */ ConfigurationsSnapshot withGroup(OriginGroup group) {
+        if (group == null || group.getName() == null) {
+            throw new IllegalArgumentException();
+        }
+        OriginGroup replaced = groups.get(group.getName());
+        Map<String, OriginGroup> newGroups = new LinkedHashMap<>(groups);
+        newGroups.put(group.getName(), group);
+        Map<String, OriginGroup> newMultiplexedUsers = new HashMap<>(multiplexedUsers);
+        if (replaced != null) {
+            newMultiplexedUsers.replaceAll((clientJid, route) -> route == replaced ? group : route);
+        }
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, newMultiplexedUsers, defaultRoute == replaced ? group : defaultRoute, newGroups);
+    }
+
+    /**
+     * Creates a new snapshot in which the given named group is removed.
+     *
+     * @param name The group's name.
+     * @return The new snapshot.
+     * @throws IllegalArgumentException If there is no group with the given name.
+     * @throws IllegalStateException    If the group is being used as a route.
+     */
+    /* package */ ConfigurationsSnapshot withoutGroup(String name) {
+        OriginGroup removed = groups.get(name);
+        if (removed == null) {
+            throw new IllegalArgumentException();
+        }
+        if (defaultRoute == removed || multiplexedUsers.containsValue(removed)) {
+            throw new IllegalStateException("Group " + name + " is being used");
+        }
+        Map<String, OriginGroup> newGroups = new LinkedHashMap<>(groups);
+        newGroups.remove(name);
+        return new ConfigurationsSnapshot(version + 1, processL337, speculativeConnects, warmConnections,
+                silencedUsers, multiplexedUsers, defaultRoute, newGroups);
+    }
+
+
+    /**
+     * Checks that the given route is a single server, or a group belonging to this snapshot.
+     *
+     * @param route The route to be checked ({@code null} is accepted).
+     */
+    private void checkRoute(OriginGroup route) {
+        if (route != null && route.getName() != null && groups.get(route.getName()) != route) {
+            throw new IllegalArgumentException();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters of a single proxied connection (bytes read and sent, and stanzas read),
+ * together with the JID of the user it belongs to.
+ * <p>
+ * Counters are only written by the thread driving the selector that handles the connection, so updating them
+ * needs no locking nor atomic operations (they are volatile so the administration thread can read them).
+ * Registered connections are aggregated on demand by the {@link MetricsManager}, so the hot path never touches
+ * shared counters.
+ */
+public final class ConnectionMetrics {
+
+    /**
+     * Generates the connections identifiers.
+     */
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Identifies the connection in the metrics breakdowns.
+     */
+    private final long id;
+    /**
+     * The remote address of the connection ({@code null} till it's registered).
+     */
+    private volatile String address;
+    /**
+     * The JID of the user this connection belongs to ({@code null} if it's not known yet).
+     */
+    private volatile String jid;
+    /**
+     * Amount of bytes read from the connection.
+     */
+    private volatile long readBytes;
+    /**
+     * Amount of bytes sent through the connection.
+     */
+    private volatile long sentBytes;
+    /**
+     * Amount of stanzas read from the connection.
+     */
+    private volatile long stanzas;
+    /**
+     * Says if these metrics are registered in the {@link MetricsManager} (only used by the owner thread).
+     */
+    private boolean registered;
+    /**
+     * Says if these metrics were unregistered (i.e. the connection was closed), so they can't be registered again.
+     */
+    private boolean unregistered;
+
+
+    public ConnectionMetrics() {
+        this.id = nextId.incrementAndGet();
+        this.registered = false;
+        this.unregistered = false;
+    }
+
+    /**
+     * Returns the identifier of the connection.
+     *
+     * @return The identifier.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the remote address of the connection.
+     *
+     * @return The address, or {@code null} if it's not known.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets the remote address of the connection.
+     *
+     * @param address The address.
+     */
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Returns the JID of the user this connection belongs to.
+     *
+     * @return The JID, or {@code null} if it's not known yet.
+     */
+    public String getJid() {
+        return jid;
+    }
+
+    /**
+     * Sets the JID of the user this connection belongs to.
+     *
+     * @param jid The JID.
+     */
+    public void setJid(String jid) {
+        this.jid = jid;
+    }
+
+    /**
+     * Says if these metrics are registered in the {@link MetricsManager}.
+     *
+     * @return {@code true} if they are registered, or {@code false} otherwise.
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    /**
+     * Marks these metrics as registered, unless they were already unregistered.
+     *
+     * @return {@code true} if they became registered, or {@code false} otherwise.
+     */
+    /* package */ boolean markRegistered() {
+        if (registered || unregistered) {
+            return false;
+        }
+        registered = true;
+        return true;
+    }
+
+    /**
+     * Marks these metrics as unregistered (for good).
+     *
+     * @return {@code true} if they were registered, or {@code false} otherwise.
+     */
+    /* package */ boolean markUnregistered() {
+        boolean wasRegistered = registered;
+        registered = false;
+        unregistered = true;
+        return wasRegistered;
+    }
+
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getStanzas() {
+        return stanzas;
+    }
+
+    // Note: Only the owner thread writes the counters, so non-atomic increments are safe
+
+    public void addReadBytes(long readBytes) {
+        this.readBytes += readBytes;
+    }
+
+    public void addSentBytes(long sentBytes) {
+        this.sentBytes += sentBytes;
+    }
+
+    public void addStanzas(long stanzas) {
+        this.stanzas += stanzas;
+    }
+}
@@ -1,37 +1,59 @@
 package ar.edu.itba.pdc.chinese_whispers.application;
 
-import java.util.HashSet;
-import java.util.Random;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class implements a method to get different ids each time it is called.
+ * <p>
+ * Ids are unique without remembering them: each thread (i.e. each selector) owns a prefix and a counter, and their
+ * concatenation is encrypted with a keyed permutation (a Feistel network, whose keys are randomly chosen at start up),
+ * so ids can't be predicted from previous ones. As the permutation is a bijection, different inputs can't produce
+ * the same id. The result is encoded with the URL-safe base 64 alphabet.
+ * <p>
+ * This class is thread safe, and keeps no shared mutable state.
+ * Note: Ids are unique while less than 65536 threads generate them, each one generating less than 2^48 ids.
  */
 public class IdGenerator {
 
     /**
-     * This set contains all ids already used
+     * Length of generated ids.
      */
-    private final static Set<String> usedIds = new HashSet<>();
+    public static final int ID_LENGTH = 11;
 
     /**
-     * Random to get random values
+     * Characters used to encode ids (6 bits each).
      */
-    private final static Random random = new Random();
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .getBytes(StandardCharsets.US_ASCII);
 
     /**
-     * To get different ids each time, when generating a random value,
-     * it is checked if the {@code usedIds} set contains that value.
-     * If the set contains the generated value, another value is generated.
-     * It might happen (but it is not probable) to enter an infinite loop,
-     * so the process is repeated, at most, the amount of times this constant states.
+     * Amount of bits of each thread's counter (the rest of the 64 bits hold the thread's prefix).
      */
-    private final static int MAX_RANDOM_TRIES = 100;
+    private static final int COUNTER_BITS = 48;
+
     /**
-     * In case the count reached the {@link IdGenerator#MAX_RANDOM_TRIES} value,
-     * a fallback strategy is done.
+     * Keys of each round of the Feistel network.
      */
-    private static int fallbackIds = 0;
+    private static final int[] ROUND_KEYS = new int[4];
+
+    /**
+     * Assigns prefixes to threads.
+     */
+    private static final AtomicInteger nextPrefix = new AtomicInteger();
+
+    /**
+     * The sequence of each thread.
+     */
+    private static final ThreadLocal<Sequence> sequences = ThreadLocal.withInitial(Sequence::new);
+
+    static {
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < ROUND_KEYS.length; i++) {
+            ROUND_KEYS[i] = random.nextInt();
+        }
+    }
 
 
     /**
@@ -40,23 +62,89 @@ public class IdGenerator {
      * @return A Stream Id (RFC 6120, section 4.7.3) for the response stream.
      */
     public static String generateId() {
+        byte[] id = new byte[ID_LENGTH];
+        generateId(id, 0);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
 
-        String result;
-        int count = 0;
-        do {
-            long aux = random.nextLong();
-            if (aux < 0) {
-                aux *= -1; // Non negative ids.
-            }
-            result = String.valueOf(aux);
-            count++;
+    /**
+     * Generates a random and unique id, writing it (as ASCII characters) into the given array.
+     * This method allocates nothing.
+     *
+     * @param destination The array in which the id will be written.
+     * @param offset      The position from which the id will be written ({@link #ID_LENGTH} bytes are needed).
+     * @return The position after the id.
+     */
+    public static int generateId(byte[] destination, int offset) {
+        if (destination == null || offset < 0 || offset + ID_LENGTH > destination.length) {
+            throw new IllegalArgumentException();
+        }
+        long value = permute(sequences.get().next());
+        for (int i = offset + ID_LENGTH - 1; i >= offset; i--) {
+            destination[i] = ALPHABET[(int) (value & 0x3F)];
+            value >>>= 6;
         }
-        while (usedIds.contains(result) && count < MAX_RANDOM_TRIES);
-        if (count >= MAX_RANDOM_TRIES) {
-            result = "NotRandom" + String.valueOf(fallbackIds++);
+        return offset + ID_LENGTH;
+    }
+
+    /**
+     * Encrypts the given value with a balanced Feistel network (i.e. a keyed bijection over 64 bits).
+     *
+     * @param value The value to encrypt.
+     * @return The encrypted value.
+     */
+    private static long permute(long value) {
+        int left = (int) (value >>> 32);
+        int right = (int) value;
+        for (int roundKey : ROUND_KEYS) {
+            int newRight = left ^ round(right, roundKey);
+            left = right;
+            right = newRight;
         }
-        usedIds.add(result);
-        return result;
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
     }
 
+    /**
+     * The Feistel network's round function (MurmurHash3's finalizer over the keyed half).
+     */
+    private static int round(int half, int key) {
+        int h = half ^ key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+
+    /**
+     * The prefix and counter of a thread.
+     */
+    private static final class Sequence {
+
+        /**
+         * The thread's prefix, already shifted to the high bits.
+         */
+        private final long prefix;
+        /**
+         * The next value of the thread's counter.
+         */
+        private long counter;
+
+
+        private Sequence() {
+            this.prefix = (long) nextPrefix.getAndIncrement() << COUNTER_BITS;
+            this.counter = 0;
+        }
+
+        /**
+         * Returns the next (prefixed) value of this sequence.
+         *
+         * @return The value.
+         */
+        private long next() {
+            return prefix | (counter++ & ((1L << COUNTER_BITS) - 1));
+        }
+    }
 }
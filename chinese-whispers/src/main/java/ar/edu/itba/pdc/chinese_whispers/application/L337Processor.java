@@ -1,6 +1,7 @@
 package ar.edu.itba.pdc.chinese_whispers.application;
 
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.CharacterSink;
 
 import java.util.logging.Logger;
 
@@ -12,6 +13,42 @@ import java.util.logging.Logger;
  */
 public class L337Processor implements ApplicationProcessor {
 
+	/**
+	 * Maps each ASCII character to itself if it's kept, or to 0 if it must be escaped.
+	 * Non-ASCII characters are always kept.
+	 */
+	private final static char[] ESCAPED_CHARACTERS = new char[128];
+
+	/**
+	 * Maps each ASCII character to the character that replaces it when l3373d (itself if it's kept, or 0 if it must
+	 * be escaped). Non-ASCII characters are always kept.
+	 */
+	private final static char[] L337_CHARACTERS = new char[128];
+
+	/**
+	 * Holds the escape sequences of the ASCII characters mapped to 0.
+	 */
+	private final static String[] ESCAPES = new String[128];
+
+	static {
+		ESCAPES['<'] = "&lt;";
+		ESCAPES['>'] = "&gt;";
+		ESCAPES['&'] = "&amp;";
+		ESCAPES['\''] = "&apos;";
+		ESCAPES['\"'] = "&quot;";
+		for (char c = 0; c < ESCAPED_CHARACTERS.length; c++) {
+			ESCAPED_CHARACTERS[c] = ESCAPES[c] == null ? c : 0;
+		}
+
+		System.arraycopy(ESCAPED_CHARACTERS, 0, L337_CHARACTERS, 0, ESCAPED_CHARACTERS.length);
+		L337_CHARACTERS['A'] = L337_CHARACTERS['a'] = '4';
+		L337_CHARACTERS['E'] = L337_CHARACTERS['e'] = '3';
+		L337_CHARACTERS['I'] = L337_CHARACTERS['i'] = '1';
+		L337_CHARACTERS['O'] = L337_CHARACTERS['o'] = '0';
+		L337_CHARACTERS['C'] = L337_CHARACTERS['c'] = 0; // Replaced by "<", which must be escaped
+		L337_CHARACTERS['T'] = L337_CHARACTERS['t'] = '7';
+		ESCAPES['C'] = ESCAPES['c'] = ESCAPES['<'];
+	}
 
 	/**
 	 * Holds the system configurations.
@@ -41,57 +78,92 @@ public class L337Processor implements ApplicationProcessor {
 
 	@Override
 	public void processMessageBody(StringBuilder stringBuilder, char[] message, boolean isInBodyTag) {
+		if (message == null) {
+			LogHelper.getLogger(getClass()).warn("A null stringBuilder or message is being passed to l337Processor");
+			return;
+		}
+		processMessageBody(stringBuilder, message, 0, message.length, isInBodyTag);
+	}
+
+
+	@Override
+	public void processMessageBody(StringBuilder stringBuilder, char[] message, int offset, int length,
+								   boolean isInBodyTag) {
 		if (stringBuilder == null || message == null) {
 			LogHelper.getLogger(getClass()).warn("A null stringBuilder or message is being passed to l337Processor");
 			return;
 		}
-		//Append l3373d or normal characters as appropriate
-		for (char c : message) {
-			switch (c) {
-				case 'A':
-				case 'a':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "4": c);
-					break;
-				case 'E':
-				case 'e':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "3": c);
-					break;
-				case 'I':
-				case 'i':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "1": c);
-					break;
-				case 'O':
-				case 'o':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "0": c);
-					break;
-				case 'C':
-				case 'c':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "&lt;": c);
-					break;
-				case 'T':
-				case 't':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "7": c);
-					break;
-				case '<':
-					stringBuilder.append("&lt;");
-					break;
-				case '>':
-					stringBuilder.append("&gt;");
-					break;
-				case '&':
-					stringBuilder.append("&amp;");
-					break;
-				case '\'':
-					stringBuilder.append("&apos;");
-					break;
-				case '\"':
-					stringBuilder.append("&quot;");
-					break;
-				default:
-					stringBuilder.append(c);
-					break;
+		if (offset < 0 || length < 0 || offset + length > message.length) {
+			throw new IllegalArgumentException();
+		}
+		char[] replacements = getReplacements(isInBodyTag);
+		int end = offset + length;
+		int runStart = offset;
+		//Append l3373d or normal characters as appropriate, copying unchanged runs at once
+		for (int i = offset; i < end; i++) {
+			char c = message[i];
+			if (c < replacements.length && replacements[c] != c) {
+				if (i > runStart) {
+					stringBuilder.append(message, runStart, i - runStart);
+				}
+				if (replacements[c] != 0) {
+					stringBuilder.append(replacements[c]);
+				} else {
+					stringBuilder.append(ESCAPES[c]);
+				}
+				runStart = i + 1;
 			}
 		}
+		if (end > runStart) {
+			stringBuilder.append(message, runStart, end - runStart);
+		}
+	}
+
+
+	@Override
+	public void processMessageBody(CharacterSink sink, char[] message, int offset, int length, boolean isInBodyTag) {
+		if (sink == null || message == null || offset < 0 || length < 0 || offset + length > message.length) {
+			throw new IllegalArgumentException();
+		}
+		char[] replacements = getReplacements(isInBodyTag);
+		int end = offset + length;
+		int runStart = offset;
+		//Append l3373d or normal characters as appropriate, copying unchanged runs at once
+		for (int i = offset; i < end; i++) {
+			char c = message[i];
+			if (c < replacements.length && replacements[c] != c) {
+				if (i > runStart) {
+					sink.append(message, runStart, i - runStart);
+				}
+				if (replacements[c] != 0) {
+					sink.append(replacements, c, 1);
+				} else {
+					sink.append(ESCAPES[c]);
+				}
+				runStart = i + 1;
+			}
+		}
+		if (end > runStart) {
+			sink.append(message, runStart, end - runStart);
+		}
+	}
+
+
+	/**
+	 * Returns the replacements table to be used for a message.
+	 * Note: The configuration is read only once per message.
+	 *
+	 * @param isInBodyTag Boolean telling if the message is in a bodyTag.
+	 * @return The replacements table.
+	 */
+	private char[] getReplacements(boolean isInBodyTag) {
+		return isInBodyTag && configurations.isProcessL337() ? L337_CHARACTERS : ESCAPED_CHARACTERS;
+	}
+
+
+	@Override
+	public boolean transformsMessageBodies() {
+		return configurations.isProcessL337();
 	}
 
 
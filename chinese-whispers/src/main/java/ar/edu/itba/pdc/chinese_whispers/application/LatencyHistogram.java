@@ -0,0 +1,149 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory log-linear histogram of durations (in nanoseconds).
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so recorded values are kept with a relative
+ * error below 1 / {@link #SUB_BUCKETS} (about 6%), from 1 nanosecond up to {@link #MAX_TRACKABLE_VALUE} (larger
+ * values are counted in the last bucket, although the maximum is tracked exactly).
+ * <p>
+ * This class is thread safe: values can be recorded by every selector's thread while the administration one reads
+ * percentiles (which are computed from a non-atomic snapshot, so they may miss values being recorded).
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Amount of bits used to index the linear buckets of each power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    /**
+     * Amount of linear buckets of each power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Amount of bits of the largest trackable value.
+     */
+    private static final int MAX_VALUE_BITS = 40;
+    /**
+     * The largest value that is kept in its own bucket (about 18 minutes, in nanoseconds).
+     */
+    private static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    /**
+     * Counts of the values that fall in each bucket.
+     */
+    private final AtomicLongArray buckets;
+    /**
+     * The largest recorded value.
+     */
+    private final AtomicLong max;
+
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(bucketIndex(MAX_TRACKABLE_VALUE) + 1);
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration (in nanoseconds). Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets.incrementAndGet(bucketIndex(Math.min(value, MAX_TRACKABLE_VALUE)));
+        long actualMax = max.get();
+        while (value > actualMax && !max.compareAndSet(actualMax, value)) {
+            actualMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the amount of recorded values.
+     *
+     * @return The amount of values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return The maximum (in nanoseconds), or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the values at the given quantiles, computed over a single snapshot of the buckets.
+     * Each value is the upper bound of the bucket holding the quantile (never above the recorded maximum).
+     *
+     * @param quantiles The quantiles (between 0 and 1), in increasing order.
+     * @return The values at each quantile (in nanoseconds), all 0 if nothing was recorded.
+     */
+    public long[] getValuesAtQuantiles(double... quantiles) {
+        long[] snapshot = new long[buckets.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            count += snapshot[i];
+        }
+        long actualMax = max.get();
+        long[] values = new long[quantiles.length];
+        if (count == 0) {
+            return values;
+        }
+        int bucket = 0;
+        long seen = snapshot[0];
+        for (int i = 0; i < quantiles.length; i++) {
+            if (quantiles[i] < 0 || quantiles[i] > 1 || (i > 0 && quantiles[i] < quantiles[i - 1])) {
+                throw new IllegalArgumentException();
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantiles[i] * count));
+            while (seen < rank && bucket < snapshot.length - 1) {
+                seen += snapshot[++bucket];
+            }
+            values[i] = Math.min(bucketUpperBound(bucket), actualMax);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the index of the bucket holding the given value.
+     *
+     * @param value The value (between 0 and {@link #MAX_TRACKABLE_VALUE}).
+     * @return The bucket's index.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value; // Small values have their own buckets
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // At least SUB_BUCKET_BITS
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value held by the given bucket.
+     *
+     * @param index The bucket's index.
+     * @return The bucket's upper bound.
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
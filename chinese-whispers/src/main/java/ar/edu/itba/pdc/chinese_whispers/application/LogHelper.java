@@ -2,14 +2,14 @@ package ar.edu.itba.pdc.chinese_whispers.application;
 
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Log manager that keeps track of loggers per class, giving the same logger instance to every call of the same class.
  */
 public class LogHelper {
-    private static Map<Class, org.slf4j.Logger> loggers = new HashMap<>();
+    private static Map<Class, org.slf4j.Logger> loggers = new ConcurrentHashMap<>(); // Used by all selectors
 
     /**
      * Gets a {@link org.slf4j.Logger} instance for the specified class. All instances of the same class will receive
@@ -20,9 +20,6 @@ public class LogHelper {
      * @return The corresponding logger instance.
      */
     public static org.slf4j.Logger getLogger(Class klass) {
-        if(!loggers.containsKey(klass)) {
-            loggers.put(klass, LoggerFactory.getLogger(klass));
-        }
-        return loggers.get(klass);
+        return loggers.computeIfAbsent(klass, LoggerFactory::getLogger);
     }
 }
@@ -2,6 +2,7 @@ package ar.edu.itba.pdc.chinese_whispers.application;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.handlers.AdminAcceptorHandler;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelectorGroup;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.ClosingManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.XMPPAcceptorHandler;
@@ -18,6 +19,7 @@ public class Main {
     private static  int xmppProxyPort;
     private static  int defaultPort;
     private static  String defaultServer;
+    private static  int reactors;
 
 
 //    // TODO: get them from parameters
@@ -28,7 +30,7 @@ public class Main {
     public static void main(String[] args) {
 
         final String usageMessage = "Usage: <xmpp-port> <admin-port> " +
-                "<default-xmpp-server-address> <default-xmpp-server-port>";
+                "<default-xmpp-server-address> <default-xmpp-server-port> [<reactors>]";
         if (args.length < 4) {
             System.out.println(usageMessage);
             System.exit(1);
@@ -38,6 +40,10 @@ public class Main {
             adminProtocolPort = new Integer(args[1]);
             defaultServer = args[2];
             defaultPort = new Integer(args[3]);
+            reactors = args.length > 4 ? Integer.parseInt(args[4]) : 0; // By default, everything in one selector
+            if (reactors < 0) {
+                throw new IllegalArgumentException();
+            }
         } catch (Exception e) {
             System.out.println(usageMessage);
             System.exit(1);
@@ -78,6 +84,14 @@ public class Main {
         ClosingManager.getInstance();
         StreamErrorsManager.getInstance();
 
+        // Start worker selectors (if requested). Accepted XMPP connections will be distributed among them.
+        try {
+            TCPSelectorGroup.getInstance().start(reactors);
+        } catch (Throwable e) {
+            logger.error("Couldn't start {} worker selectors. Aborting.", reactors);
+            return;
+        }
+
 
         // Main loop
         while (true) {
@@ -2,94 +2,540 @@ package ar.edu.itba.pdc.chinese_whispers.application;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by dgrimau on 03/11/16.
+ * <p>
+ * All counters are striped ({@link LongAdder}s), so they can be updated by every selector's thread
+ * (and read by the administration one) without contention. Connections traffic is counted by each connection
+ * in its own {@link ConnectionMetrics}, which are aggregated on demand.
  */
 public class MetricsManager implements MetricsProvider {
 
     /**
-     * Number of bytes read by the proxy
+     * Maximum amount of entries in the JIDs and connections breakdowns (those with more traffic are reported).
      */
-    private long readBytes;
+    private static final int MAX_BREAKDOWN_ENTRIES = 100;
 
     /**
-     * Number of bytes sent by the proxy
+     * Holds the singleton instance.
+     */
+    private static final MetricsManager singleton = new MetricsManager();
+
+    /**
+     * Traffic counters of the connections that are currently open (aggregated on demand).
+     */
+    private final Set<ConnectionMetrics> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of bytes read by the proxy through connections that were already closed
+     */
+    private final LongAdder readBytes = new LongAdder();
+
+    /**
+     * Number of bytes sent by the proxy through connections that were already closed
+     */
+    private final LongAdder sentBytes = new LongAdder();
+
+    /**
+     * Number of stanzas read by the proxy through connections that were already closed
      */
-    private long sentBytes;
+    private final LongAdder stanzas = new LongAdder();
 
     /**
      * Number of bytes read by the proxy for the administration protocol
      */
-    private long administrationReadBytes;
+    private final LongAdder administrationReadBytes = new LongAdder();
 
     /**
      * Number of bytes sent by the proxy for the administration protocol
      */
-    private long administrationSentBytes;
+    private final LongAdder administrationSentBytes = new LongAdder();
 
     /**
      * Number of messages silenced by the proxy
      */
-    private long numMessagesSilenced;
+    private final LongAdder numMessagesSilenced = new LongAdder();
 
     /**
-     * Total number of connexion to proxy
+     * Total number of connections accepted by the proxy
      */
-    private long numAccesses;//TODO check if this was it?
+    private final LongAdder numAccesses = new LongAdder();
 
     /**
-     * Holds the singleton instance.
+     * Number of connections that are currently open (updated by all the selectors' threads).
+     */
+    private final LongAdder activeConnections = new LongAdder();
+
+    /**
+     * Number of connections rejected because the maximum amount of connections was reached
+     */
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    /**
+     * Number of buffers held by the buffer pools
+     */
+    private final LongAdder bufferPoolCapacity = new LongAdder();
+
+    /**
+     * Number of pooled buffers being used
+     */
+    private final LongAdder bufferPoolInUse = new LongAdder();
+
+    /**
+     * Number of buffer requests served without allocating memory
+     */
+    private final LongAdder bufferPoolHits = new LongAdder();
+
+    /**
+     * Number of buffer requests that required allocating memory
+     */
+    private final LongAdder bufferPoolMisses = new LongAdder();
+
+    /**
+     * Number of buffers allocated outside the pools
+     */
+    private final LongAdder bufferPoolFallbacks = new LongAdder();
+
+    /**
+     * Number of host name resolutions served from the resolver's cache
+     */
+    private final LongAdder nameResolverHits = new LongAdder();
+
+    /**
+     * Number of host name resolutions that required a lookup
+     */
+    private final LongAdder nameResolverMisses = new LongAdder();
+
+    /**
+     * Number of lookups performed
+     */
+    private final LongAdder nameResolutions = new LongAdder();
+
+    /**
+     * Total time spent performing lookups (in milliseconds)
+     */
+    private final LongAdder nameResolutionTime = new LongAdder();
+
+    /**
+     * Number of lookups that failed
+     */
+    private final LongAdder nameResolutionFailures = new LongAdder();
+
+    /**
+     * Number of origin server connections taken from a pool
+     */
+    private final LongAdder originPoolHits = new LongAdder();
+
+    /**
+     * Number of origin server connections started because the pool was empty
+     */
+    private final LongAdder originPoolMisses = new LongAdder();
+
+    /**
+     * Number of connections that are currently open with each origin server
+     */
+    private final Map<Configurations.HostAndPort, LongAdder> originConnections = new ConcurrentHashMap<>();
+
+    /**
+     * State of the circuit breaker of each origin server that changed its state at least once
+     */
+    private final Map<Configurations.HostAndPort, String> originStates = new ConcurrentHashMap<>();
+
+    /**
+     * Number of origin servers circuit breakers state transitions
+     */
+    private final LongAdder originStateTransitions = new LongAdder();
+
+    /**
+     * Number of logins that failed fast because of open circuit breakers
+     */
+    private final LongAdder originFastFailures = new LongAdder();
+
+    /**
+     * Number of origin server connections routed to another group member because of failures
+     */
+    private final LongAdder originReroutes = new LongAdder();
+
+    /**
+     * Number of origin server connection retries scheduled
+     */
+    private final LongAdder originRetries = new LongAdder();
+
+    /**
+     * Number of origin server connection retries rejected because of too many pending retries
+     */
+    private final LongAdder originRetriesRejected = new LongAdder();
+
+    /**
+     * Time spent parsing read data (excluding bodies transformation)
+     */
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+
+    /**
+     * Time spent transforming messages bodies
+     */
+    private final LatencyHistogram transformTime = new LatencyHistogram();
+
+    /**
+     * Time output data waited in the output buffers till writing it started
+     */
+    private final LatencyHistogram queuedTime = new LatencyHistogram();
+
+    /**
+     * Time from the first attempt to write output data till it was fully written
+     */
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+
+    /**
+     * Time from reading data till the output it produced was fully written (i.e. the latency added by the proxy)
+     */
+    private final LatencyHistogram proxyLatency = new LatencyHistogram();
+    /**
+     * Time the selectors spent blocked in select operations
+     */
+    private final LatencyHistogram selectTime = new LatencyHistogram();
+
+    /**
+     * Time the selectors spent running "always-run" tasks
+     */
+    private final LatencyHistogram alwaysRunTasksTime = new LatencyHistogram();
+
+    /**
+     * Time the selectors spent running "nothing-to-do" tasks
+     */
+    private final LatencyHistogram nothingToDoTasksTime = new LatencyHistogram();
+
+    /**
+     * Amount of keys selected by each iteration of the selectors' event loops
      */
-    private static MetricsManager singleton;
+    private final LatencyHistogram selectedKeys = new LatencyHistogram();
 
+    /**
+     * Time taken by each callback (by name) of each handler type
+     */
+    private final Map<Class<?>, Map<String, LatencyHistogram>> handlerTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor (for singleton pattern).
+     */
     private MetricsManager() {
-        readBytes=0;
-        sentBytes=0;
-        numAccesses=0;
     }
 
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
     public static MetricsProvider getInstance() {
-        if (singleton == null) {
-            singleton = new MetricsManager();
-        }
         return singleton;
     }
 
     public Map<String,String> getMetrics(){
         Map<String,String> metrics = new HashMap();
-        metrics.put("numAccesses",String.valueOf(numAccesses));
-        metrics.put("sentBytes",String.valueOf(sentBytes));
-        metrics.put("readBytes",String.valueOf(readBytes));
-        metrics.put("administrationReadBytes",String.valueOf(administrationReadBytes));
-        metrics.put("administrationSentBytes",String.valueOf(administrationSentBytes));
-        metrics.put("numSilencedMessages",String.valueOf(numMessagesSilenced));
+        long totalReadBytes = readBytes.sum();
+        long totalSentBytes = sentBytes.sum();
+        long totalStanzas = stanzas.sum();
+        for (ConnectionMetrics each : connections) {
+            totalReadBytes += each.getReadBytes();
+            totalSentBytes += each.getSentBytes();
+            totalStanzas += each.getStanzas();
+        }
+        metrics.put("numAccesses",String.valueOf(numAccesses.sum()));
+        metrics.put("sentBytes",String.valueOf(totalSentBytes));
+        metrics.put("readBytes",String.valueOf(totalReadBytes));
+        metrics.put("stanzas",String.valueOf(totalStanzas));
+        metrics.put("administrationReadBytes",String.valueOf(administrationReadBytes.sum()));
+        metrics.put("administrationSentBytes",String.valueOf(administrationSentBytes.sum()));
+        metrics.put("numSilencedMessages",String.valueOf(numMessagesSilenced.sum()));
+        metrics.put("activeConnections",String.valueOf(activeConnections.sum()));
+        metrics.put("rejectedConnections",String.valueOf(rejectedConnections.sum()));
+        long capacity = bufferPoolCapacity.sum();
+        long inUse = bufferPoolInUse.sum();
+        long hits = bufferPoolHits.sum();
+        long requests = hits + bufferPoolMisses.sum();
+        metrics.put("bufferPoolCapacity",String.valueOf(capacity));
+        metrics.put("bufferPoolInUse",String.valueOf(inUse));
+        metrics.put("bufferPoolOccupancy",String.valueOf(capacity == 0 ? 0 : inUse * 100 / capacity)); // Percentage
+        metrics.put("bufferPoolHitRate",String.valueOf(requests == 0 ? 0 : hits * 100 / requests)); // Percentage
+        metrics.put("bufferPoolFallbacks",String.valueOf(bufferPoolFallbacks.sum()));
+        long resolverHits = nameResolverHits.sum();
+        long resolverRequests = resolverHits + nameResolverMisses.sum();
+        long lookups = nameResolutions.sum();
+        metrics.put("nameResolverHitRate",String.valueOf(resolverRequests == 0 ? 0 : resolverHits * 100 / resolverRequests)); // Percentage
+        metrics.put("nameResolutionAverageTime",String.valueOf(lookups == 0 ? 0 : nameResolutionTime.sum() / lookups)); // Milliseconds
+        metrics.put("nameResolutionFailures",String.valueOf(nameResolutionFailures.sum()));
+        metrics.put("originPoolHits",String.valueOf(originPoolHits.sum()));
+        metrics.put("originPoolMisses",String.valueOf(originPoolMisses.sum()));
+        for (Map.Entry<Configurations.HostAndPort, LongAdder> each : originConnections.entrySet()) {
+            Configurations.HostAndPort origin = each.getKey();
+            metrics.put("originConnections@" + origin.getHost() + ":" + origin.getPort(),String.valueOf(each.getValue().sum()));
+        }
+        for (Map.Entry<Configurations.HostAndPort, String> each : originStates.entrySet()) {
+            Configurations.HostAndPort origin = each.getKey();
+            metrics.put("originState@" + origin.getHost() + ":" + origin.getPort(),each.getValue());
+        }
+        metrics.put("originStateTransitions",String.valueOf(originStateTransitions.sum()));
+        metrics.put("originFastFailures",String.valueOf(originFastFailures.sum()));
+        metrics.put("originReroutes",String.valueOf(originReroutes.sum()));
+        metrics.put("originRetries",String.valueOf(originRetries.sum()));
+        metrics.put("originRetriesRejected",String.valueOf(originRetriesRejected.sum()));
+        return metrics;
+    }
+
+    public Map<String,String> getJidsMetrics(){
+        Map<String, long[]> jids = new HashMap<>();
+        for (ConnectionMetrics each : connections) {
+            String jid = each.getJid();
+            if (jid == null) {
+                continue; // Not authenticated yet
+            }
+            long[] totals = jids.computeIfAbsent(jid, key -> new long[4]);
+            totals[0] += each.getReadBytes();
+            totals[1] += each.getSentBytes();
+            totals[2] += each.getStanzas();
+            totals[3]++;
+        }
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(jids.entrySet());
+        entries.sort((entry1, entry2) -> Long.compare(entry2.getValue()[0] + entry2.getValue()[1],
+                entry1.getValue()[0] + entry1.getValue()[1])); // More traffic first
+        Map<String,String> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> each : entries.subList(0, Math.min(entries.size(), MAX_BREAKDOWN_ENTRIES))) {
+            long[] totals = each.getValue();
+            metrics.put(each.getKey(),totals[0] + " " + totals[1] + " " + totals[2] + " " + totals[3]);
+        }
+        return metrics;
+    }
+
+    public Map<String,String> getConnectionsMetrics(){
+        List<ConnectionMetrics> entries = new ArrayList<>(connections);
+        entries.sort((connection1, connection2) -> Long.compare(connection2.getReadBytes() + connection2.getSentBytes(),
+                connection1.getReadBytes() + connection1.getSentBytes())); // More traffic first
+        Map<String,String> metrics = new LinkedHashMap<>();
+        for (ConnectionMetrics each : entries.subList(0, Math.min(entries.size(), MAX_BREAKDOWN_ENTRIES))) {
+            String jid = each.getJid();
+            metrics.put(String.valueOf(each.getId()),each.getAddress() + " " + (jid == null ? "-" : jid) + " "
+                    + each.getReadBytes() + " " + each.getSentBytes() + " " + each.getStanzas());
+        }
+        return metrics;
+    }
+
+    public Map<String,String> getLatencyMetrics(){
+        Map<String,String> metrics = new LinkedHashMap<>();
+        metrics.put("parse",describeLatency(parseTime));
+        metrics.put("transform",describeLatency(transformTime));
+        metrics.put("queued",describeLatency(queuedTime));
+        metrics.put("write",describeLatency(writeTime));
+        metrics.put("total",describeLatency(proxyLatency));
+        return metrics;
+    }
+
+    public Map<String,String> getLoopMetrics(){
+        Map<String,String> metrics = new LinkedHashMap<>();
+        metrics.put("select",describeLatency(selectTime));
+        metrics.put("alwaysRun",describeLatency(alwaysRunTasksTime));
+        metrics.put("nothingToDo",describeLatency(nothingToDoTasksTime));
+        metrics.put("keys",describe(selectedKeys, 1));
+        for (Map.Entry<Class<?>, Map<String, LatencyHistogram>> handlerType : handlerTimes.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> callback : handlerType.getValue().entrySet()) {
+                metrics.put(handlerType.getKey().getSimpleName() + "." + callback.getKey(),
+                        describeLatency(callback.getValue()));
+            }
+        }
         return metrics;
     }
 
-    public void addReadBytes(long readBytes){
-        this.readBytes+=readBytes;
+    /**
+     * Describes the given latency histogram.
+     *
+     * @param histogram The histogram.
+     * @return Its amount of samples and its p50, p99, p999 and max latencies (in microseconds), separated by spaces.
+     */
+    private static String describeLatency(LatencyHistogram histogram) {
+        return describe(histogram, 1000);
     }
 
-    public void addSentBytes(long sentBytes){
-        this.sentBytes+=sentBytes;
+    /**
+     * Describes the given histogram.
+     *
+     * @param histogram The histogram.
+     * @param unit      The value by which recorded values are divided.
+     * @return Its amount of samples and its p50, p99, p999 and max values, separated by spaces.
+     */
+    private static String describe(LatencyHistogram histogram, long unit) {
+        long[] values = histogram.getValuesAtQuantiles(0.5, 0.99, 0.999);
+        return histogram.getCount() + " " + values[0] / unit + " " + values[1] / unit + " " + values[2] / unit
+                + " " + histogram.getMax() / unit;
+    }
+
+    public void registerConnection(ConnectionMetrics connectionMetrics){
+        if (connectionMetrics.markRegistered()) {
+            connections.add(connectionMetrics);
+        }
+    }
+
+    public void unregisterConnection(ConnectionMetrics connectionMetrics){
+        if (connectionMetrics.markUnregistered()) {
+            // Totals are kept before removing the connection, so they are never missing from the aggregation
+            readBytes.add(connectionMetrics.getReadBytes());
+            sentBytes.add(connectionMetrics.getSentBytes());
+            stanzas.add(connectionMetrics.getStanzas());
+            connections.remove(connectionMetrics);
+        }
     }
 
     public void addAccesses(long numAccesses){
-        this.numAccesses+=numAccesses;
+        this.numAccesses.add(numAccesses);
     }
 
     public void addAdministrationReadBytes(long administrationReadBytes){
-        this.administrationReadBytes+=administrationReadBytes;
+        this.administrationReadBytes.add(administrationReadBytes);
     }
 
     public void addAdministrationSentBytes(long administrationSentBytes){
-        this.administrationSentBytes+=administrationSentBytes;
+        this.administrationSentBytes.add(administrationSentBytes);
     }
 
     public void addNumSilencedMessages(long numMessagesSilenced){
-        this.numMessagesSilenced+=numMessagesSilenced;
+        this.numMessagesSilenced.add(numMessagesSilenced);
+    }
+
+    public void addActiveConnections(long activeConnections){
+        this.activeConnections.add(activeConnections);
+    }
+
+    public void addRejectedConnections(long rejectedConnections){
+        this.rejectedConnections.add(rejectedConnections);
+    }
+
+    public void addBufferPoolCapacity(long capacity){
+        this.bufferPoolCapacity.add(capacity);
+    }
+
+    public void addBufferPoolInUse(long buffersInUse){
+        this.bufferPoolInUse.add(buffersInUse);
+    }
+
+    public void addBufferPoolHits(long hits){
+        this.bufferPoolHits.add(hits);
+    }
+
+    public void addBufferPoolMisses(long misses){
+        this.bufferPoolMisses.add(misses);
+    }
+
+    public void addBufferPoolFallbacks(long fallbacks){
+        this.bufferPoolFallbacks.add(fallbacks);
+    }
+
+    public void addNameResolverHits(long hits){
+        nameResolverHits.add(hits);
+    }
+
+    public void addNameResolverMisses(long misses){
+        nameResolverMisses.add(misses);
+    }
+
+    public void addNameResolutionTime(long millis){
+        nameResolutions.increment();
+        nameResolutionTime.add(millis);
+    }
+
+    public void addNameResolutionFailures(long failures){
+        nameResolutionFailures.add(failures);
+    }
+
+    public void addOriginPoolHits(long hits){
+        originPoolHits.add(hits);
+    }
+
+    public void addOriginPoolMisses(long misses){
+        originPoolMisses.add(misses);
+    }
+
+    public void addOriginConnections(Configurations.HostAndPort origin, long connections){
+        originConnections.computeIfAbsent(origin, each -> new LongAdder()).add(connections);
+    }
+
+    public long getOriginConnections(Configurations.HostAndPort origin){
+        LongAdder connections = originConnections.get(origin);
+        return connections == null ? 0 : connections.sum();
+    }
+
+    public void addOriginStateTransition(Configurations.HostAndPort origin, String state){
+        originStates.put(origin, state);
+        originStateTransitions.increment();
+    }
+
+    public void addOriginFastFailures(long fastFailures){
+        originFastFailures.add(fastFailures);
+    }
+
+    public void addOriginReroutes(long reroutes){
+        originReroutes.add(reroutes);
+    }
+
+    public void addOriginRetries(long retries){
+        originRetries.add(retries);
+    }
+
+    public void addOriginRetriesRejected(long rejectedRetries){
+        originRetriesRejected.add(rejectedRetries);
+    }
+
+    public void addParseTime(long nanos){
+        parseTime.record(nanos);
+    }
+
+    public void addTransformTime(long nanos){
+        transformTime.record(nanos);
+    }
+
+    public void addQueuedTime(long nanos){
+        queuedTime.record(nanos);
+    }
+
+    public void addWriteTime(long nanos){
+        writeTime.record(nanos);
+    }
+
+    public void addProxyLatency(long nanos){
+        proxyLatency.record(nanos);
+    }
+
+    public void addSelectTime(long nanos){
+        selectTime.record(nanos);
+    }
+
+    public void addAlwaysRunTasksTime(long nanos){
+        alwaysRunTasksTime.record(nanos);
+    }
+
+    public void addNothingToDoTasksTime(long nanos){
+        nothingToDoTasksTime.record(nanos);
+    }
+
+    public void addSelectedKeys(long keys){
+        selectedKeys.record(keys);
+    }
+
+    public void addHandlerTime(Class<?> handlerType, String callback, long nanos){
+        Map<String, LatencyHistogram> callbacks = handlerTimes.get(handlerType); // Fast path (no locking)
+        if (callbacks == null) {
+            callbacks = handlerTimes.computeIfAbsent(handlerType, each -> new ConcurrentHashMap<>());
+        }
+        LatencyHistogram histogram = callbacks.get(callback);
+        if (histogram == null) {
+            histogram = callbacks.computeIfAbsent(callback, each -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
     }
 }
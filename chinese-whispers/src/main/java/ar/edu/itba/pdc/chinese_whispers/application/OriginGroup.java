@@ -0,0 +1,315 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+import ar.edu.itba.pdc.chinese_whispers.connection.OriginHealthMonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of origin servers to which users can be routed, together with the strategy used to choose
+ * the member that will serve each session.
+ * A route to a single server is represented as an unnamed group with only one member.
+ * Members whose circuit breaker rejects connections are skipped while other members are available.
+ * <p>
+ * Groups are immutable (except for the round-robin counter, which is thread safe),
+ * so they can be shared by configurations snapshots and used by any thread.
+ */
+public final class OriginGroup {
+
+    /**
+     * Amount of points each member has in the consistent hashing ring.
+     */
+    private static final int VIRTUAL_NODES_PER_MEMBER = 128;
+
+    /**
+     * The group's name, or {@code null} if it's a route to a single server.
+     */
+    private final String name;
+    /**
+     * The strategy used to choose members.
+     */
+    private final Strategy strategy;
+    /**
+     * The origin servers belonging to this group.
+     */
+    private final List<HostAndPort> members;
+    /**
+     * Sorted hashes of the consistent hashing ring.
+     */
+    private final int[] ringHashes;
+    /**
+     * The member owning each point of the consistent hashing ring.
+     */
+    private final HostAndPort[] ringMembers;
+    /**
+     * Counter used to rotate members (round-robin), and to break ties (least connections).
+     */
+    private final AtomicInteger nextMember;
+    /**
+     * Object that tracks the active connections with each origin server.
+     */
+    private final MetricsProvider metricsProvider;
+    /**
+     * Object that tells which origin servers are accepting connections.
+     */
+    private final OriginHealthMonitor healthMonitor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param name            The group's name, or {@code null} if it's a route to a single server.
+     * @param strategy        The strategy used to choose members.
+     * @param members         The origin servers belonging to this group.
+     * @param metricsProvider Object that tracks the active connections with each origin server.
+     * @param healthMonitor   Object that tells which origin servers are accepting connections.
+     */
+    /* package */ OriginGroup(String name, Strategy strategy, List<HostAndPort> members,
+                              MetricsProvider metricsProvider, OriginHealthMonitor healthMonitor) {
+        if (strategy == null || members == null || members.isEmpty() || members.contains(null)
+                || metricsProvider == null || healthMonitor == null) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+        this.strategy = strategy;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.nextMember = new AtomicInteger();
+        this.metricsProvider = metricsProvider;
+        this.healthMonitor = healthMonitor;
+        if (strategy == Strategy.CONSISTENT_HASH) {
+            long[] points = new long[members.size() * VIRTUAL_NODES_PER_MEMBER];
+            for (int i = 0; i < members.size(); i++) {
+                for (int j = 0; j < VIRTUAL_NODES_PER_MEMBER; j++) {
+                    int hash = hash(members.get(i).getHost() + ":" + members.get(i).getPort() + "#" + j);
+                    // Hash in the upper half (so points are sorted by hash), member index in the lower half
+                    points[i * VIRTUAL_NODES_PER_MEMBER + j] = ((long) hash << 32) | i;
+                }
+            }
+            Arrays.sort(points);
+            this.ringHashes = new int[points.length];
+            this.ringMembers = new HostAndPort[points.length];
+            for (int i = 0; i < points.length; i++) {
+                ringHashes[i] = (int) (points[i] >>> 32);
+                ringMembers[i] = members.get((int) points[i]);
+            }
+        } else {
+            this.ringHashes = null;
+            this.ringMembers = null;
+        }
+    }
+
+    /**
+     * Creates a route to a single server.
+     *
+     * @param server          The server.
+     * @param metricsProvider Object that tracks the active connections with each origin server.
+     * @param healthMonitor   Object that tells which origin servers are accepting connections.
+     * @return An unnamed group containing only the given server.
+     */
+    /* package */ static OriginGroup single(HostAndPort server, MetricsProvider metricsProvider,
+                                            OriginHealthMonitor healthMonitor) {
+        return new OriginGroup(null, Strategy.ROUND_ROBIN, Collections.singletonList(server), metricsProvider,
+                healthMonitor);
+    }
+
+    /**
+     * Returns the group's name.
+     *
+     * @return The name, or {@code null} if this is a route to a single server.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the strategy used to choose members.
+     *
+     * @return The strategy.
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Returns the origin servers belonging to this group.
+     *
+     * @return An unmodifiable list with the members.
+     */
+    public List<HostAndPort> getMembers() {
+        return members;
+    }
+
+    /**
+     * Chooses the member that will serve a new session of the given user.
+     * Members that are not accepting connections are skipped (unless no member is accepting connections).
+     *
+     * @param clientJid The user's JID (can be {@code null} if it's not known yet).
+     * @return The chosen member.
+     */
+    public HostAndPort choose(String clientJid) {
+        if (members.size() == 1) {
+            return members.get(0);
+        }
+        switch (strategy) {
+            case LEAST_CONNECTIONS:
+                return leastConnections();
+            case CONSISTENT_HASH:
+                return consistentHash(clientJid);
+            default:
+                return roundRobin();
+        }
+    }
+
+    /**
+     * Chooses the next member in turn that is accepting connections.
+     *
+     * @return The chosen member.
+     */
+    private HostAndPort roundRobin() {
+        int size = members.size();
+        int start = (nextMember.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            HostAndPort each = members.get((start + i) % size);
+            if (healthMonitor.isAvailable(each)) {
+                return each;
+            }
+        }
+        return members.get(start); // No member is available, so connecting will fail fast
+    }
+
+    /**
+     * Says if the given member can serve a session of the given user
+     * (i.e. it belongs to this group, and it's the one chosen by consistent hashing if that's the strategy).
+     *
+     * @param clientJid The user's JID.
+     * @param member    The member.
+     * @return {@code true} if the member can serve the user, or {@code false} otherwise.
+     */
+    public boolean accepts(String clientJid, HostAndPort member) {
+        if (!members.contains(member)) {
+            return false;
+        }
+        return strategy != Strategy.CONSISTENT_HASH || consistentHash(clientJid).equals(member);
+    }
+
+    /**
+     * Chooses the member with less active connections among those accepting connections,
+     * rotating the starting point to break ties.
+     *
+     * @return The chosen member.
+     */
+    private HostAndPort leastConnections() {
+        int size = members.size();
+        int start = (nextMember.getAndIncrement() & Integer.MAX_VALUE) % size;
+        HostAndPort chosen = null;
+        long chosenConnections = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            HostAndPort each = members.get((start + i) % size);
+            long connections = metricsProvider.getOriginConnections(each);
+            if (connections < chosenConnections && healthMonitor.isAvailable(each)) {
+                chosen = each;
+                chosenConnections = connections;
+            }
+        }
+        return chosen != null ? chosen : members.get(start); // If none is available, connecting will fail fast
+    }
+
+    /**
+     * Chooses the member owning the bare JID of the given user in the consistent hashing ring,
+     * so all sessions of a user go to the same member (while the group does not change).
+     * If that member is not accepting connections, the next available member in the ring is chosen
+     * (so only the users of that member are moved).
+     *
+     * @param clientJid The user's JID.
+     * @return The chosen member.
+     */
+    private HostAndPort consistentHash(String clientJid) {
+        int hash = hash(bareJid(clientJid));
+        // First point whose hash is greater or equal to the given one, wrapping around
+        int low = 0;
+        int high = ringHashes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ringHashes[middle] < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int owner = low == ringHashes.length ? 0 : low;
+        for (int i = 0; i < ringMembers.length; i++) {
+            HostAndPort each = ringMembers[(owner + i) % ringMembers.length];
+            if (healthMonitor.isAvailable(each)) {
+                return each;
+            }
+        }
+        return ringMembers[owner]; // No member is available, so connecting will fail fast
+    }
+
+    /**
+     * Removes the resource part of the given JID, normalizing it.
+     *
+     * @param clientJid The JID.
+     * @return The bare JID (an empty string if the given JID is {@code null}).
+     */
+    private static String bareJid(String clientJid) {
+        if (clientJid == null) {
+            return "";
+        }
+        int slash = clientJid.indexOf('/');
+        return (slash < 0 ? clientJid : clientJid.substring(0, slash)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Hashes the given string (FNV-1a, followed by a finalizer that spreads similar strings across the ring).
+     *
+     * @param string The string to be hashed.
+     * @return The hash.
+     */
+    private static int hash(String string) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        if (name != null) {
+            return name;
+        }
+        return members.get(0).toString();
+    }
+
+
+    /**
+     * Strategies used to choose the member that will serve each session.
+     */
+    public enum Strategy {
+        /**
+         * Members are chosen in turns.
+         */
+        ROUND_ROBIN,
+        /**
+         * The member with less active connections (tracked by the proxy) is chosen.
+         */
+        LEAST_CONNECTIONS,
+        /**
+         * Members are chosen by a consistent hash of the bare JID, so sessions of a user go to the same member.
+         */
+        CONSISTENT_HASH,
+    }
+}
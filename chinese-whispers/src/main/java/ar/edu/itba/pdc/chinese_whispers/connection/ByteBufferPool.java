@@ -0,0 +1,215 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded pool of direct {@link ByteBuffer}s, sliced from large direct slabs.
+ * Direct buffers can be written into channels without being copied into a temporary direct buffer by the JDK.
+ * <p>
+ * The pool grows one slab at a time, up to the high watermark. When all slabs are in use,
+ * heap buffers are allocated instead (i.e. fallback allocations), which are not returned to the pool.
+ * Slabs that stay completely unused between two calls to {@link #trim()} are released,
+ * keeping at least the amount of slabs indicated by the low watermark.
+ * <p>
+ * Note: This class is not thread safe. Each {@link TCPSelector} owns a pool, which must only be used
+ * by the thread driving that selector.
+ */
+public final class ByteBufferPool {
+
+    /**
+     * The size of each buffer given by this pool.
+     */
+    private final int bufferSize;
+    /**
+     * The amount of buffers each slab is sliced into.
+     */
+    private final int buffersPerSlab;
+    /**
+     * Minimum amount of slabs kept when trimming.
+     */
+    private final int lowWatermark;
+    /**
+     * Maximum amount of slabs.
+     */
+    private final int highWatermark;
+    /**
+     * The allocated slabs. Buffers are taken from the first slabs, so the last ones can become idle.
+     */
+    private final List<Slab> slabs;
+    /**
+     * Maps each pooled buffer to the slab it was sliced from.
+     */
+    private final Map<ByteBuffer, Slab> owners;
+    /**
+     * Object to which the pool statistics are reported.
+     */
+    private final MetricsProvider metricsProvider;
+
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize      The size of each buffer.
+     * @param buffersPerSlab  The amount of buffers each slab is sliced into.
+     * @param lowWatermark    Minimum amount of slabs kept when trimming (they are allocated lazily).
+     * @param highWatermark   Maximum amount of slabs.
+     * @param metricsProvider Object to which the pool statistics are reported.
+     */
+    public ByteBufferPool(int bufferSize, int buffersPerSlab, int lowWatermark, int highWatermark,
+                          MetricsProvider metricsProvider) {
+        if (bufferSize <= 0 || buffersPerSlab <= 0 || lowWatermark < 0 || highWatermark < lowWatermark
+                || metricsProvider == null) {
+            throw new IllegalArgumentException();
+        }
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.slabs = new ArrayList<>(highWatermark);
+        this.owners = new IdentityHashMap<>();
+        this.metricsProvider = metricsProvider;
+    }
+
+    /**
+     * Returns the size of the buffers given by this pool.
+     *
+     * @return The buffers size.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Gets a cleared buffer, allocating a new slab if needed.
+     * If the high watermark was reached, a heap buffer is returned.
+     *
+     * @return An unused buffer.
+     */
+    public ByteBuffer acquire() {
+        for (Slab each : slabs) {
+            if (each.amountOfFree > 0) {
+                metricsProvider.addBufferPoolHits(1);
+                return take(each);
+            }
+        }
+        metricsProvider.addBufferPoolMisses(1);
+        if (slabs.size() >= highWatermark) {
+            metricsProvider.addBufferPoolFallbacks(1);
+            return ByteBuffer.allocate(bufferSize);
+        }
+        return take(allocateSlab());
+    }
+
+    /**
+     * Returns the given buffer to this pool. Buffers that were not sliced from this pool's slabs
+     * (i.e. fallback allocations) are just discarded.
+     * Note that the buffer must not be used after being released.
+     *
+     * @param buffer The buffer to be released.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException();
+        }
+        Slab slab = owners.get(buffer);
+        if (slab == null) {
+            return; // Fallback allocation
+        }
+        if (slab.amountOfFree == buffersPerSlab) {
+            throw new IllegalStateException("Buffer was already released.");
+        }
+        buffer.clear();
+        slab.free[slab.amountOfFree++] = buffer;
+        metricsProvider.addBufferPoolInUse(-1);
+    }
+
+    /**
+     * Releases those slabs that were not used since the last time this method was called,
+     * keeping at least the amount of slabs indicated by the low watermark.
+     */
+    public void trim() {
+        Iterator<Slab> it = slabs.iterator();
+        while (it.hasNext()) {
+            Slab each = it.next();
+            if (each.amountOfFree < buffersPerSlab) {
+                continue;
+            }
+            if (each.idle && slabs.size() > lowWatermark) {
+                for (ByteBuffer buffer : each.free) {
+                    owners.remove(buffer);
+                }
+                it.remove(); // Memory will be released once the slab is garbage collected
+                metricsProvider.addBufferPoolCapacity(-buffersPerSlab);
+                continue;
+            }
+            each.idle = true; // Will be released in the next trim if it's not used till then
+        }
+    }
+
+    /**
+     * Takes a free buffer from the given slab.
+     *
+     * @param slab The slab from which the buffer will be taken (must have free buffers).
+     * @return The taken buffer.
+     */
+    private ByteBuffer take(Slab slab) {
+        ByteBuffer buffer = slab.free[--slab.amountOfFree];
+        slab.free[slab.amountOfFree] = null;
+        slab.idle = false;
+        metricsProvider.addBufferPoolInUse(1);
+        return buffer;
+    }
+
+    /**
+     * Allocates a new slab, slicing it into buffers.
+     *
+     * @return The new slab.
+     */
+    private Slab allocateSlab() {
+        ByteBuffer memory = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        Slab slab = new Slab(buffersPerSlab);
+        for (int i = 0; i < buffersPerSlab; i++) {
+            memory.limit((i + 1) * bufferSize).position(i * bufferSize);
+            ByteBuffer buffer = memory.slice();
+            slab.free[i] = buffer;
+            owners.put(buffer, slab);
+        }
+        slab.amountOfFree = buffersPerSlab;
+        slabs.add(slab);
+        metricsProvider.addBufferPoolCapacity(buffersPerSlab);
+        return slab;
+    }
+
+
+    /**
+     * A chunk of direct memory, sliced into buffers.
+     */
+    private static final class Slab {
+
+        /**
+         * Stack of free buffers.
+         */
+        private final ByteBuffer[] free;
+        /**
+         * Amount of buffers in the free stack.
+         */
+        private int amountOfFree;
+        /**
+         * Says if the slab was not used since the last trim.
+         */
+        private boolean idle;
+
+        private Slab(int amountOfBuffers) {
+            this.free = new ByteBuffer[amountOfBuffers];
+            this.amountOfFree = 0;
+            this.idle = false;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import java.util.List;
+
+/**
+ * Watches the event loops of a set of selectors, so handler callbacks that stall them are reported while they are
+ * still running (even if they never return), with the blocked thread's stack trace.
+ * Each selector reports its stalls through {@link TCPSelector#checkStall(long)}.
+ * <p>
+ * The watchdog is run by its own (daemon) thread.
+ */
+/* package */ final class EventLoopWatchdog implements Runnable {
+
+    /**
+     * Time (in milliseconds) between each check of the selectors.
+     */
+    private static final long CHECK_INTERVAL = 50;
+
+    /**
+     * The selectors being watched.
+     */
+    private final List<TCPSelector> selectors;
+
+
+    /* package */ EventLoopWatchdog(List<TCPSelector> selectors) {
+        if (selectors == null || selectors.contains(null)) {
+            throw new IllegalArgumentException();
+        }
+        this.selectors = selectors;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (TCPSelector each : selectors) {
+                each.checkStall(now);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+import org.slf4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Resolves host names without blocking the selectors' threads.
+ * Lookups are performed by a small pool of resolver threads, and results are handed back to the thread driving
+ * the selector that requested them (through {@link TCPSelector#execute(Runnable)}).
+ * <p>
+ * Results are cached per host name: successful lookups for {@link #POSITIVE_TTL} milliseconds, and failed ones
+ * for {@link #NEGATIVE_TTL} milliseconds. Concurrent requests for the same host share a single lookup.
+ * Note that host names come from the configured origin servers, so the cache is not bounded.
+ * <p>
+ * This class implements the singleton pattern.
+ */
+public final class NameResolver {
+
+    /**
+     * Time (in milliseconds) during which a resolved address is cached.
+     */
+    private static final long POSITIVE_TTL = 60000;
+    /**
+     * Time (in milliseconds) during which a failed lookup is cached.
+     */
+    private static final long NEGATIVE_TTL = 5000;
+    /**
+     * Amount of threads performing lookups.
+     */
+    private static final int AMOUNT_OF_RESOLVER_THREADS = 2;
+
+    /**
+     * Holds the singleton.
+     */
+    private static final NameResolver singleton = new NameResolver(MetricsManager.getInstance());
+
+    /**
+     * Holds the cached lookups results.
+     */
+    private final Map<String, CachedAddress> cache;
+    /**
+     * Holds the requests waiting for each lookup in progress.
+     * Note: Access to this map must be synchronized on it.
+     */
+    private final Map<String, List<Request>> lookupsInProgress;
+    /**
+     * Performs the lookups.
+     */
+    private final ExecutorService resolverThreads;
+    /**
+     * Object to which resolution statistics are reported.
+     */
+    private final MetricsProvider metricsProvider;
+
+    private final Logger logger;
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     *
+     * @param metricsProvider Object to which resolution statistics are reported.
+     */
+    private NameResolver(MetricsProvider metricsProvider) {
+        this.cache = new ConcurrentHashMap<>();
+        this.lookupsInProgress = new HashMap<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.resolverThreads = Executors.newFixedThreadPool(AMOUNT_OF_RESOLVER_THREADS, task -> {
+            Thread thread = new Thread(task, "name-resolver-" + threadCount.incrementAndGet());
+            thread.setDaemon(true); // Lookups in progress must not keep the proxy running
+            return thread;
+        });
+        this.metricsProvider = metricsProvider;
+        this.logger = LogHelper.getLogger(getClass());
+    }
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
+    public static NameResolver getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Resolves the given host name.
+     * If the result is cached, the callback is called immediately by the calling thread.
+     * Otherwise, it's called later by the thread driving the calling thread's selector.
+     * <p>
+     * Note: This method must only be called by a thread driving a {@link TCPSelector}.
+     *
+     * @param host     The host name (or address literal) to be resolved.
+     * @param callback Receives the resolved address, or {@code null} if the name couldn't be resolved.
+     */
+    public void resolve(String host, Consumer<InetAddress> callback) {
+        if (host == null || host.isEmpty() || callback == null) {
+            throw new IllegalArgumentException();
+        }
+        CachedAddress cached = cache.get(host);
+        if (cached != null && cached.expiration > System.currentTimeMillis()) {
+            metricsProvider.addNameResolverHits(1);
+            callback.accept(cached.address);
+            return;
+        }
+        metricsProvider.addNameResolverMisses(1);
+        Request request = new Request(TCPSelector.getCurrent(), callback);
+        boolean startLookup;
+        synchronized (lookupsInProgress) {
+            List<Request> requests = lookupsInProgress.get(host);
+            startLookup = requests == null;
+            if (startLookup) {
+                requests = new ArrayList<>();
+                lookupsInProgress.put(host, requests);
+            }
+            requests.add(request);
+        }
+        if (startLookup) {
+            resolverThreads.execute(() -> lookup(host));
+        }
+    }
+
+    /**
+     * Performs a blocking lookup of the given host name (in a resolver thread), caching the result and handing it
+     * to the requests waiting for it.
+     *
+     * @param host The host name to be resolved.
+     */
+    private void lookup(String host) {
+        long start = System.nanoTime();
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException | SecurityException e) {
+            logger.warn("Couldn't resolve host {}: {}", host, e.getMessage());
+            address = null;
+            metricsProvider.addNameResolutionFailures(1);
+        }
+        metricsProvider.addNameResolutionTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        long ttl = address == null ? NEGATIVE_TTL : POSITIVE_TTL;
+        cache.put(host, new CachedAddress(address, System.currentTimeMillis() + ttl));
+
+        List<Request> requests;
+        synchronized (lookupsInProgress) {
+            requests = lookupsInProgress.remove(host);
+        }
+        InetAddress result = address;
+        for (Request each : requests) {
+            each.selector.execute(() -> each.callback.accept(result));
+        }
+    }
+
+
+    /**
+     * A cached lookup result.
+     */
+    private static final class CachedAddress {
+
+        /**
+         * The resolved address, or {@code null} if the lookup failed.
+         */
+        private final InetAddress address;
+        /**
+         * When this result expires.
+         */
+        private final long expiration;
+
+        private CachedAddress(InetAddress address, long expiration) {
+            this.address = address;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * A request waiting for a lookup to finish.
+     */
+    private static final class Request {
+
+        /**
+         * The selector whose thread must receive the result.
+         */
+        private final TCPSelector selector;
+        /**
+         * Receives the result.
+         */
+        private final Consumer<InetAddress> callback;
+
+        private Request(TCPSelector selector, Consumer<InetAddress> callback) {
+            this.selector = selector;
+            this.callback = callback;
+        }
+    }
+}
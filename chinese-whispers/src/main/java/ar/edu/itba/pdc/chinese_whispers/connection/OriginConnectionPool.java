@@ -0,0 +1,335 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pool of already connected sockets to origin servers, so clients don't have to wait for a TCP handshake
+ * with the origin server when they log in.
+ * <p>
+ * The pool keeps (up to) the configured amount of idle connections for each origin server.
+ * Connections are refilled asynchronously when taken, and evicted once they have been idle for
+ * {@link #IDLE_TIMEOUT} milliseconds (or when the origin server closes them).
+ * Idle connections are registered for reading, so a connection closed by the origin server is noticed
+ * (and discarded) before being taken.
+ * Pooled connections report their results to the {@link OriginHealthMonitor}, and the pool is not refilled
+ * for origin servers that are not accepting connections.
+ * <p>
+ * Note: This class is not thread safe. Each {@link TCPSelector} owns a pool, which must only be used
+ * by the thread driving that selector.
+ */
+public final class OriginConnectionPool {
+
+    /**
+     * Time (in milliseconds) after which an idle connection is evicted.
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+    /**
+     * Time (in milliseconds) after which a connection that didn't connect yet is discarded.
+     */
+    private static final long CONNECT_TIMEOUT = 10000;
+
+    /**
+     * The selector whose thread handles the pooled connections.
+     */
+    private final TCPSelector selector;
+    /**
+     * Holds the pooled connections of each origin server.
+     */
+    private final Map<HostAndPort, Origin> origins;
+    /**
+     * Buffer used to read from idle connections (anything received makes the connection be discarded).
+     */
+    private final ByteBuffer discardBuffer;
+    /**
+     * Object to which the pool statistics are reported.
+     */
+    private final MetricsProvider metricsProvider;
+    /**
+     * Object to which connection results are reported, and that tells which origin servers are accepting connections.
+     */
+    private final OriginHealthMonitor healthMonitor;
+    /**
+     * The amount of connections to be kept for each origin server.
+     */
+    private int size;
+
+
+    /**
+     * Constructor.
+     *
+     * @param selector        The selector whose thread will handle the pooled connections.
+     * @param metricsProvider Object to which the pool statistics are reported.
+     * @param healthMonitor   Object to which connection results are reported.
+     */
+    public OriginConnectionPool(TCPSelector selector, MetricsProvider metricsProvider,
+                                OriginHealthMonitor healthMonitor) {
+        if (selector == null || metricsProvider == null || healthMonitor == null) {
+            throw new IllegalArgumentException();
+        }
+        this.selector = selector;
+        this.origins = new HashMap<>();
+        this.discardBuffer = ByteBuffer.allocate(64);
+        this.metricsProvider = metricsProvider;
+        this.healthMonitor = healthMonitor;
+        this.size = 0;
+    }
+
+    /**
+     * Takes an idle connection to the given origin server, and starts refilling the pool.
+     * The returned key has no interest ops and nothing attached, so it can be taken over by a new handler.
+     *
+     * @param host The origin server host.
+     * @param port The port in which the origin server is listening.
+     * @return The {@link SelectionKey} of an already connected socket channel, or {@code null} if there is no idle
+     * connection to the given origin server.
+     */
+    public SelectionKey take(String host, int port) {
+        if (size == 0) {
+            return null; // Pooling is disabled
+        }
+        Origin origin = origins.get(new HostAndPort(host, port));
+        if (origin == null) {
+            metricsProvider.addOriginPoolMisses(1);
+            return null;
+        }
+        PooledConnection connection;
+        while ((connection = origin.idle.pollLast()) != null) { // The newest connections are less likely to be stale
+            SelectionKey key = connection.key;
+            if (key.isValid() && ((SocketChannel) key.channel()).isConnected()) {
+                connection.taken = true;
+                key.interestOps(0);
+                key.attach(null);
+                metricsProvider.addOriginPoolHits(1);
+                refill(origin);
+                return key;
+            }
+            connection.close();
+        }
+        metricsProvider.addOriginPoolMisses(1);
+        refill(origin);
+        return null;
+    }
+
+    /**
+     * Updates the pooled origin servers and the amount of connections kept for each of them,
+     * evicting idle connections, and refilling the pool.
+     *
+     * @param targets The origin servers whose connections must be pooled.
+     * @param size    The amount of connections to be kept for each origin server.
+     */
+    public void maintain(Set<HostAndPort> targets, int size) {
+        if (targets == null || size < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.size = size;
+        long now = System.currentTimeMillis();
+        Iterator<Origin> originsIterator = origins.values().iterator();
+        while (originsIterator.hasNext()) {
+            Origin origin = originsIterator.next();
+            boolean targeted = size > 0 && targets.contains(origin.address);
+            // Idle connections are ordered from the oldest to the newest one
+            Iterator<PooledConnection> idleIterator = origin.idle.iterator();
+            while (idleIterator.hasNext()) {
+                PooledConnection each = idleIterator.next();
+                if (!targeted || origin.idle.size() > size || now - each.since >= IDLE_TIMEOUT) {
+                    idleIterator.remove();
+                    each.close();
+                }
+            }
+            for (PooledConnection each : new ArrayList<>(origin.connecting)) {
+                if (!targeted || (each.key != null && !each.key.isValid()) || now - each.since >= CONNECT_TIMEOUT) {
+                    each.close();
+                }
+            }
+            if (!targeted && origin.connecting.isEmpty()) {
+                originsIterator.remove();
+            }
+        }
+        if (size == 0) {
+            return;
+        }
+        for (HostAndPort each : targets) {
+            refill(origins.computeIfAbsent(each, Origin::new));
+        }
+    }
+
+    /**
+     * Starts as many connections as needed to have the pool full for the given origin server.
+     *
+     * @param origin The origin server whose connections must be refilled.
+     */
+    private void refill(Origin origin) {
+        if (!healthMonitor.isAvailable(origin.address)) {
+            return; // Refilled once the origin server recovers
+        }
+        int missing = size - origin.idle.size() - origin.connecting.size();
+        for (int i = 0; i < missing; i++) {
+            PooledConnection connection = new PooledConnection(origin);
+            origin.connecting.add(connection);
+            selector.addClientSocketChannel(origin.address.getHost(), origin.address.getPort(), connection,
+                    connection);
+        }
+    }
+
+
+    /**
+     * The pooled connections of an origin server.
+     */
+    private static final class Origin {
+
+        /**
+         * The origin server address.
+         */
+        private final HostAndPort address;
+        /**
+         * Connections that are already connected (from the oldest to the newest one).
+         */
+        private final Deque<PooledConnection> idle;
+        /**
+         * Connections that are being connected.
+         */
+        private final List<PooledConnection> connecting;
+
+        private Origin(HostAndPort address) {
+            this.address = address;
+            this.idle = new ArrayDeque<>();
+            this.connecting = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Handles a pooled connection till it's taken.
+     */
+    private final class PooledConnection implements TCPClientHandler, TCPReadWriteHandler, TCPConnectionCallback {
+
+        /**
+         * The origin server to which this connection belongs.
+         */
+        private final Origin origin;
+        /**
+         * The key of this connection ({@code null} till it starts connecting).
+         */
+        private SelectionKey key;
+        /**
+         * When this connection started connecting, or when it became idle.
+         */
+        private long since;
+        /**
+         * Says if this connection was discarded.
+         */
+        private boolean closed;
+        /**
+         * Says if this connection was taken from the pool (and its key belongs to another handler).
+         */
+        private boolean taken;
+
+        private PooledConnection(Origin origin) {
+            this.origin = origin;
+            this.key = null;
+            this.since = System.currentTimeMillis();
+            this.closed = false;
+            this.taken = false;
+        }
+
+        @Override
+        public void connectionStarted(SelectionKey key) {
+            this.key = key;
+            if (closed) {
+                this.closed = false; // Discarded while the name was being resolved
+                close();
+            }
+        }
+
+        @Override
+        public void connectionFailed() {
+            origin.connecting.remove(this);
+            closed = true;
+            healthMonitor.connectionFailed(origin.address);
+        }
+
+        @Override
+        public void handleConnect(SelectionKey key) {
+            try {
+                if (!((SocketChannel) key.channel()).finishConnect()) {
+                    return;
+                }
+            } catch (IOException e) {
+                healthMonitor.connectionFailed(origin.address);
+                close();
+                return;
+            }
+            healthMonitor.connectionSucceeded(origin.address);
+            origin.connecting.remove(this);
+            if (origins.get(origin.address) != origin || origin.idle.size() >= size) {
+                close(); // Not needed anymore
+                return;
+            }
+            since = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ); // To notice if the origin server closes the connection
+            origin.idle.addLast(this);
+        }
+
+        @Override
+        public void handleRead(SelectionKey key) {
+            // Origin servers must not send anything before the stream is opened, so the connection is discarded
+            // (i.e. it was closed, or it's not an XMPP server)
+            discardBuffer.clear();
+            try {
+                ((SocketChannel) key.channel()).read(discardBuffer);
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        @Override
+        public void handleWrite(SelectionKey key) {
+            // Nothing is written into pooled connections
+        }
+
+        @Override
+        public void handleTimeout(SelectionKey key) {
+            close();
+        }
+
+        @Override
+        public boolean handleClose(SelectionKey key) {
+            close();
+            return true;
+        }
+
+        /**
+         * Closes this connection, removing it from the pool.
+         */
+        private void close() {
+            if (closed || taken) {
+                return;
+            }
+            closed = true;
+            origin.idle.remove(this);
+            origin.connecting.remove(this);
+            if (key == null) {
+                return; // Will be closed once it starts connecting
+            }
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            } finally {
+                selector.deregister(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the health of each origin server, so connections to an origin server that is down fail fast
+ * (or are routed to another member of a group) instead of waiting for connect timeouts.
+ * <p>
+ * Each origin server has a circuit breaker:
+ * <ul>
+ * <li>{@link State#CLOSED}: The origin server is healthy, and connections are allowed.</li>
+ * <li>{@link State#OPEN}: {@link #FAILURE_THRESHOLD} consecutive connections failed, so connections are rejected
+ * for {@link #OPEN_DURATION} milliseconds.</li>
+ * <li>{@link State#HALF_OPEN}: A single trial connection is allowed. If it succeeds the circuit is closed,
+ * and if it fails it's opened again.</li>
+ * </ul>
+ * Failures and successes are reported passively by connections to origin servers, and actively by probes
+ * (TCP connections that are closed as soon as they are established) sent to origin servers that were not seen
+ * healthy during the last {@link #PROBE_INTERVAL} milliseconds. A successful probe closes the circuit.
+ * <p>
+ * This class is thread safe. Probes are handled by the thread driving the selector that starts them.
+ * This class implements the singleton pattern.
+ */
+public final class OriginHealthMonitor {
+
+    /**
+     * Amount of consecutive failures that open the circuit of an origin server.
+     */
+    private static final int FAILURE_THRESHOLD = 3;
+    /**
+     * Time (in milliseconds) during which an open circuit rejects connections.
+     */
+    private static final long OPEN_DURATION = 5000;
+    /**
+     * Time (in milliseconds) after which a trial connection without result allows another trial.
+     */
+    private static final long TRIAL_TIMEOUT = 10000;
+    /**
+     * Minimum time (in milliseconds) between probes to the same origin server.
+     */
+    private static final long PROBE_INTERVAL = 2000;
+    /**
+     * Time (in milliseconds) after which a probe that didn't connect is considered failed.
+     */
+    private static final long PROBE_TIMEOUT = 3000;
+
+    /**
+     * Holds the singleton.
+     */
+    private static final OriginHealthMonitor singleton = new OriginHealthMonitor(MetricsManager.getInstance());
+
+    /**
+     * Holds the health of each origin server (origin servers without health are healthy).
+     */
+    private final Map<HostAndPort, Health> healths;
+    /**
+     * Object to which state transitions are reported.
+     */
+    private final MetricsProvider metricsProvider;
+
+    private final Logger logger;
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     *
+     * @param metricsProvider Object to which state transitions are reported.
+     */
+    private OriginHealthMonitor(MetricsProvider metricsProvider) {
+        this.healths = new ConcurrentHashMap<>();
+        this.metricsProvider = metricsProvider;
+        this.logger = LogHelper.getLogger(getClass());
+    }
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
+    public static OriginHealthMonitor getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Returns the state of the circuit of the given origin server.
+     *
+     * @param origin The origin server.
+     * @return The state.
+     */
+    public State getState(HostAndPort origin) {
+        Health health = healths.get(origin);
+        return health == null ? State.CLOSED : health.state;
+    }
+
+    /**
+     * Says if a connection to the given origin server would be allowed right now.
+     * Unlike {@link #allowConnection(HostAndPort)}, this method does not start a trial connection.
+     *
+     * @param origin The origin server.
+     * @return {@code true} if a connection would be allowed, or {@code false} otherwise.
+     */
+    public boolean isAvailable(HostAndPort origin) {
+        Health health = healths.get(origin);
+        if (health == null || health.state == State.CLOSED) {
+            return true; // Fast path (no locking)
+        }
+        synchronized (health) {
+            return health.allows(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Asks for permission to connect to the given origin server.
+     * If the circuit is half open, the connection becomes the trial connection.
+     * The connection's result must be reported through {@link #connectionSucceeded(HostAndPort)}
+     * or {@link #connectionFailed(HostAndPort)}.
+     *
+     * @param origin The origin server.
+     * @return {@code true} if the connection is allowed, or {@code false} if it must fail fast.
+     */
+    public boolean allowConnection(HostAndPort origin) {
+        Health health = healths.get(origin);
+        if (health == null || health.state == State.CLOSED) {
+            return true; // Fast path (no locking)
+        }
+        synchronized (health) {
+            long now = System.currentTimeMillis();
+            if (!health.allows(now)) {
+                return false;
+            }
+            if (health.state == State.OPEN) {
+                transition(origin, health, State.HALF_OPEN);
+            }
+            if (health.state == State.HALF_OPEN) {
+                health.trialStartedAt = now;
+                health.trialInProgress = true;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reports that a connection to the given origin server was established.
+     *
+     * @param origin The origin server.
+     */
+    public void connectionSucceeded(HostAndPort origin) {
+        Health health = healths.computeIfAbsent(origin, each -> new Health());
+        synchronized (health) {
+            health.lastSuccess = System.currentTimeMillis();
+            health.consecutiveFailures = 0;
+            health.trialInProgress = false;
+            if (health.state != State.CLOSED) {
+                transition(origin, health, State.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * Reports that a connection to the given origin server couldn't be established.
+     *
+     * @param origin The origin server.
+     */
+    public void connectionFailed(HostAndPort origin) {
+        Health health = healths.computeIfAbsent(origin, each -> new Health());
+        synchronized (health) {
+            long now = System.currentTimeMillis();
+            health.consecutiveFailures++;
+            health.trialInProgress = false;
+            switch (health.state) {
+                case CLOSED:
+                    if (health.consecutiveFailures < FAILURE_THRESHOLD) {
+                        return;
+                    }
+                    // Fall through
+                case HALF_OPEN:
+                    transition(origin, health, State.OPEN);
+                    // Fall through
+                case OPEN:
+                    health.openedAt = now; // Connections started before the circuit opened keep it open
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Starts a probe to each of the given origin servers that was not seen healthy lately
+     * (and is not being probed already).
+     * <p>
+     * Note: This method must only be called by a thread driving a {@link TCPSelector}, which will handle the probes.
+     *
+     * @param origins The origin servers to be probed.
+     */
+    public void probe(Set<HostAndPort> origins) {
+        if (origins == null) {
+            throw new IllegalArgumentException();
+        }
+        TCPSelector selector = TCPSelector.getCurrent();
+        long now = System.currentTimeMillis();
+        for (HostAndPort each : origins) {
+            Health health = healths.computeIfAbsent(each, origin -> new Health());
+            synchronized (health) {
+                if (health.probing || now - health.lastProbe < PROBE_INTERVAL
+                        || (health.state == State.CLOSED && now - health.lastSuccess < PROBE_INTERVAL)) {
+                    continue; // Probed lately, or traffic proved it's healthy
+                }
+                health.probing = true;
+                health.lastProbe = now;
+            }
+            Probe probe = new Probe(each, health, selector);
+            selector.addClientSocketChannel(each.getHost(), each.getPort(), probe, probe);
+        }
+    }
+
+    /**
+     * Changes the state of the circuit of the given origin server, reporting the transition.
+     * Note: Must be called while holding the health's lock.
+     *
+     * @param origin The origin server.
+     * @param health The origin server's health.
+     * @param state  The new state.
+     */
+    private void transition(HostAndPort origin, Health health, State state) {
+        logger.info("Origin server {} circuit changed from {} to {}", origin, health.state, state);
+        health.state = state;
+        metricsProvider.addOriginStateTransition(origin, state.name());
+    }
+
+
+    /**
+     * States of an origin server circuit.
+     */
+    public enum State {
+        /**
+         * The origin server is healthy, and connections are allowed.
+         */
+        CLOSED,
+        /**
+         * The origin server is failing, and connections are rejected.
+         */
+        OPEN,
+        /**
+         * A trial connection is allowed, to find out whether the origin server recovered.
+         */
+        HALF_OPEN,
+    }
+
+    /**
+     * The health of an origin server.
+     * Note: Access to this class' fields (except for reading the state) must be synchronized on the instance.
+     */
+    private static final class Health {
+
+        /**
+         * The state of the circuit (read without locking by the fast paths).
+         */
+        private volatile State state = State.CLOSED;
+        /**
+         * Amount of consecutive failed connections.
+         */
+        private int consecutiveFailures;
+        /**
+         * When the circuit was opened (or a failure was reported while open).
+         */
+        private long openedAt;
+        /**
+         * Says if there is a trial connection in progress (only while half open).
+         */
+        private boolean trialInProgress;
+        /**
+         * When the trial connection started.
+         */
+        private long trialStartedAt;
+        /**
+         * When the last connection succeeded.
+         */
+        private long lastSuccess;
+        /**
+         * Says if the origin server is being probed.
+         */
+        private boolean probing;
+        /**
+         * When the last probe started.
+         */
+        private long lastProbe;
+
+        /**
+         * Says if a connection would be allowed at the given time.
+         *
+         * @param now The current time (in milliseconds).
+         * @return {@code true} if a connection would be allowed, or {@code false} otherwise.
+         */
+        private boolean allows(long now) {
+            switch (state) {
+                case OPEN:
+                    return now - openedAt >= OPEN_DURATION;
+                case HALF_OPEN:
+                    return !trialInProgress || now - trialStartedAt >= TRIAL_TIMEOUT;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * A connection that checks whether an origin server accepts connections, closing it as soon as it's established.
+     */
+    private final class Probe implements TCPClientHandler, TCPConnectionCallback {
+
+        /**
+         * The probed origin server.
+         */
+        private final HostAndPort origin;
+        /**
+         * The probed origin server's health.
+         */
+        private final Health health;
+        /**
+         * The selector handling the probe.
+         */
+        private final TCPSelector selector;
+        /**
+         * The probe's key ({@code null} till it starts connecting).
+         */
+        private SelectionKey key;
+        /**
+         * Says if the probe's result was already reported.
+         */
+        private boolean finished;
+
+        private Probe(HostAndPort origin, Health health, TCPSelector selector) {
+            this.origin = origin;
+            this.health = health;
+            this.selector = selector;
+            this.key = null;
+            this.finished = false;
+        }
+
+        @Override
+        public void connectionStarted(SelectionKey key) {
+            this.key = key;
+            selector.schedule(() -> finish(false), PROBE_TIMEOUT);
+        }
+
+        @Override
+        public void connectionFailed() {
+            finish(false);
+        }
+
+        @Override
+        public void handleConnect(SelectionKey key) {
+            try {
+                if (!((SocketChannel) key.channel()).finishConnect()) {
+                    return;
+                }
+            } catch (IOException e) {
+                finish(false);
+                return;
+            }
+            finish(true);
+        }
+
+        @Override
+        public void handleTimeout(SelectionKey key) {
+            finish(false);
+        }
+
+        @Override
+        public boolean handleClose(SelectionKey key) {
+            finish(false);
+            return true;
+        }
+
+        /**
+         * Closes the probe's connection, and reports its result.
+         *
+         * @param success Whether the origin server accepted the connection.
+         */
+        private void finish(boolean success) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (key != null) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                } finally {
+                    selector.deregister(key);
+                }
+            }
+            synchronized (health) {
+                health.probing = false;
+            }
+            if (success) {
+                OriginHealthMonitor.this.connectionSucceeded(origin);
+            } else {
+                logger.debug("Probe to origin server {} failed", origin);
+                OriginHealthMonitor.this.connectionFailed(origin);
+            }
+        }
+    }
+}
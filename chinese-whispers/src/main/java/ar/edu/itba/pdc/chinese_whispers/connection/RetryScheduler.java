@@ -0,0 +1,162 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Schedules retries of connections to origin servers, using exponential backoff with jitter,
+ * so clients don't hammer an origin server that is failing (e.g. while it restarts).
+ * <p>
+ * The delay of each retry is taken at random between half and all of {@link #BASE_DELAY} doubled for each
+ * previous attempt (up to {@link #MAX_DELAY}), so retries of sessions that failed together are spread.
+ * Each origin server can have up to {@link #MAX_PENDING_RETRIES_PER_ORIGIN} pending retries in each selector;
+ * once reached, new retries are rejected (and those sessions must fail).
+ * <p>
+ * Retries are scheduled in the selector's timer wheel, so they cost nothing while they wait.
+ * <p>
+ * Note: This class is not thread safe. Each {@link TCPSelector} owns a retry scheduler, which must only be used
+ * by the thread driving that selector.
+ */
+public final class RetryScheduler {
+
+    /**
+     * Delay (in milliseconds) of the first retry (before jitter).
+     */
+    private static final long BASE_DELAY = 200;
+    /**
+     * Maximum delay (in milliseconds) of a retry (before jitter).
+     */
+    private static final long MAX_DELAY = 5000;
+    /**
+     * Maximum amount of pending retries to the same origin server.
+     */
+    private static final int MAX_PENDING_RETRIES_PER_ORIGIN = 64;
+
+    /**
+     * The selector whose timer wheel schedules the retries.
+     */
+    private final TCPSelector selector;
+    /**
+     * Holds the amount of pending retries to each origin server.
+     */
+    private final Map<HostAndPort, Integer> pendingRetries;
+    /**
+     * Object to which the retries statistics are reported.
+     */
+    private final MetricsProvider metricsProvider;
+
+
+    /**
+     * Constructor.
+     *
+     * @param selector        The selector whose timer wheel will schedule the retries.
+     * @param metricsProvider Object to which the retries statistics are reported.
+     */
+    public RetryScheduler(TCPSelector selector, MetricsProvider metricsProvider) {
+        if (selector == null || metricsProvider == null) {
+            throw new IllegalArgumentException();
+        }
+        this.selector = selector;
+        this.pendingRetries = new HashMap<>();
+        this.metricsProvider = metricsProvider;
+    }
+
+    /**
+     * Schedules a retry of a connection to the given origin server.
+     *
+     * @param origin  The origin server whose connection failed.
+     * @param attempt The amount of attempts already performed by the session (1 for the first retry).
+     * @param task    The task that retries the connection.
+     * @return A {@link Retry} that allows cancelling the retry,
+     * or {@code null} if the origin server has too many pending retries.
+     */
+    public Retry schedule(HostAndPort origin, int attempt, Runnable task) {
+        if (origin == null || attempt < 1 || task == null) {
+            throw new IllegalArgumentException();
+        }
+        int pending = pendingRetries.getOrDefault(origin, 0);
+        if (pending >= MAX_PENDING_RETRIES_PER_ORIGIN) {
+            metricsProvider.addOriginRetriesRejected(1);
+            return null;
+        }
+        pendingRetries.put(origin, pending + 1);
+        metricsProvider.addOriginRetries(1);
+        Retry retry = new Retry(origin);
+        retry.timeout = selector.schedule(() -> {
+            if (retry.finish()) {
+                task.run();
+            }
+        }, delay(attempt));
+        return retry;
+    }
+
+    /**
+     * Returns the delay of a retry after the given amount of attempts (with jitter).
+     *
+     * @param attempt The amount of attempts already performed.
+     * @return The delay (in milliseconds).
+     */
+    private static long delay(int attempt) {
+        long backoff = BASE_DELAY << Math.min(attempt - 1, 20); // Capped shift, to avoid overflowing
+        backoff = Math.min(backoff, MAX_DELAY);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+
+    /**
+     * A pending retry.
+     */
+    public final class Retry {
+
+        /**
+         * The origin server whose connection will be retried.
+         */
+        private final HostAndPort origin;
+        /**
+         * The timeout that runs the retry.
+         */
+        private TimerWheel.Timeout timeout;
+        /**
+         * Says if the retry was run or cancelled.
+         */
+        private boolean finished;
+
+        private Retry(HostAndPort origin) {
+            this.origin = origin;
+            this.finished = false;
+        }
+
+        /**
+         * Cancels this retry (if it was not run yet).
+         */
+        public void cancel() {
+            if (finish()) {
+                timeout.cancel();
+            }
+        }
+
+        /**
+         * Marks this retry as finished, releasing its place among the origin server's pending retries.
+         *
+         * @return {@code true} if the retry was pending, or {@code false} if it had already finished.
+         */
+        private boolean finish() {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+            int pending = pendingRetries.get(origin) - 1;
+            if (pending == 0) {
+                pendingRetries.remove(origin);
+            } else {
+                pendingRetries.put(origin, pending);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Receives the result of starting a connection through
+ * {@link TCPSelector#addClientSocketChannel(String, int, TCPClientHandler, TCPConnectionCallback)}.
+ * Methods are called by the thread driving the selector in which the connection was requested.
+ */
+public interface TCPConnectionCallback {
+
+    /**
+     * Called when the socket channel started connecting.
+     *
+     * @param key The {@link SelectionKey} representing the new connection.
+     */
+    void connectionStarted(SelectionKey key);
+
+    /**
+     * Called when the connection couldn't start (i.e. the host name couldn't be resolved, or the socket couldn't be
+     * opened).
+     */
+    void connectionFailed();
+}
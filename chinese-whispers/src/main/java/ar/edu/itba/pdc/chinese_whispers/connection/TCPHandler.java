@@ -11,10 +11,22 @@ public interface TCPHandler {
 
     /**
      * Handles close event.
+     * Implementations must close the key's channel and then call {@link TCPSelector#deregister(SelectionKey)},
+     * so the selector can keep track of its live connections.
      *
      * @param key The {@link SelectionKey} whose channel will be closed.
      * @return {@code true} if the connection was successfully closed, or {@code false} otherwise.
      */
     boolean handleClose(SelectionKey key);
 
+    /**
+     * Returns the identity of the user this handler is serving (e.g. its JID), to be included in diagnostics.
+     * Note: This method can be called by any thread.
+     *
+     * @return The user's identity, or {@code null} if it's not known.
+     */
+    default String getUserIdentity() {
+        return null;
+    }
+
 }
\ No newline at end of file
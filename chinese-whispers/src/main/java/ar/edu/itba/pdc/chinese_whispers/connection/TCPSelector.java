@@ -1,6 +1,8 @@
 package ar.edu.itba.pdc.chinese_whispers.connection;
 
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
 import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.ConfigurationsSnapshot;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
 import org.slf4j.Logger;
@@ -9,15 +11,21 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
 /**
  * Created by jbellini on 27/10/16.
  * <p>
  * This class handles all IO operations.
- * Implements the singleton pattern to have only one selector in all the project.
+ * Implements the singleton pattern to have only one acceptor selector in all the project.
+ * Extra worker selectors (each one driven by its own thread) can be created through {@link TCPSelectorGroup}.
  * To register a channel, a {@link TCPHandler} must be registered with it
  * as the select operation uses it to perform operations.
  * Contains a set of nothingToDoTasks to be performed in case no IO events were triggered when selecting.
+ * <p>
+ * Note: Each instance must only be operated from the thread that drives its {@link #doSelect()} loop.
+ * Other threads can only interact with it through the {@link #execute(Runnable)} method.
  */
 public final class TCPSelector {
 
@@ -38,19 +46,79 @@ public final class TCPSelector {
      * Max amount of TCP connections allowed.
      */
     private static final int MAX_AMOUNT_OF_CONNECTIONS = 500;
+    /**
+     * Duration of each tick of the timer wheel (in milliseconds).
+     */
+    private static final int TIMER_TICK_DURATION = 100;
+    /**
+     * Amount of slots of the timer wheel (one round of the wheel lasts more than the connection timeout).
+     */
+    private static final int TIMER_WHEEL_SLOTS = 4096;
+    /**
+     * Size of the buffers given by the buffer pool.
+     */
+    private static final int POOLED_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Amount of buffers in each slab of the buffer pool (256 KiB slabs).
+     */
+    private static final int BUFFERS_PER_SLAB = 32;
+    /**
+     * Minimum amount of slabs kept by the buffer pool.
+     */
+    private static final int BUFFER_POOL_LOW_WATERMARK = 1;
+    /**
+     * Maximum amount of slabs of the buffer pool (16 MiB per selector).
+     */
+    private static final int BUFFER_POOL_HIGH_WATERMARK = 64;
+    /**
+     * Time between each buffer pool trim (in milliseconds).
+     */
+    private static final int BUFFER_POOL_TRIM_INTERVAL = 30000;
+    /**
+     * Time between each origin connections pool maintenance (in milliseconds).
+     */
+    private static final int ORIGIN_POOL_MAINTENANCE_INTERVAL = 1000;
+    /**
+     * Time between each check of the origin servers that must be probed (in milliseconds).
+     */
+    private static final int ORIGIN_PROBE_INTERVAL = 1000;
+    /**
+     * Time (in milliseconds) after which a handler callback is considered to be stalling the event loop.
+     */
+    private static final long CALLBACK_STALL_THRESHOLD = 100;
 
     /**
      * The selector to perform IO operations.
      */
     private final Selector selector;
     /**
-     * Contains all the accepted keys that are connected.
+     * Contains all the accepted keys that are connected (keys are removed through {@link #deregister(SelectionKey)}).
      */
     private final Set<SelectionKey> acceptedKeys;
     /**
-     * Contains when the last activity took place.
+     * Contains the idle timeout of each key whose handler implements {@link TCPTimeoutCancellableHandler}.
+     */
+    private final Map<SelectionKey, IdleTimeout> idleTimeouts;
+    /**
+     * Schedules the idle timeouts (and any other timed task).
      */
-    private final Map<SelectionKey, Long> lastActivities;
+    private final TimerWheel timerWheel;
+    /**
+     * The time (in milliseconds) cached by the select loop, to avoid querying the clock for each IO event.
+     */
+    private long currentTime;
+    /**
+     * Pool of buffers to be used by the connections handled by this selector.
+     */
+    private final ByteBufferPool bufferPool;
+    /**
+     * Pool of already connected sockets to origin servers, to be used by the connections handled by this selector.
+     */
+    private final OriginConnectionPool originConnectionPool;
+    /**
+     * Schedules the retries of origin server connections started by this selector.
+     */
+    private final RetryScheduler retryScheduler;
     /**
      * Tasks that are performed always before the select operation.
      */
@@ -64,9 +132,45 @@ public final class TCPSelector {
      */
     private final Map<SelectionKey, Integer> connectionTries;
     /**
-     * Set used by the timeout task to remove keys with issues.
+     * Tasks submitted by other threads, to be run by the thread driving this selector.
+     */
+    private final Queue<Runnable> pendingTasks;
+    /**
+     * Amount of accepted connections this selector holds.
+     * It's only written by the thread driving this selector, but it can be read by any thread.
+     */
+    private volatile int amountOfConnections;
+    /**
+     * Amount of keys in the connection tries registry.
+     * It's only written by the thread driving this selector, but it can be read by any thread.
+     */
+    private volatile int amountOfConnectionTries;
+    /**
+     * Object to which the event loop statistics are reported.
+     */
+    private final MetricsProvider metricsProvider;
+    /**
+     * The thread driving this selector ({@code null} till it starts selecting).
+     */
+    private volatile Thread thread;
+    /**
+     * When the handler callback being run started ({@link System#nanoTime()}), or 0 if no callback is running.
+     * It's written after the callback's handler and name, so it publishes them to the {@link EventLoopWatchdog}.
+     */
+    private volatile long callbackStartedAt;
+    /**
+     * The handler whose callback is being run.
+     */
+    private TCPHandler callbackHandler;
+    /**
+     * The name of the callback being run.
      */
-    private final Set<SelectionKey> removableKeys;
+    private String callbackName;
+    /**
+     * When the callback last reported by the watchdog started (so each stall is reported once).
+     * Only used by the watchdog's thread.
+     */
+    private long reportedStallStartedAt;
 
 
     private final Logger logger;
@@ -74,6 +178,10 @@ public final class TCPSelector {
      * Contains the singleton.
      */
     private static TCPSelector instance;
+    /**
+     * Holds the selector being driven by each thread.
+     */
+    private static final ThreadLocal<TCPSelector> currentSelector = new ThreadLocal<>();
 
 
     /**
@@ -84,60 +192,26 @@ public final class TCPSelector {
     private TCPSelector() throws IOException {
         this.selector = Selector.open();
         this.acceptedKeys = new HashSet<>();
-        this.lastActivities = new HashMap<>();
+        this.idleTimeouts = new HashMap<>();
+        this.currentTime = System.currentTimeMillis();
+        this.timerWheel = new TimerWheel(TIMER_TICK_DURATION, TIMER_WHEEL_SLOTS, currentTime);
         this.alwaysRunTasks = new HashSet<>();
         this.nothingToDoTasks = new HashSet<>();
         this.connectionTries = new HashMap<>();
-        removableKeys = new HashSet<>();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+        this.amountOfConnections = 0;
+        this.amountOfConnectionTries = 0;
         this.logger = LogHelper.getLogger(getClass());
-        alwaysRunTasks.add(() -> {
-            // Checks the timeout for each key in the lastActivities map's key set.
-            removableKeys.clear();
-            for (SelectionKey key : lastActivities.keySet()) {
-                if (!key.isValid()) {
-                    removableKeys.add(key);
-                    continue;
-                }
-                if (key.attachment() instanceof TCPAcceptorHandler) {
-                    removableKeys.add(key); // Don't check again acceptor handlers.
-                    continue; // Do nothing with these handlers.
-                }
-                if (!(key.attachment() instanceof TCPTimeoutCancellableHandler)) {
-                    // Shouldn't reach this point
-                    // In case one attachment is not a TCPHandler, that key is cancelled
-                    key.cancel();
-                    removableKeys.add(key);
-                    continue;
-                }
-                TCPTimeoutCancellableHandler handler = (TCPTimeoutCancellableHandler) key.attachment();
-                Long lastActivity = lastActivities.get(key);
-                long currentTime = System.currentTimeMillis();
-                if (lastActivity == null) {
-                    // The key's first activity was not registered...
-                    registerTimeoutCancelableKey(key, currentTime);
-                    continue;
-                }
-                if (currentTime - lastActivity >= CONNECTION_TIMEOUT) {
-
-                    handler.handleTimeout(key);
-                    // Updates the last activity timestamp
-                    registerTimeoutCancelableKey(key, currentTime);
-                }
-            }
-            removableKeys.forEach(lastActivities::remove); // Remove all those keys with problems
-        });
-        alwaysRunTasks.add(() -> {
-            // This task updates the accepted key set,
-            // Removing those that are not contained in the selector's keys set.
-            Iterator<SelectionKey> it = acceptedKeys.iterator();
-            while (it.hasNext()) {
-                SelectionKey each = it.next();
-                // If the selector does not contains the key, it means that the connection was closed.
-                if (!selector.keys().contains(each)) {
-                    it.remove();
-                }
-            }
-        });
+        this.metricsProvider = MetricsManager.getInstance();
+        this.callbackStartedAt = 0;
+        this.bufferPool = new ByteBufferPool(POOLED_BUFFER_SIZE, BUFFERS_PER_SLAB,
+                BUFFER_POOL_LOW_WATERMARK, BUFFER_POOL_HIGH_WATERMARK, MetricsManager.getInstance());
+        schedule(this::trimBufferPool, BUFFER_POOL_TRIM_INTERVAL);
+        this.originConnectionPool = new OriginConnectionPool(this, MetricsManager.getInstance(),
+                OriginHealthMonitor.getInstance());
+        schedule(this::maintainOriginConnectionPool, ORIGIN_POOL_MAINTENANCE_INTERVAL);
+        schedule(this::probeOrigins, ORIGIN_PROBE_INTERVAL);
+        this.retryScheduler = new RetryScheduler(this, MetricsManager.getInstance());
     }
 
 
@@ -158,35 +232,189 @@ public final class TCPSelector {
     }
 
     /**
-     * Adds the key in the last activities map.
-     * Note that the key attachment must not be null, and must implement {@link TCPTimeoutCancellableHandler} interface.
+     * Creates a new selector, to be driven by a worker thread.
      *
-     * @param key The key that must be check for timeout.
+     * @return The new selector, or {@code null} if it couldn't be opened.
      */
-    private void registerTimeoutCancelableKey(SelectionKey key) {
-        registerTimeoutCancelableKey(key, System.currentTimeMillis());
+    /* package */ static TCPSelector newWorker() {
+        try {
+            return new TCPSelector();
+        } catch (IOException e) {
+            return null;
+        }
     }
 
     /**
-     * Adds the key in the last activities map.
-     * Note that the key attachment must not be null, and must implement {@link TCPTimeoutCancellableHandler} interface.
-     * If the key already had a registered timestamp, and the given timestamp is smaller that the registered one,
-     * an {@link IllegalArgumentException} is thrown.
+     * Gets the selector being driven by the calling thread.
+     * If the calling thread is not driving any selector, the singleton instance is returned.
      *
-     * @param key       The key that must be check for timeout.
-     * @param timestamp The new timestamp
-     * @throws IllegalArgumentException if the the key already had a registered timestamp,
-     *                                  and the given timestamp is smaller that the registered one
+     * @return The selector that owns the calling thread.
      */
-    private void registerTimeoutCancelableKey(SelectionKey key, long timestamp) {
-        if (key.attachment() == null || !(key.attachment() instanceof TCPTimeoutCancellableHandler)) {
-            return; // Do nothing with keys that are not of our interest.
+    public static TCPSelector getCurrent() {
+        TCPSelector current = currentSelector.get();
+        return current == null ? getInstance() : current;
+    }
+
+    /**
+     * Returns the amount of accepted connections this selector is holding.
+     *
+     * @return The amount of connections.
+     */
+    public int getAmountOfConnections() {
+        return amountOfConnections;
+    }
+
+    /**
+     * Returns the amount of keys whose connection tries are being tracked by this selector
+     * (i.e. client connections that needed more than one try, and that were not closed yet).
+     *
+     * @return The amount of keys.
+     */
+    public int getAmountOfConnectionTries() {
+        return amountOfConnectionTries;
+    }
+
+    /**
+     * Returns the buffer pool of this selector.
+     * Note: The pool must only be used by the thread driving this selector.
+     *
+     * @return The buffer pool.
+     */
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Trims the buffer pool, and schedules the next trim.
+     */
+    private void trimBufferPool() {
+        bufferPool.trim();
+        schedule(this::trimBufferPool, BUFFER_POOL_TRIM_INTERVAL);
+    }
+
+    /**
+     * Returns the origin connections pool of this selector.
+     * Note: The pool must only be used by the thread driving this selector.
+     *
+     * @return The origin connections pool.
+     */
+    public OriginConnectionPool getOriginConnectionPool() {
+        return originConnectionPool;
+    }
+
+    /**
+     * Returns the scheduler of origin server connection retries of this selector.
+     * Note: The scheduler must only be used by the thread driving this selector.
+     *
+     * @return The retry scheduler.
+     */
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    /**
+     * Updates the origin connections pool with the actual configurations, and schedules the next maintenance.
+     * Only selectors that handle connections keep pooled connections.
+     */
+    private void maintainOriginConnectionPool() {
+        if (TCPSelectorGroup.getInstance().getSelectors().contains(this)) {
+            ConfigurationsSnapshot snapshot = Configurations.getInstance().getSnapshot();
+            originConnectionPool.maintain(snapshot.getOrigins(), snapshot.getWarmConnections());
+        } else {
+            originConnectionPool.maintain(Collections.emptySet(), 0); // Connections are handled by the workers
+        }
+        schedule(this::maintainOriginConnectionPool, ORIGIN_POOL_MAINTENANCE_INTERVAL);
+    }
+
+    /**
+     * Probes the origin servers that were not seen healthy lately, and schedules the next check.
+     * Only the first selector of the group probes origin servers.
+     */
+    private void probeOrigins() {
+        if (TCPSelectorGroup.getInstance().getSelectors().get(0) == this) {
+            OriginHealthMonitor.getInstance().probe(Configurations.getInstance().getSnapshot().getOrigins());
         }
-        Long oldTimestamp = lastActivities.get(key);
-        if (oldTimestamp != null && timestamp < oldTimestamp) {
+        schedule(this::probeOrigins, ORIGIN_PROBE_INTERVAL);
+    }
+
+    /**
+     * Submits a task to be run by the thread driving this selector, waking it up if it's blocked in a select.
+     * This is the only method that can be safely called from any thread.
+     *
+     * @param task The task to be run.
+     */
+    public void execute(Runnable task) {
+        if (task == null) {
             throw new IllegalArgumentException();
         }
-        lastActivities.put(key, System.currentTimeMillis());
+        pendingTasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules a task to be run by the thread driving this selector, once the given delay has passed.
+     * Note: This method must only be called by the thread driving this selector.
+     *
+     * @param task  The task to be run.
+     * @param delay The delay (in milliseconds).
+     * @return A {@link TimerWheel.Timeout} that allows cancelling the task.
+     */
+    public TimerWheel.Timeout schedule(Runnable task, long delay) {
+        if (task == null) {
+            throw new IllegalArgumentException();
+        }
+        return timerWheel.schedule(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logException("Exception when trying to perform a scheduled task", e);
+            }
+        }, delay, currentTime);
+    }
+
+    /**
+     * Removes the given key from all the registries of this selector (i.e. accepted keys, idle timeouts and
+     * connection tries), updating the amount of connections.
+     * It must be called once the key's channel is closed. Calling it more than once for the same key has no effect.
+     * <p>
+     * Note: This method must only be called by the thread driving this selector.
+     *
+     * @param key The {@link SelectionKey} whose channel was closed.
+     */
+    public void deregister(SelectionKey key) {
+        if (key == null) {
+            throw new IllegalArgumentException();
+        }
+        IdleTimeout idleTimeout = idleTimeouts.remove(key);
+        if (idleTimeout != null) {
+            idleTimeout.timeout.cancel();
+        }
+        if (connectionTries.remove(key) != null) {
+            amountOfConnectionTries = connectionTries.size();
+        }
+        if (acceptedKeys.remove(key)) {
+            amountOfConnections = acceptedKeys.size();
+            MetricsManager.getInstance().addActiveConnections(-1);
+        }
+    }
+
+    /**
+     * Registers activity for the given key, postponing its idle timeout.
+     * Note that keys whose attachment does not implement {@link TCPTimeoutCancellableHandler} interface are ignored.
+     *
+     * @param key The key that must be check for timeout.
+     */
+    private void registerTimeoutCancelableKey(SelectionKey key) {
+        IdleTimeout idleTimeout = idleTimeouts.get(key);
+        if (idleTimeout != null) {
+            idleTimeout.lastActivity = currentTime; // The timeout will be postponed when its deadline arrives.
+            return;
+        }
+        Object attachment = key.attachment();
+        if (!(attachment instanceof TCPTimeoutCancellableHandler) || attachment instanceof TCPAcceptorHandler) {
+            return; // Do nothing with keys that are not of our interest.
+        }
+        idleTimeouts.put(key, new IdleTimeout(key));
     }
 
 
@@ -256,33 +484,116 @@ public final class TCPSelector {
 
     /**
      * Adds a client socket channel to this selector, and starts connecting it (in non-blocking mode).
+     * The host name is resolved by the {@link NameResolver}, so this selector's thread is not blocked by lookups.
+     * Note: This method must only be called by the thread driving this selector.
      *
-     * @param host    The host to be connected with.
-     * @param port    The port in which the host is listening.
+     * @param host     The host to be connected with.
+     * @param port     The port in which the host is listening.
+     * @param handler  A {@link TCPClientHandler} to handle selected IO operations.
+     * @param callback Notified (by the thread driving this selector) with the {@link SelectionKey} representing
+     *                 the new connection once the socket started connecting, or when the connection couldn't start.
+     *                 If the host's address is cached, it might be notified before this method returns.
+     */
+    public void addClientSocketChannel(String host, int port, TCPClientHandler handler,
+                                       TCPConnectionCallback callback) {
+        if (host == null || host.isEmpty() || port < 0 || port > 0xFFFF || handler == null || callback == null) {
+            throw new IllegalArgumentException();
+        }
+        NameResolver.getInstance().resolve(host, address -> {
+            SelectionKey key = address == null ? null : addClientSocketChannel(new InetSocketAddress(address, port),
+                    handler);
+            if (key == null) {
+                callback.connectionFailed();
+            } else {
+                callback.connectionStarted(key);
+            }
+        });
+    }
+
+    /**
+     * Adds a client socket channel to this selector, and starts connecting it (in non-blocking mode)
+     * with the given (already resolved) address.
+     *
+     * @param address The address to be connected with.
      * @param handler A {@link TCPClientHandler} to handle selected IO operations.
      * @return The {@link SelectionKey} representing the new connection, if the socket could start connecting,
      * or {@code null} otherwise.
      */
-    public SelectionKey addClientSocketChannel(String host, int port, TCPClientHandler handler) {
-        if (host == null || host.isEmpty() || port < 0 || port > 0xFFFF || handler == null) {
-            throw new IllegalArgumentException();
-        }
+    private SelectionKey addClientSocketChannel(InetSocketAddress address, TCPClientHandler handler) {
         try {
             // Will throw exception if the socket couldn't be opened.
             SocketChannel channel = SocketChannel.open();
-            // Will throw exception is the channel was closed (can't happen this)
-            channel.configureBlocking(false);
-            // Will throw exception if connection couldn't start, or name can't be resolved
-            channel.connect(new InetSocketAddress(host, port));
-            // Will throw exception if the channel was closed (can't happen this)
-            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, handler);
-            // Saves the first activity for the new key
-            registerTimeoutCancelableKey(key);
-            return key;
-        } catch (IOException | UnresolvedAddressException e) {
+            try {
+                // Will throw exception is the channel was closed (can't happen this)
+                channel.configureBlocking(false);
+                // Will throw exception if connection couldn't start
+                channel.connect(address);
+                // Will throw exception if the channel was closed (can't happen this)
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, handler);
+                // Saves the first activity for the new key
+                registerTimeoutCancelableKey(key);
+                return key;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.warn("Couldn't start connection to {}: {}", address, e.getMessage());
             return null;
         }
+    }
 
+    /**
+     * Registers in this selector a socket channel that was accepted by another selector.
+     * Registration is performed by the thread driving this selector, so this method can be called from any thread.
+     *
+     * @param channel        The accepted socket channel (must be in non-blocking mode).
+     * @param interestOps    The interest ops with which the channel will be registered.
+     * @param handlerFactory A function that creates the {@link TCPHandler} to be attached to the new key.
+     */
+    public void addAcceptedSocketChannel(SocketChannel channel, int interestOps,
+                                         Function<SelectionKey, TCPHandler> handlerFactory) {
+        if (channel == null || handlerFactory == null) {
+            throw new IllegalArgumentException();
+        }
+        execute(() -> {
+            try {
+                SelectionKey newKey = channel.register(selector, interestOps);
+                newKey.attach(handlerFactory.apply(newKey));
+                afterAccepting(newKey);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Performs the bookkeeping of a recently accepted connection.
+     * If the maximum amount of connections was reached, the new connection is closed.
+     *
+     * @param newKey The {@link SelectionKey} of the accepted connection.
+     */
+    private void afterAccepting(SelectionKey newKey) {
+        // Saves the first activity for the new connection
+        registerTimeoutCancelableKey(newKey);
+        if (TCPSelectorGroup.getInstance().getAmountOfConnections() >= MAX_AMOUNT_OF_CONNECTIONS) {
+            newKey.cancel(); // No more connections allowed.
+            try {
+                newKey.channel().close();
+            } catch (Throwable e) {
+                newKey.cancel(); // Allows cancelling the new key
+            }
+            deregister(newKey);
+            MetricsManager.getInstance().addRejectedConnections(1);
+            return;
+        }
+        acceptedKeys.add(newKey); // Adds the new key in the accepted keys.
+        amountOfConnections = acceptedKeys.size();
+        MetricsManager.getInstance().addAccesses(1);
+        MetricsManager.getInstance().addActiveConnections(1);
     }
 
     /**
@@ -309,18 +620,38 @@ public final class TCPSelector {
      * @return {@code true} if IO events where triggered, or {@code false} otherwise.
      */
     public boolean doSelect() {
-        try {
-            alwaysRunTasks.forEach(Runnable::run); // Run all tasks that are required to run always
-        } catch (Throwable e) {
-            logException("Exception when trying to perform an \"always-run\" task", e);
+        if (currentSelector.get() != this) {
+            currentSelector.set(this); // The calling thread is the one driving this selector
+            thread = Thread.currentThread();
+        }
+        currentTime = System.currentTimeMillis();
+        runPendingTasks();
+        timerWheel.expireTimeouts(currentTime);
+        if (!alwaysRunTasks.isEmpty()) {
+            long tasksStartedAt = System.nanoTime();
+            try {
+                alwaysRunTasks.forEach(Runnable::run); // Run all tasks that are required to run always
+            } catch (Throwable e) {
+                logException("Exception when trying to perform an \"always-run\" task", e);
+            }
+            metricsProvider.addAlwaysRunTasksTime(System.nanoTime() - tasksStartedAt);
         }
         try {
-            if (selector.select(SELECT_TIMEOUT) == 0) {
+            long selectStartedAt = System.nanoTime();
+            int selected = selector.select(timerWheel.timeToNextTimeout(currentTime, SELECT_TIMEOUT));
+            metricsProvider.addSelectTime(System.nanoTime() - selectStartedAt);
+            metricsProvider.addSelectedKeys(selected);
+            currentTime = System.currentTimeMillis();
+            if (selected == 0) {
                 // No IO operation ...
-                try {
-                    nothingToDoTasks.forEach(Runnable::run);
-                } catch (Throwable e) {
-                    logException("Exception when trying to perform a \"nothing-to-do-run\" task", e);
+                if (!nothingToDoTasks.isEmpty()) {
+                    long tasksStartedAt = System.nanoTime();
+                    try {
+                        nothingToDoTasks.forEach(Runnable::run);
+                    } catch (Throwable e) {
+                        logException("Exception when trying to perform a \"nothing-to-do-run\" task", e);
+                    }
+                    metricsProvider.addNothingToDoTasksTime(System.nanoTime() - tasksStartedAt);
                 }
                 return false;
             }
@@ -342,25 +673,18 @@ public final class TCPSelector {
                 // Only valid keys with a TCPHandler as an attachment will reach this point...
                 if (key.isAcceptable()) {
                     // Key can only be acceptable if it's channel is a server socket channel
+                    long startedAt = callbackStarted(handler, "handleAccept");
                     SelectionKey newKey = ((TCPAcceptorHandler) handler).handleAccept(key);
+                    callbackFinished(startedAt);
                     if (newKey != null) {
-                        // Saves the first activity for the new connection
-                        registerTimeoutCancelableKey(newKey);
-                        if (acceptedKeys.size() >= MAX_AMOUNT_OF_CONNECTIONS) {
-                            newKey.cancel(); // No more connections allowed.
-                            try {
-                                newKey.channel().close();
-                            } catch (Throwable e) {
-                                newKey.cancel(); // Allows cancelling the new key
-                            }
-                            continue;
-                        }
-                        acceptedKeys.add(newKey); // Adds the new key in the accepted keys.
-                        MetricsManager.getInstance().addAccesses(1);
+                        // A null key can also mean that the connection was handed off to another selector
+                        afterAccepting(newKey);
                     }
                 } else if (key.isConnectable()) {
                     // Key can only be connectable if it's channel is a client socket channel
+                    long startedAt = callbackStarted(handler, "handleConnect");
                     ((TCPClientHandler) handler).handleConnect(key);
+                    callbackFinished(startedAt);
                     if (key.isValid()) {
                         // Key could have been invalidated if connection was refused
                         afterTryingConnection(key); // Check if connection was established
@@ -370,18 +694,25 @@ public final class TCPSelector {
                     // Keys up to this point are valid, as they were selected and no method has been called.
                     // Only ReadWriteHandlers's key will be readable or writable, or else the key will be cancelled
                     if (key.isReadable()) {
+                        long startedAt = callbackStarted(handler, "handleRead");
                         ((TCPReadWriteHandler) handler).handleRead(key);
+                        callbackFinished(startedAt);
                     }
                     if (key.isValid() && key.isWritable()) {
+                        long startedAt = callbackStarted(handler, "handleWrite");
                         ((TCPReadWriteHandler) handler).handleWrite(key);
+                        callbackFinished(startedAt);
                     }
                 }
             } catch (Throwable e) {
+                callbackStartedAt = 0; // The callback (if any) ended abruptly
+                callbackHandler = null;
                 try {
                     key.channel().close();
                 } catch (Throwable anotherThrowable) {
                     key.cancel();
                 }
+                deregister(key);
                 logException("Exception when trying to perform an IO task task", e);
             }
         }
@@ -390,6 +721,82 @@ public final class TCPSelector {
     }
 
 
+    /**
+     * Records that a handler callback is about to run, so the {@link EventLoopWatchdog} can report it if it stalls.
+     *
+     * @param handler  The handler whose callback will run.
+     * @param callback The callback's name.
+     * @return When the callback started ({@link System#nanoTime()}).
+     */
+    private long callbackStarted(TCPHandler handler, String callback) {
+        callbackHandler = handler;
+        callbackName = callback;
+        long startedAt = System.nanoTime();
+        callbackStartedAt = startedAt; // Publishes the handler and the callback's name
+        return startedAt;
+    }
+
+    /**
+     * Records that the running handler callback finished, reporting the time it took
+     * (and logging it if it stalled the event loop).
+     *
+     * @param startedAt When the callback started ({@link System#nanoTime()}).
+     */
+    private void callbackFinished(long startedAt) {
+        long elapsed = System.nanoTime() - startedAt;
+        callbackStartedAt = 0;
+        metricsProvider.addHandlerTime(callbackHandler.getClass(), callbackName, elapsed);
+        if (elapsed >= CALLBACK_STALL_THRESHOLD * 1000000) {
+            logger.warn("{}.{} stalled the event loop for {} ms (user {})", callbackHandler.getClass().getSimpleName(),
+                    callbackName, elapsed / 1000000, callbackHandler.getUserIdentity());
+        }
+        callbackHandler = null;
+    }
+
+    /**
+     * Checks whether the running handler callback (if any) is stalling the event loop, logging the handler,
+     * its user, and the stack trace of this selector's thread (once per stall).
+     * <p>
+     * Note: This method must only be called by the {@link EventLoopWatchdog}'s thread.
+     *
+     * @param now The actual time ({@link System#nanoTime()}).
+     */
+    /* package */ void checkStall(long now) {
+        long startedAt = callbackStartedAt;
+        if (startedAt == 0 || startedAt == reportedStallStartedAt
+                || now - startedAt < CALLBACK_STALL_THRESHOLD * 1000000) {
+            return;
+        }
+        reportedStallStartedAt = startedAt;
+        TCPHandler handler = callbackHandler; // Might already belong to a later callback, which is harmless
+        Thread stalledThread = thread;
+        if (handler == null || stalledThread == null) {
+            return;
+        }
+        StringBuilder stackTrace = new StringBuilder();
+        for (StackTraceElement each : stalledThread.getStackTrace()) {
+            stackTrace.append(System.lineSeparator()).append("\tat ").append(each);
+        }
+        logger.warn("Event loop of {} blocked for {} ms in {}.{} (user {}){}", stalledThread.getName(),
+                (now - startedAt) / 1000000, handler.getClass().getSimpleName(), callbackName,
+                handler.getUserIdentity(), stackTrace);
+    }
+
+    /**
+     * Runs the tasks submitted by other threads through the {@link #execute(Runnable)} method.
+     */
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logException("Exception when trying to perform a submitted task", e);
+            }
+        }
+    }
+
+
     /**
      * Checks if the connection was established for the channel of the given {@link SelectionKey}.
      * If it wasn't the amount of tries are updated.
@@ -406,11 +813,65 @@ public final class TCPSelector {
             tries++;
             if (tries >= MAX_CONNECTION_TRIES) {
                 key.cancel();
-                connectionTries.remove(key);
+                deregister(key);
             } else {
                 connectionTries.put(key, tries);
+                amountOfConnectionTries = connectionTries.size();
             }
         }
     }
 
+
+    /**
+     * Idle timeout of a key, scheduled in the timer wheel.
+     * Activity only updates the last activity timestamp, and the timeout is postponed when its deadline arrives,
+     * so registering activity does not touch the wheel.
+     */
+    private final class IdleTimeout implements Runnable {
+
+        /**
+         * The key being checked for timeout.
+         */
+        private final SelectionKey key;
+        /**
+         * The timeout scheduled in the wheel.
+         */
+        private final TimerWheel.Timeout timeout;
+        /**
+         * When the last activity took place.
+         */
+        private long lastActivity;
+
+        private IdleTimeout(SelectionKey key) {
+            this.key = key;
+            this.lastActivity = currentTime;
+            this.timeout = timerWheel.schedule(this, CONNECTION_TIMEOUT, currentTime);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!key.isValid()) {
+                    deregister(key); // In case the connection was not closed through its handler
+                    return;
+                }
+                if (currentTime - lastActivity >= CONNECTION_TIMEOUT) {
+                    Object attachment = key.attachment(); // Handlers can be replaced, so the actual one is used
+                    if (!(attachment instanceof TCPTimeoutCancellableHandler)) {
+                        // Shouldn't reach this point
+                        // In case the attachment is not a TCPTimeoutCancellableHandler, the key is cancelled
+                        key.cancel();
+                        idleTimeouts.remove(key);
+                        return;
+                    }
+                    ((TCPTimeoutCancellableHandler) attachment).handleTimeout(key);
+                    lastActivity = currentTime; // Updates the last activity timestamp
+                }
+                timeout.reschedule(lastActivity + CONNECTION_TIMEOUT - currentTime, currentTime);
+            } catch (Throwable e) {
+                idleTimeouts.remove(key);
+                logException("Exception when trying to handle a timeout", e);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds the worker {@link TCPSelector}s (i.e. reactors) in which accepted connections are distributed.
+ * Each worker selector is driven by its own thread, while the {@link TCPSelector} singleton keeps on
+ * accepting connections (and handling the administration protocol) in the main thread.
+ * If no workers are started, all connections are handled by the {@link TCPSelector} singleton.
+ * <p>
+ * This class implements the singleton pattern.
+ */
+public final class TCPSelectorGroup {
+
+    /**
+     * Holds the singleton.
+     */
+    private static final TCPSelectorGroup singleton = new TCPSelectorGroup();
+
+    /**
+     * Contains the worker selectors.
+     */
+    private volatile List<TCPSelector> workers;
+    /**
+     * Index of the worker to start with when choosing the least loaded one (to round-robin ties).
+     */
+    private int nextWorker;
+
+    private final Logger logger;
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     */
+    private TCPSelectorGroup() {
+        this.workers = Collections.emptyList();
+        this.nextWorker = 0;
+        this.logger = LogHelper.getLogger(getClass());
+    }
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
+    public static TCPSelectorGroup getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Creates the given amount of worker selectors, starting a thread to drive each of them
+     * (and another one to watch for stalls in their event loops).
+     * Note: This method can only be called once.
+     *
+     * @param amountOfWorkers The amount of worker selectors to start.
+     * @throws IllegalStateException If workers were already started, or if a selector couldn't be opened.
+     */
+    public synchronized void start(int amountOfWorkers) {
+        if (amountOfWorkers < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (!workers.isEmpty()) {
+            throw new IllegalStateException("Workers were already started.");
+        }
+        List<TCPSelector> newWorkers = new ArrayList<>(amountOfWorkers);
+        for (int i = 0; i < amountOfWorkers; i++) {
+            TCPSelector worker = TCPSelector.newWorker();
+            if (worker == null) {
+                throw new IllegalStateException("Couldn't open a selector.");
+            }
+            newWorkers.add(worker);
+        }
+        for (int i = 0; i < newWorkers.size(); i++) {
+            TCPSelector worker = newWorkers.get(i);
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    worker.doSelect();
+                }
+            }, "reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.workers = Collections.unmodifiableList(newWorkers);
+        logger.info("Started {} worker selectors", amountOfWorkers);
+
+        // The watchdog reports callbacks that stall any of the selectors (including the singleton's)
+        List<TCPSelector> watched = new ArrayList<>(newWorkers);
+        watched.add(TCPSelector.getInstance());
+        Thread watchdog = new Thread(new EventLoopWatchdog(watched), "event-loop-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Returns the worker selectors.
+     * If no workers were started, the list will only contain the {@link TCPSelector} singleton.
+     *
+     * @return An unmodifiable list with the selectors handling connections.
+     */
+    public List<TCPSelector> getSelectors() {
+        List<TCPSelector> actualWorkers = this.workers;
+        return actualWorkers.isEmpty() ? Collections.singletonList(TCPSelector.getInstance()) : actualWorkers;
+    }
+
+    /**
+     * Chooses the selector that must handle a new connection.
+     * The least loaded worker is chosen, using round-robin to break ties.
+     * <p>
+     * Note: This method must only be called by the thread driving the {@link TCPSelector} singleton.
+     *
+     * @return The selector that must handle a new connection.
+     */
+    public TCPSelector nextSelector() {
+        List<TCPSelector> actualWorkers = this.workers;
+        if (actualWorkers.isEmpty()) {
+            return TCPSelector.getInstance();
+        }
+        int size = actualWorkers.size();
+        TCPSelector chosen = null;
+        for (int i = 0; i < size; i++) {
+            TCPSelector each = actualWorkers.get((nextWorker + i) % size);
+            if (chosen == null || each.getAmountOfConnections() < chosen.getAmountOfConnections()) {
+                chosen = each;
+            }
+        }
+        nextWorker = (nextWorker + 1) % size;
+        return chosen;
+    }
+
+    /**
+     * Returns the amount of accepted connections held by all the selectors.
+     *
+     * @return The amount of connections.
+     */
+    public int getAmountOfConnections() {
+        int amount = 0;
+        for (TCPSelector each : getSelectors()) {
+            amount += each.getAmountOfConnections();
+        }
+        if (!workers.isEmpty()) {
+            amount += TCPSelector.getInstance().getAmountOfConnections(); // Administration connections
+        }
+        return amount;
+    }
+
+    /**
+     * Returns the amount of keys whose connection tries are being tracked by all the selectors.
+     *
+     * @return The amount of keys.
+     */
+    public int getAmountOfConnectionTries() {
+        int amount = 0;
+        for (TCPSelector each : getSelectors()) {
+            amount += each.getAmountOfConnectionTries();
+        }
+        if (!workers.isEmpty()) {
+            amount += TCPSelector.getInstance().getAmountOfConnectionTries();
+        }
+        return amount;
+    }
+}
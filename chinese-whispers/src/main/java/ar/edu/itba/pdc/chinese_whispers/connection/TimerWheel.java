@@ -0,0 +1,281 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+/**
+ * A hashed timing wheel that schedules tasks to be run after a given delay.
+ * Scheduling and cancelling a task are O(1) operations, and only the wheel slots whose time has come are visited
+ * when expiring tasks, so idle timeouts cost nothing while they wait.
+ * Time is divided in ticks, so tasks are run (at most) one tick after their deadline.
+ * <p>
+ * Note: This class is not thread safe. It must only be used by the thread driving the {@link TCPSelector} that owns it.
+ */
+public final class TimerWheel {
+
+    /**
+     * Slot value of those timeouts that expired, and whose tasks are about to be run.
+     */
+    private static final int EXPIRING = -2;
+
+    /**
+     * The wheel slots. Each slot holds a doubly linked list of timeouts.
+     */
+    private final Timeout[] slots;
+    /**
+     * Mask used to get the slot of a given tick (the amount of slots is a power of two).
+     */
+    private final int mask;
+    /**
+     * The duration of each tick, in milliseconds.
+     */
+    private final long tickDuration;
+    /**
+     * The time in which the wheel was created (i.e. the start of tick 0).
+     */
+    private final long startTime;
+    /**
+     * The last tick whose slot was visited.
+     */
+    private long lastTick;
+    /**
+     * Amount of scheduled (and not cancelled) timeouts.
+     */
+    private int amountOfTimeouts;
+
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration   The duration of each tick, in milliseconds.
+     * @param amountOfSlots  The amount of slots in the wheel (will be rounded up to a power of two).
+     * @param currentTime    The current time, in milliseconds.
+     */
+    public TimerWheel(long tickDuration, int amountOfSlots, long currentTime) {
+        if (tickDuration <= 0 || amountOfSlots <= 0) {
+            throw new IllegalArgumentException();
+        }
+        int size = Integer.highestOneBit(amountOfSlots);
+        if (size < amountOfSlots) {
+            size <<= 1;
+        }
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.tickDuration = tickDuration;
+        this.startTime = currentTime;
+        this.lastTick = 0;
+        this.amountOfTimeouts = 0;
+    }
+
+    /**
+     * Schedules a task to be run once the given delay has passed.
+     *
+     * @param task        The task to be run.
+     * @param delay       The delay, in milliseconds.
+     * @param currentTime The current time, in milliseconds.
+     * @return A {@link Timeout} that allows cancelling the task.
+     */
+    public Timeout schedule(Runnable task, long delay, long currentTime) {
+        if (task == null) {
+            throw new IllegalArgumentException();
+        }
+        Timeout timeout = new Timeout(this, task);
+        add(timeout, currentTime + Math.max(delay, 0));
+        return timeout;
+    }
+
+    /**
+     * Runs all the tasks whose deadline has passed.
+     *
+     * @param currentTime The current time, in milliseconds.
+     */
+    public void expireTimeouts(long currentTime) {
+        // The current tick is rounded down, so a slot is only visited once all its deadlines have passed
+        long currentTick = Math.max(currentTime - startTime, 0) / tickDuration;
+        if (currentTick <= lastTick) {
+            return;
+        }
+        // If more ticks than slots have passed, each slot is visited once (deadlines are checked anyway).
+        long firstTick = Math.max(lastTick + 1, currentTick - mask);
+        lastTick = currentTick;
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            // Expired timeouts are first removed, and then run, as tasks might cancel or schedule other timeouts.
+            Timeout expired = null;
+            Timeout each = slots[(int) (tick & mask)];
+            while (each != null) {
+                Timeout next = each.next;
+                if (each.deadline <= currentTime) {
+                    remove(each);
+                    each.slot = EXPIRING;
+                    each.nextExpired = expired;
+                    expired = each;
+                }
+                each = next;
+            }
+            while (expired != null) {
+                Timeout next = expired.nextExpired;
+                expired.nextExpired = null;
+                if (expired.slot == EXPIRING) {
+                    // Not cancelled nor rescheduled by a previous task
+                    expired.slot = -1;
+                    expired.task.run();
+                }
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * Returns how much time is left till the next scheduled task must be run, based on the next non empty slot.
+     *
+     * @param currentTime The current time, in milliseconds.
+     * @param max         The maximum value to be returned (e.g. when there are no scheduled tasks).
+     * @return The time left till the next task, in milliseconds (at least 1, and at most {@code max}).
+     */
+    public long timeToNextTimeout(long currentTime, long max) {
+        if (amountOfTimeouts == 0) {
+            return max;
+        }
+        // Slots not visited yet (even those in the past) are checked in order
+        for (long tick = lastTick + 1; tick <= lastTick + 1 + mask; tick++) {
+            if (slots[(int) (tick & mask)] != null) {
+                long timeLeft = startTime + tick * tickDuration - currentTime;
+                return Math.min(Math.max(timeLeft, 1), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the amount of scheduled (and not cancelled) timeouts.
+     *
+     * @return The amount of timeouts.
+     */
+    public int size() {
+        return amountOfTimeouts;
+    }
+
+    /**
+     * Returns the tick to which the given time belongs.
+     * A time in the middle of a tick is rounded up, so tasks are never run before their deadline.
+     *
+     * @param time The time, in milliseconds.
+     * @return The tick.
+     */
+    private long tickOf(long time) {
+        return (Math.max(time - startTime, 0) + tickDuration - 1) / tickDuration;
+    }
+
+    /**
+     * Adds the given timeout to the slot of its deadline.
+     *
+     * @param timeout  The timeout to be added.
+     * @param deadline The time in which the timeout's task must be run.
+     */
+    private void add(Timeout timeout, long deadline) {
+        long tick = Math.max(tickOf(deadline), lastTick + 1); // Past deadlines are run in the next tick
+        int slot = (int) (tick & mask);
+        timeout.deadline = deadline;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timeout;
+        }
+        slots[slot] = timeout;
+        amountOfTimeouts++;
+    }
+
+    /**
+     * Removes the given timeout from its slot.
+     *
+     * @param timeout The timeout to be removed.
+     */
+    private void remove(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return; // Already removed
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        amountOfTimeouts--;
+    }
+
+
+    /**
+     * A task scheduled in a {@link TimerWheel}.
+     */
+    public static final class Timeout {
+
+        /**
+         * The wheel that holds this timeout.
+         */
+        private final TimerWheel wheel;
+        /**
+         * The task to be run.
+         */
+        private final Runnable task;
+        /**
+         * The time in which the task must be run.
+         */
+        private long deadline;
+        /**
+         * The slot holding this timeout, or -1 if it's not scheduled.
+         */
+        private int slot;
+        /**
+         * Previous timeout in the slot.
+         */
+        private Timeout prev;
+        /**
+         * Next timeout in the slot.
+         */
+        private Timeout next;
+        /**
+         * Next timeout in the list of expired timeouts being run.
+         */
+        private Timeout nextExpired;
+
+        private Timeout(TimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+            this.slot = -1;
+        }
+
+        /**
+         * Schedules again the task of this timeout (cancelling it first if it was still pending).
+         *
+         * @param delay       The new delay, in milliseconds.
+         * @param currentTime The current time, in milliseconds.
+         */
+        public void reschedule(long delay, long currentTime) {
+            wheel.remove(this);
+            wheel.add(this, currentTime + Math.max(delay, 0));
+        }
+
+        /**
+         * Cancels this timeout, so its task won't be run.
+         */
+        public void cancel() {
+            if (slot == EXPIRING) {
+                slot = -1; // It was about to be run
+                return;
+            }
+            wheel.remove(this);
+        }
+
+        /**
+         * Says if this timeout is waiting for its task to be run.
+         *
+         * @return {@code true} if the task is still scheduled, or {@code false} otherwise.
+         */
+        public boolean isPending() {
+            return slot >= 0;
+        }
+    }
+}
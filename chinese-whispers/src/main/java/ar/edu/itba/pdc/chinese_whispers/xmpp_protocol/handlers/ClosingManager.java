@@ -1,6 +1,7 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.FrameTemplate;
 
 import java.util.*;
 
@@ -17,9 +18,9 @@ import java.util.*;
 public class ClosingManager {
 
     /**
-     * String to be sent to finish communication
+     * Frame to be sent to finish communication
      */
-    private final static String CLOSE_MESSAGE = "</stream:stream>\n";
+    private final static FrameTemplate CLOSE_FRAME = FrameTemplate.compile("</stream:stream>\n");
 
 
     /**
@@ -65,9 +66,17 @@ public class ClosingManager {
         if (closableHandlers.containsKey(handler)) {
             return;
         }
-//        closableHandlers.put(handler, CLOSE_MESSAGE.getBytes());
-        handler.postMessage(CLOSE_MESSAGE.getBytes());
+        handler.postFrame(CLOSE_FRAME);
         handler.requestClose();
     }
 
+    /**
+     * Returns the amount of handlers stored in this manager, waiting to be closed.
+     *
+     * @return The amount of handlers.
+     */
+    public int getAmountOfClosableHandlers() {
+        return closableHandlers.size();
+    }
+
 }
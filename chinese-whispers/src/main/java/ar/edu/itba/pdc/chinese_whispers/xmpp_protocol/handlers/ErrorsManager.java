@@ -1,10 +1,11 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
-import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.FrameTemplate;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,11 +19,15 @@ import java.util.Set;
 /* package */ abstract class ErrorsManager {
 
 
-    private final static String INITIAL_TAG_UNCLOSED = "<?xml version='1.0' encoding='UTF-8'?>" +
+    /**
+     * Stream header sent before errors when nothing was sent to the handler yet (with a new stream id).
+     */
+    private final static FrameTemplate INITIAL_TAG = FrameTemplate.compile("<?xml version='1.0' encoding='UTF-8'?>" +
             "<stream:stream version='1.0' " +
             "xmlns:stream=\'http://etherx.jabber.org/streams\' " +
             "xmlns=\'jabber:client\' " +
-            "xmlns:xml=\'http://www.w3.org/XML/1998/namespace\'";
+            "xmlns:xml=\'http://www.w3.org/XML/1998/namespace\' " +
+            "id='{id}'>");
 
 
     /**
@@ -31,9 +36,9 @@ import java.util.Set;
     private final Set<ParserResponse> parserResponseErrors;
 
     /**
-     * Holds the message that mus be sent for each value of the {@link XMPPErrors} enum.
+     * Holds the (pre-encoded) message that mus be sent for each value of the {@link XMPPErrors} enum.
      */
-    private final HashMap<XMPPErrors, String> errorMessages;
+    private final HashMap<XMPPErrors, FrameTemplate> errorMessages;
     /**
      * Holds those {@link XMPPHandler}s that reached an error situation.
      * The value is the message that must be sent.
@@ -42,7 +47,7 @@ import java.util.Set;
 
 
     protected ErrorsManager() {
-        this.parserResponseErrors = new HashSet<>();
+        this.parserResponseErrors = EnumSet.noneOf(ParserResponse.class);
         parserResponseErrors.add(ParserResponse.XML_ERROR);
         parserResponseErrors.add(ParserResponse.POLICY_VIOLATION);
         parserResponseErrors.add(ParserResponse.HOST_UNKNOWN);
@@ -73,11 +78,17 @@ import java.util.Set;
     }
 
 
+    /**
+     * Sets the message that must be sent for the given {@link XMPPErrors} value (it is encoded only once, here).
+     *
+     * @param errors  The error.
+     * @param message The message to be sent when the error is reached.
+     */
     protected void addErrorMessage(XMPPErrors errors, String message) {
         if (errors == null || message == null) {
             return;
         }
-        errorMessages.put(errors, message);
+        errorMessages.put(errors, FrameTemplate.compile(message));
     }
 
 
@@ -87,7 +98,17 @@ import java.util.Set;
      * @return The set with {@link ParserResponse} that are errors.
      */
     public Set<ParserResponse> parserResponseErrors() {
-        return new HashSet<>(parserResponseErrors); // Another set in case it's modified by caller.
+        return Collections.unmodifiableSet(parserResponseErrors); // In case caller tries to modify it.
+    }
+
+    /**
+     * Says if the given {@link ParserResponse} is considered as an error.
+     *
+     * @param response The {@link ParserResponse} to be checked.
+     * @return {@code true} if the given response is an error, or {@code false} otherwise.
+     */
+    public boolean isError(ParserResponse response) {
+        return parserResponseErrors.contains(response);
     }
 
 
@@ -99,26 +120,42 @@ import java.util.Set;
      * @param error   The error it reached.
      */
     public void notifyError(XMPPHandler handler, XMPPErrors error) {
-//        if (handler.firstMessage()) {
-//            handler.postMessage((INITIAL_TAG_UNCLOSED + " id='" + IdGenerator.generateId() + "'>").getBytes());
-//        }
-//        handler.postMessage(errorMessages.get(error).getBytes());
-//        afterSendingError(handler);
-        doNotify(handler, errorMessages.get(error).getBytes());
+        doNotify(handler, errorMessages.get(error));
     }
 
     /**
      * Performs the error posting action.
      *
      * @param handler The handler that reached an error situation.
+     * @param message The frame of the mesage to be posted to the given handler.
+     */
+    protected void doNotify(XMPPHandler handler, FrameTemplate message) {
+        postInitialTagIfFirst(handler);
+        handler.postFrame(message);
+        afterSendingError(handler);
+    }
+
+    /**
+     * Performs the error posting action (used for messages not known in advance).
+     *
+     * @param handler The handler that reached an error situation.
      * @param message The mesage to be posted to the given handler.
      */
     protected void doNotify(XMPPHandler handler, byte[] message) {
-        if (handler.firstMessage()) {
-            handler.postMessage((INITIAL_TAG_UNCLOSED + " id='" + IdGenerator.generateId() + "'>").getBytes());
-        }
+        postInitialTagIfFirst(handler);
         handler.postMessage(message);
         afterSendingError(handler);
     }
 
+    /**
+     * Posts a stream header to the given handler if nothing was sent to it yet (errors must be sent inside a stream).
+     *
+     * @param handler The handler that reached an error situation.
+     */
+    private void postInitialTagIfFirst(XMPPHandler handler) {
+        if (handler.firstMessage()) {
+            handler.postFrame(INITIAL_TAG);
+        }
+    }
+
 }
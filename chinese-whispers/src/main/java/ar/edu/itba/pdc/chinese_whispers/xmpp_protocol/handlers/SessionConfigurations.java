@@ -0,0 +1,121 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
+
+import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+import ar.edu.itba.pdc.chinese_whispers.application.ConfigurationsSnapshot;
+import ar.edu.itba.pdc.chinese_whispers.application.OriginGroup;
+
+/**
+ * Caches the configurations decisions about a session's user (i.e. if it's silenced, and where it must be routed).
+ * Decisions are taken again only when the configurations version changes, so checking them on each read
+ * costs a single volatile read.
+ * <p>
+ * The origin server is chosen (from the user's route) the first time it's needed, and kept while the route
+ * does not change, so the session is not moved to another member of a group by unrelated configuration changes.
+ */
+/* package */ final class SessionConfigurations {
+
+    /**
+     * Object from which configurations snapshots are taken.
+     */
+    private final ConfigurationsConsumer configurationsConsumer;
+    /**
+     * The session's user JID.
+     */
+    private final String clientJid;
+    /**
+     * Version of the snapshot from which the cached decisions were taken.
+     */
+    private long version;
+    /**
+     * Says if the user is silenced.
+     */
+    private boolean silenced;
+    /**
+     * The route (a single server, or a named group) to which the user must be connected.
+     */
+    private OriginGroup route;
+    /**
+     * The member of the route chosen for this session ({@code null} till it's needed).
+     */
+    private HostAndPort origin;
+
+
+    /* package */ SessionConfigurations(ConfigurationsConsumer configurationsConsumer, String clientJid) {
+        if (configurationsConsumer == null || clientJid == null) {
+            throw new IllegalArgumentException();
+        }
+        this.configurationsConsumer = configurationsConsumer;
+        this.clientJid = clientJid;
+        this.version = -1; // Forces decisions to be taken on first use
+    }
+
+
+    /**
+     * Returns whether the user is silenced.
+     *
+     * @return {@code true} if the user is silenced, or {@code false} otherwise.
+     */
+    /* package */ boolean isSilenced() {
+        revalidate();
+        return silenced;
+    }
+
+    /**
+     * Returns the origin server to which the user must be connected, choosing it if not chosen yet.
+     *
+     * @return The origin server.
+     */
+    /* package */ HostAndPort getOrigin() {
+        revalidate();
+        if (origin == null) {
+            origin = route.choose(clientJid);
+        }
+        return origin;
+    }
+
+    /**
+     * Chooses again the origin server to which the user must be connected (e.g. because connecting to the chosen
+     * one failed). Members of the route that are not accepting connections are skipped.
+     *
+     * @return The new origin server (which can be the same as before).
+     */
+    /* package */ HostAndPort chooseOriginAgain() {
+        revalidate();
+        origin = route.choose(clientJid);
+        return origin;
+    }
+
+    /**
+     * Makes the session use the given origin server, if it belongs to the user's route
+     * (and it's the one that the route's strategy would choose for the user, if the strategy is deterministic).
+     *
+     * @param origin The origin server.
+     * @return {@code true} if the session will use the given origin server, or {@code false} otherwise.
+     */
+    /* package */ boolean useOrigin(HostAndPort origin) {
+        revalidate();
+        if (!route.accepts(clientJid, origin)) {
+            return false;
+        }
+        this.origin = origin;
+        return true;
+    }
+
+    /**
+     * Takes decisions again if configurations changed since they were taken.
+     */
+    private void revalidate() {
+        ConfigurationsSnapshot snapshot = configurationsConsumer.getSnapshot();
+        if (snapshot.getVersion() == version) {
+            return;
+        }
+        this.silenced = snapshot.isSilenced(clientJid);
+        OriginGroup route = snapshot.getRoute(clientJid);
+        if (route != this.route) {
+            this.route = route;
+            this.origin = null; // Chosen again when needed
+        }
+        this.version = snapshot.getVersion();
+    }
+}
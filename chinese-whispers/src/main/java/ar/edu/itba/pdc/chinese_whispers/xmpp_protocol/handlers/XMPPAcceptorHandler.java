@@ -3,6 +3,8 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPAcceptorHandler;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelectorGroup;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 
 import java.io.IOException;
@@ -14,6 +16,8 @@ import java.nio.channels.SocketChannel;
  * This class makes the proxy accept new connections from XMPP clients.
  * When a new connection arrives, it will create a new {@link XMPPServerHandler}, and attach it to the
  * {@link SelectionKey} created when registering the accepted {@link SocketChannel}.
+ * If worker selectors were started, the accepted channel is handed off to one of them
+ * (see {@link TCPSelectorGroup#nextSelector()}), which will then handle all the connections of that session.
  * <p>
  * Created by jbellini on 29/10/16.
  */
@@ -57,14 +61,16 @@ public class XMPPAcceptorHandler extends BaseHandler implements TCPAcceptorHandl
             }
             channel.configureBlocking(false);
 
+            TCPSelector selector = TCPSelectorGroup.getInstance().nextSelector();
+            if (selector != TCPSelector.getCurrent()) {
+                // Another selector will register the channel (and create the handler) in its own thread.
+                selector.addAcceptedSocketChannel(channel, SelectionKey.OP_READ, this::createHandler);
+                return null;
+            }
+
             // The net key will be listening till the client connected to its channel sends a message
             SelectionKey newKey = channel.register(key.selector(), SelectionKey.OP_READ);
-            // The new handler will act as an XMPP server till negotiation with client finishes.
-            XMPPServerHandler handler = new XMPPServerHandler(applicationProcessor,
-                    configurationsConsumer,
-                    metricsProvider,
-                    newKey);
-            newKey.attach(handler);
+            newKey.attach(createHandler(newKey));
 
             return newKey;
             // TODO: Add this new key into some set in some future class to have tracking of connections
@@ -73,4 +79,15 @@ public class XMPPAcceptorHandler extends BaseHandler implements TCPAcceptorHandl
         }
         return null;
     }
+
+    /**
+     * Creates the handler for a new accepted connection.
+     * The new handler will act as an XMPP server till negotiation with client finishes.
+     *
+     * @param newKey The {@link SelectionKey} of the accepted connection.
+     * @return The new handler.
+     */
+    private XMPPServerHandler createHandler(SelectionKey newKey) {
+        return new XMPPServerHandler(applicationProcessor, configurationsConsumer, metricsProvider, newKey);
+    }
 }
@@ -2,6 +2,8 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+import ar.edu.itba.pdc.chinese_whispers.connection.OriginHealthMonitor;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPClientHandler;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ClientNegotiationProcessor;
@@ -33,6 +35,13 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
      */
     private boolean connected;
 
+    /**
+     * Says if this handler's connection is speculative (i.e. it was started while the client was still
+     * authenticating, and the client's JID and authentication are not known yet).
+     * While speculative, failures are not notified to the peer handler, which will connect again if needed.
+     */
+    private boolean speculative;
+
 
 
     /**
@@ -44,10 +53,13 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
      * @param metricsProvider             An object that manages the system metrics.
      * @param xmppServerHandler           The {@link XMPPServerHandler} that is creating this
      *                                    new {@link XMPPClientHandler}
-     * @param clientJid                   The User's JID (The user that connected to the proxy).
+     * @param clientJid                   The User's JID (The user that connected to the proxy),
+     *                                    or {@code null} if the connection is speculative.
      * @param negotiatorInitialParameters The negotiation initial parameters that were read by the
      *                                    {@link XMPPServerHandler} that is creating this new {@link XMPPClientHandler}
-     * @param authentication              The authentication string (i.e. text between the auth tags).
+     * @param authentication              The authentication string (i.e. text between the auth tags),
+     *                                    or {@code null} if the connection is speculative
+     *                                    (see {@link #adopt(String, String)}).
      */
     /* package */ XMPPClientHandler(ApplicationProcessor applicationProcessor,
                                     MetricsProvider metricsProvider,
@@ -64,6 +76,7 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
         this.peerHandler = xmppServerHandler;
         this.clientJid = clientJid;
         connected = false;
+        speculative = authentication == null;
     }
 
     /**
@@ -76,6 +89,62 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
     }
 
 
+    /**
+     * Says if this handler's connection is speculative (i.e. the client is still authenticating).
+     *
+     * @return {@code true} if the connection is speculative, or {@code false} otherwise.
+     */
+    /* package */ boolean isSpeculative() {
+        return speculative;
+    }
+
+    /**
+     * Makes this speculative connection become the client's connection to the origin server,
+     * once the client's JID and authentication are known.
+     * Negotiation continues from the point reached till now (authentication is sent right away if the origin server
+     * already offered its mechanisms).
+     *
+     * @param clientJid      The User's JID.
+     * @param authentication The authentication string (i.e. text between the auth tags).
+     */
+    /* package */ void adopt(String clientJid, String authentication) {
+        if (clientJid == null || authentication == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!speculative) {
+            throw new IllegalStateException("Only speculative connections can be adopted.");
+        }
+        this.clientJid = clientJid;
+        this.speculative = false;
+        ((ClientNegotiationProcessor) getNegotiationProcessor()).setAuthentication(authentication);
+    }
+
+    /**
+     * Closes this speculative connection without notifying the peer handler.
+     * If the connection with the origin server was established, the stream is closed nicely.
+     */
+    /* package */ void abortSpeculation() {
+        if (!speculative) {
+            throw new IllegalStateException("Only speculative connections can be aborted.");
+        }
+        if (this.key == null) {
+            return; // Connection didn't start yet (the peer handler discards it when it starts)
+        }
+        if (connected && this.key.isValid()) {
+            notifyClose();
+        } else {
+            handleClose(this.key);
+        }
+    }
+
+    /**
+     * Tells the peer handler that this speculative connection can't be used, and closes it.
+     */
+    private void dropSpeculation() {
+        ((XMPPServerHandler) peerHandler).speculationFailed(this);
+        abortSpeculation();
+    }
+
     /**
      * Sets the given interest ops to this handler's key, if it is connected.
      * If its not connected, nothing is done.
@@ -104,11 +173,22 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
 
     @Override
     protected void afterNotifyingClose() {
+        if (speculative) {
+            ((XMPPServerHandler) peerHandler).speculationFailed(this);
+            return;
+        }
         peerHandler.notifyClose();
     }
 
     @Override
     protected void handleResponse(ParserResponse parserResponse) {
+        if (speculative && parserResponse != ParserResponse.EVERYTHING_NORMAL
+                && parserResponse != ParserResponse.EVENT_INCOMPLETE) {
+            // The client doesn't know about this connection, so it must not receive its errors
+            logger.debug("Speculative connection to origin server failed: {}", parserResponse);
+            dropSpeculation();
+            return;
+        }
         switch (parserResponse) {
             case XML_ERROR:
                 // super class method just calls the own notify error method (which does not notify the peer handler)
@@ -153,11 +233,26 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
         XMPPReadWriteHandler xmppReadWriteHandler = new XMPPReadWriteHandler(applicationProcessor, metricsProvider,
                 configurationsConsumer, clientJid, this.key);
         ((XMPPServerHandler) peerHandler).startProxying(xmppReadWriteHandler);
+        xmppReadWriteHandler.takeOutputBuffers(this); // Data not sent yet must not be lost
+        xmppReadWriteHandler.takeConnectionMetrics(this); // Traffic is counted per connection
+        xmppReadWriteHandler.takeOrigin(this);
         this.key.attach(xmppReadWriteHandler);
         enableReading();
     }
 
 
+    /**
+     * Makes this handler use an already connected socket (taken from an origin connections pool),
+     * starting the negotiation with the origin server right away.
+     *
+     * @param key The {@link SelectionKey} of the connected socket (it must not have anything attached).
+     */
+    /* package */ void usePooledConnection(SelectionKey key) {
+        setKey(key);
+        key.attach(this);
+        handleConnect(key);
+    }
+
     @Override
     public void handleConnect(SelectionKey key) {
         if (key != this.key) {
@@ -180,7 +275,13 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
                 }
             } catch (IOException e) {
                 logger.warn("Connection to {} failed: {}", remoteAddress == null ? "unknown address" : remoteAddress, e.getMessage());
-                ((XMPPServerHandler) peerHandler).connectClientHandler(); // Ask peer handler to retry connection
+                HostAndPort failedOrigin = getOrigin();
+                abandonConnection();
+                if (speculative) {
+                    dropSpeculation(); // Peer handler will connect again once the client authenticates
+                    return;
+                }
+                ((XMPPServerHandler) peerHandler).retryConnection(failedOrigin); // Ask peer handler to retry connection
             }
         }
         if (this.connected) {
@@ -190,6 +291,9 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
                 logger.warn("Failed to retrieve remote address for channel {}: {}", channel, e.getMessage());
             }
             logger.info("Connection to {} established! Now listening for messages", remoteAddress);
+            if (getOrigin() != null) {
+                OriginHealthMonitor.getInstance().connectionSucceeded(getOrigin());
+            }
             this.key.interestOps(0); // Turn off all keys
             enableReading();
             startXMPPNegotiation();
@@ -197,8 +301,53 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
     }
 
 
+    /**
+     * Gives up the given connection if it was not established yet (i.e. the origin server did not answer in time),
+     * handling it as a refused connection.
+     *
+     * @param key The {@link SelectionKey} of the connection being checked.
+     */
+    /* package */ void checkConnectTimeout(SelectionKey key) {
+        if (connected || key != this.key || !key.isValid()) {
+            return; // Connected, closed, or replaced by a retry
+        }
+        HostAndPort failedOrigin = getOrigin();
+        logger.warn("Connection to origin server {} timed out", failedOrigin);
+        abandonConnection();
+        if (speculative) {
+            ((XMPPServerHandler) peerHandler).speculationFailed(this);
+            return;
+        }
+        ((XMPPServerHandler) peerHandler).retryConnection(failedOrigin); // Ask peer handler to retry connection
+    }
+
+    /**
+     * Reports that the connection to this handler's origin server couldn't be established, and closes it
+     * without notifying the peer handler (which might retry with a new connection).
+     */
+    private void abandonConnection() {
+        reportConnectionFailure();
+        super.handleClose(this.key);
+    }
+
+    /**
+     * Reports that the connection to this handler's origin server couldn't be established.
+     */
+    private void reportConnectionFailure() {
+        if (getOrigin() != null) {
+            OriginHealthMonitor.getInstance().connectionFailed(getOrigin());
+        }
+    }
+
     @Override
     public void handleTimeout(SelectionKey key) {
+        if (!connected) {
+            reportConnectionFailure();
+        }
+        if (speculative) {
+            dropSpeculation(); // The client did not authenticate in time, so it's not known if it will use it
+            return;
+        }
         // An XMPPClientHandler always have a peer handler
 
         // The peer handler is an XMPPServerHandler waiting for this handler to connect to an XMPP server
@@ -213,6 +362,10 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
     @Override
     public boolean handleClose(SelectionKey key) {
         boolean result = super.handleClose(key);
+        if (speculative) {
+            ((XMPPServerHandler) peerHandler).speculationFailed(this);
+            return result;
+        }
         peerHandler.notifyClose();
         return result;
     }
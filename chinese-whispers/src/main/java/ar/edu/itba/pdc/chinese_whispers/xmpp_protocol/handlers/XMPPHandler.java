@@ -2,20 +2,26 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+import ar.edu.itba.pdc.chinese_whispers.application.ConnectionMetrics;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import ar.edu.itba.pdc.chinese_whispers.connection.ByteBufferPool;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPReadWriteHandler;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
-import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.BufferedOutputConsumer;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.FrameTemplate;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.LinkedList;
-import java.util.Stack;
 
 /**
  * Base XMPP handler that defines methods for sending and writing messages.
@@ -24,7 +30,7 @@ import java.util.Stack;
  * <p>
  * Created by jbellini on 28/10/16.
  */
-/* package */ abstract class XMPPHandler extends BaseHandler implements TCPReadWriteHandler, OutputConsumer {
+/* package */ abstract class XMPPHandler extends BaseHandler implements TCPReadWriteHandler, BufferedOutputConsumer {
 
     // Constants
     /**
@@ -35,6 +41,10 @@ import java.util.Stack;
      * The maximum amount of {@link ByteBuffer}s in the buffers deque.
      */
     protected static final int MAX_AMOUNT_OF_BUFFERS_IN_THE_QUEUE = 10; // up to 100 byte buffers (8 KiB each)
+    /**
+     * The maximum amount of {@link ByteBuffer}s written with a single gathering write operation.
+     */
+    private static final int MAX_AMOUNT_OF_BUFFERS_PER_WRITE = 16;
 
 
     // Communication stuff
@@ -46,6 +56,14 @@ import java.util.Stack;
      * A Deque which holds messages to be sent in the future.
      */
     protected final Deque<ByteBuffer> outputBuffers;
+    /**
+     * The pool from which output buffers are taken (i.e. the one of the selector handling this handler's key).
+     */
+    private final ByteBufferPool bufferPool;
+    /**
+     * Array reused to pass the output buffers to the gathering write operation.
+     */
+    private final ByteBuffer[] writeBuffers;
     /**
      * Says if it is the first message being sent.
      * It is used to know, in case of error, if the "stream" tag must be sent or not.
@@ -68,6 +86,18 @@ import java.util.Stack;
      * Tells if the notify close operation was performed while on {@link HandlerState#ERROR} state.
      */
     private boolean closeRequestedWhileInErrorState;
+    /**
+     * When the data being processed was read ({@link System#nanoTime()}), or 0 if no read is being processed.
+     */
+    private long readTimestamp;
+    /**
+     * When the data that produced the oldest output not written yet was read, or 0 if there is no output to write.
+     */
+    private long pendingSince;
+    /**
+     * When writing the output not written yet started, or 0 if it didn't start yet.
+     */
+    private long writingSince;
 
 
     // XMPP Stuff
@@ -75,9 +105,22 @@ import java.util.Stack;
      * Client JID
      */
     protected String clientJid; // Will be initialized when XMPP client sends "Auth" tag.
+    /**
+     * Configurations decisions about the client (created once the client JID is known).
+     */
+    private SessionConfigurations sessionConfigurations;
+    /**
+     * The origin server to which this handler's connection belongs ({@code null} if it's not an origin server
+     * connection). While set, the connection is counted in the origin server's active connections.
+     */
+    private HostAndPort origin;
 
 
     // Other stuff
+    /**
+     * Traffic counters of this handler's connection (registered in the metrics provider once there is traffic).
+     */
+    private ConnectionMetrics connectionMetrics;
     /**
      * Tells which is this handler's state.
      */
@@ -100,13 +143,126 @@ import java.util.Stack;
         super(applicationProcessor, metricsProvider, configurationsConsumer);
         this.inputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
         this.outputBuffers = new LinkedList<>();
+        this.bufferPool = TCPSelector.getCurrent().getBufferPool();
+        this.writeBuffers = new ByteBuffer[MAX_AMOUNT_OF_BUFFERS_PER_WRITE];
         this.mustClose = false;
+        this.readTimestamp = 0;
+        this.pendingSince = 0;
+        this.writingSince = 0;
+        this.connectionMetrics = new ConnectionMetrics();
         firstMessage = true;
         this.handlerState = HandlerState.NORMAL;
         logger = LogHelper.getLogger(getClass());
     }
 
 
+    /**
+     * Returns the configurations decisions about this handler's client.
+     *
+     * @return The session configurations.
+     * @throws IllegalStateException If the client JID is not known yet.
+     */
+    /* package */ SessionConfigurations getSessionConfigurations() {
+        if (clientJid == null) {
+            throw new IllegalStateException("Client JID is not known yet.");
+        }
+        if (sessionConfigurations == null) {
+            sessionConfigurations = new SessionConfigurations(configurationsConsumer, clientJid);
+        }
+        return sessionConfigurations;
+    }
+
+    @Override
+    public String getUserIdentity() {
+        return clientJid;
+    }
+
+    /**
+     * Sets the origin server to which this handler's connection belongs, counting it in the origin server's
+     * active connections (the previous origin server, if any, stops counting it).
+     *
+     * @param origin The origin server.
+     */
+    /* package */ void setOrigin(HostAndPort origin) {
+        if (origin == null) {
+            throw new IllegalArgumentException();
+        }
+        releaseOrigin();
+        this.origin = origin;
+        metricsProvider.addOriginConnections(origin, 1);
+    }
+
+    /**
+     * Returns the origin server to which this handler's connection belongs.
+     *
+     * @return The origin server, or {@code null} if it's not an origin server connection.
+     */
+    /* package */ HostAndPort getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Makes this handler take the origin server of the given handler, which used to handle the same connection
+     * (so the connection is counted only once).
+     *
+     * @param handler The handler that used to handle this handler's connection.
+     */
+    /* package */ void takeOrigin(XMPPHandler handler) {
+        releaseOrigin();
+        this.origin = handler.origin;
+        handler.origin = null;
+    }
+
+    /**
+     * Stops counting this handler's connection in its origin server's active connections.
+     */
+    private void releaseOrigin() {
+        if (origin != null) {
+            metricsProvider.addOriginConnections(origin, -1);
+            origin = null;
+        }
+    }
+
+    /**
+     * Makes this handler take the traffic counters of the given handler, which used to handle the same connection
+     * (so the connection's traffic is counted as a whole). If the client JID is known, the traffic is attributed to it.
+     *
+     * @param handler The handler that used to handle this handler's connection.
+     */
+    /* package */ void takeConnectionMetrics(XMPPHandler handler) {
+        this.connectionMetrics = handler.connectionMetrics;
+        if (clientJid != null) {
+            connectionMetrics.setJid(clientJid);
+        }
+    }
+
+    /**
+     * Returns this handler's connection traffic counters, registering them in the metrics provider
+     * if this is the first time traffic is counted (unless the connection was already closed).
+     *
+     * @return The connection traffic counters.
+     */
+    private ConnectionMetrics countedConnectionMetrics() {
+        if (!connectionMetrics.isRegistered() && this.key.isValid()) {
+            Socket socket = ((SocketChannel) this.key.channel()).socket();
+            connectionMetrics.setAddress(socket.getInetAddress() == null ? "unknown"
+                    : socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+            metricsProvider.registerConnection(connectionMetrics);
+        }
+        return connectionMetrics;
+    }
+
+    /**
+     * Counts stanzas read from this handler's connection.
+     *
+     * @param stanzas The amount of stanzas.
+     */
+    /* package */ void countStanzas(int stanzas) {
+        if (stanzas > 0) {
+            countedConnectionMetrics().addStanzas(stanzas);
+        }
+    }
+
     /**
      * Sets the {@link SelectionKey} for this handler.
      * <p>
@@ -332,7 +488,21 @@ import java.util.Stack;
         if (message == null) {
             throw new IllegalArgumentException();
         }
-        if (message.length == 0 || this.key == null || !this.key.isValid()) {
+        postMessage(message, 0, message.length);
+    }
+
+    /**
+     * Saves the given part of the {@code message} in this handler to be sent when possible.
+     *
+     * @param message The array containing the message to be sent.
+     * @param offset  The position in the array where the message starts.
+     * @param length  The message's length.
+     */
+    /* package */ void postMessage(byte[] message, int offset, int length) {
+        if (message == null || offset < 0 || length < 0 || offset + length > message.length) {
+            throw new IllegalArgumentException();
+        }
+        if (length == 0 || this.key == null || !this.key.isValid()) {
             // Do nothing...
             return;
         }
@@ -340,14 +510,50 @@ import java.util.Stack;
         if (firstMessage) {
             firstMessage = false;
         }
-        int count = 0;
+        int count = offset;
+        int end = offset + length;
         ByteBuffer actualBuffer = outputBuffers.pollLast();
         if (actualBuffer != null) {
-            count += storeInByteBuffer(actualBuffer, message, count);
+            count += storeInByteBuffer(actualBuffer, message, count, end);
+        }
+        while (count < end) {
+            count += storeInByteBuffer(bufferPool.acquire(), message, count, end);
+        }
+        markOutputPending();
+        enableWriting();
+        checkReadingKeyAfterPosting();
+    }
+
+    /**
+     * Saves the frame of the given template (which must take no values) in this handler to be sent when possible.
+     * The frame is written straight into the output buffers (unless it is longer than a buffer).
+     *
+     * @param frame The template of the frame to be sent.
+     */
+    /* package */ void postFrame(FrameTemplate frame) {
+        if (frame == null) {
+            throw new IllegalArgumentException();
         }
-        while (count < message.length) {
-            count += storeInByteBuffer(ByteBuffersManager.getByteBuffer(), message, count);
+        int length = frame.getLength();
+        if (length > bufferPool.getBufferSize()) {
+            postMessage(frame.toByteArray());
+            return;
         }
+        if (length == 0 || this.key == null || !this.key.isValid()) {
+            // Do nothing...
+            return;
+        }
+
+        if (firstMessage) {
+            firstMessage = false;
+        }
+        ByteBuffer buffer = outputBuffers.peekLast();
+        if (buffer == null || buffer.remaining() < length) {
+            buffer = bufferPool.acquire();
+            outputBuffers.offerLast(buffer);
+        }
+        frame.writeTo(buffer);
+        markOutputPending();
         enableWriting();
         checkReadingKeyAfterPosting();
     }
@@ -358,12 +564,13 @@ import java.util.Stack;
      * @param actualBuffer The buffer where data will be stored.
      * @param message      The byte array containing the data.
      * @param offset       Offset for the given message.
-     * @return
+     * @param end          Position in the given message where data ends.
+     * @return The amount of stored bytes.
      */
-    private int storeInByteBuffer(ByteBuffer actualBuffer, byte[] message, int offset) {
+    private int storeInByteBuffer(ByteBuffer actualBuffer, byte[] message, int offset, int end) {
         int stored = actualBuffer.remaining();
-        if (stored + offset > message.length) {
-            stored = message.length - offset;
+        if (stored + offset > end) {
+            stored = end - offset;
         }
         actualBuffer.put(message, offset, stored);
         outputBuffers.offerLast(actualBuffer);
@@ -371,6 +578,53 @@ import java.util.Stack;
     }
 
 
+    /**
+     * Records when the data that produced the output being stored was read, if there was no output waiting to be
+     * written (i.e. latency is measured from the oldest output). Output produced by this handler's peer is timed
+     * from the peer's read, and any other output (e.g. errors), from now.
+     */
+    private void markOutputPending() {
+        if (pendingSince == 0) {
+            pendingSince = peerHandler != null && peerHandler.readTimestamp != 0
+                    ? peerHandler.readTimestamp : System.nanoTime();
+        }
+    }
+
+    /**
+     * Takes the data that the given handler didn't write yet, placing it before the data stored in this handler.
+     * It must be used when a handler replaces another one in the same key, in order not to lose any data.
+     *
+     * @param handler The handler being replaced.
+     */
+    /* package */ void takeOutputBuffers(XMPPHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException();
+        }
+        ByteBuffer buffer;
+        while ((buffer = handler.outputBuffers.pollLast()) != null) {
+            outputBuffers.offerFirst(buffer);
+        }
+        if (handler.pendingSince != 0 && (pendingSince == 0 || handler.pendingSince < pendingSince)) {
+            pendingSince = handler.pendingSince; // The taken data is older
+        }
+        if (!outputBuffers.isEmpty()) {
+            enableWriting();
+        }
+    }
+
+    /**
+     * Returns all the output buffers to the pool, discarding the data they contain.
+     */
+    private void releaseOutputBuffers() {
+        ByteBuffer buffer;
+        while ((buffer = outputBuffers.pollFirst()) != null) {
+            bufferPool.release(buffer);
+        }
+        pendingSince = 0;
+        writingSince = 0;
+    }
+
+
     @Override
     public void consumeMessage(byte[] message) {
         if (handlerState == HandlerState.NORMAL) {
@@ -378,6 +632,40 @@ import java.util.Stack;
         }
     }
 
+    @Override
+    public void consumeMessage(byte[] message, int offset, int length) {
+        if (handlerState == HandlerState.NORMAL) {
+            postMessage(message, offset, length);
+        }
+    }
+
+    @Override
+    public ByteBuffer getWritableBuffer(int minimumSpace) {
+        if (minimumSpace <= 0 || minimumSpace > bufferPool.getBufferSize()) {
+            throw new IllegalArgumentException();
+        }
+        if (handlerState != HandlerState.NORMAL || this.key == null || !this.key.isValid()) {
+            return null;
+        }
+        firstMessage = false;
+        ByteBuffer buffer = outputBuffers.peekLast();
+        if (buffer == null || buffer.remaining() < minimumSpace) {
+            buffer = bufferPool.acquire();
+            outputBuffers.offerLast(buffer);
+        }
+        markOutputPending();
+        return buffer;
+    }
+
+    @Override
+    public void commitOutput() {
+        if (outputBuffers.isEmpty()) {
+            return;
+        }
+        enableWriting();
+        checkReadingKeyAfterPosting();
+    }
+
 
     /**
      * Performs actions based on the given {@link ParserResponse}
@@ -437,11 +725,13 @@ import java.util.Stack;
             handleClose(this.key);
         }
         if (readBytes > 0) {
+            readTimestamp = System.nanoTime(); // Output produced by this data is timed from now
             if (logger.isTraceEnabled()) {
                 logger.trace("<-- {}", new String(inputBuffer.array(), 0, readBytes));
             }
+            countedConnectionMetrics().addReadBytes(readBytes);
             processReadMessage(inputBuffer.array(), inputBuffer.position());
-            metricsProvider.addReadBytes(readBytes);
+            readTimestamp = 0;
         } else if (readBytes == -1) {
             notifyClose();
         }
@@ -460,8 +750,7 @@ import java.util.Stack;
             throw new IllegalArgumentException();
         }
 
-        ByteBuffer outputBuffer = outputBuffers.pollFirst();
-        if (outputBuffer == null) {
+        if (outputBuffers.isEmpty()) {
             disableWriting(); // No data to be sent, so handler must disable its writing key.
             if (mustClose) {
                 // If reached this point, no data must be sent, but still the key is being selected as writable
@@ -471,35 +760,72 @@ import java.util.Stack;
             return; // No message to be sent
         }
 
-        outputBuffer.flip(); // Makes the buffer's limit be set to its position, and it position, to 0
-        int writtenBytes = 0;
+        if (writingSince == 0) {
+            writingSince = System.nanoTime();
+            if (pendingSince != 0) {
+                metricsProvider.addQueuedTime(writingSince - pendingSince);
+            }
+        }
+
+        // All queued buffers (up to a limit) are written at once (i.e. a gathering write)
+        int amountOfBuffers = 0;
+        for (ByteBuffer each : outputBuffers) {
+            if (amountOfBuffers == writeBuffers.length) {
+                break;
+            }
+            each.flip(); // Makes the buffer's limit be set to its position, and it position, to 0
+            writeBuffers[amountOfBuffers++] = each;
+        }
+        long writtenBytes;
         SocketChannel channel = (SocketChannel) this.key.channel();
         try {
-            writtenBytes = channel.write(outputBuffer);
+            writtenBytes = channel.write(writeBuffers, 0, amountOfBuffers);
         } catch (IOException e) {
-            handleClose(this.key);
+            Arrays.fill(writeBuffers, 0, amountOfBuffers, null);
+            handleClose(this.key); // Buffers are returned to the pool when closing
+            return;
         }
-        if (outputBuffer.hasRemaining()) {
-            outputBuffer.compact(); // Moves position to limit - position and limit to the capacity
-            outputBuffers.offerFirst(outputBuffer); // Returns the buffer to de deque
-        } else {
-            ByteBuffersManager.returnByteBuffer(outputBuffer); // Buffer has been completely used.
-            if (outputBuffers.isEmpty()) {
-                // No more data to be written
-                disableWriting();
-                if (mustClose) {
-                    // If this handler mustClose field is true, it means that it has been requested to close
-                    // Up to this point, all stored data was already sent, so it's ready to be closed.
-                    handleClose(this.key);
-                }
+        countedConnectionMetrics().addSentBytes(writtenBytes); // Before closing (which stops counting)
+        // Drained buffers are returned to the pool, and the rest are set back to writing mode
+        boolean draining = true;
+        for (int i = 0; i < amountOfBuffers; i++) {
+            ByteBuffer each = writeBuffers[i];
+            writeBuffers[i] = null;
+            if (each.position() > 0 && logger.isTraceEnabled()) {
+                // Buffers might be direct, so data is copied
+                byte[] written = new byte[each.position()];
+                ((ByteBuffer) each.duplicate().flip()).get(written);
+                logger.trace("--> {}", new String(written));
+            }
+            if (draining && !each.hasRemaining()) {
+                outputBuffers.pollFirst();
+                bufferPool.release(each); // Buffer has been completely used.
+                continue;
+            }
+            draining = false;
+            if (each.position() > 0) {
+                each.compact(); // Moves position to limit - position and limit to the capacity
+            } else {
+                each.position(each.limit()).limit(each.capacity()); // Nothing was written from this buffer
             }
         }
-        if (writtenBytes > 0 && logger.isTraceEnabled()) {
-            logger.trace("--> {}", new String(outputBuffer.array(), 0, writtenBytes));
+        if (outputBuffers.isEmpty()) {
+            // No more data to be written
+            long writtenAt = System.nanoTime();
+            metricsProvider.addWriteTime(writtenAt - writingSince);
+            if (pendingSince != 0) {
+                metricsProvider.addProxyLatency(writtenAt - pendingSince);
+            }
+            pendingSince = 0;
+            writingSince = 0;
+            disableWriting();
+            if (mustClose) {
+                // If this handler mustClose field is true, it means that it has been requested to close
+                // Up to this point, all stored data was already sent, so it's ready to be closed.
+                handleClose(this.key);
+            }
         }
 
-        metricsProvider.addSentBytes(writtenBytes);
-
         afterWrite();
     }
 
@@ -514,60 +840,16 @@ import java.util.Stack;
             this.key.channel().close();
         } catch (IOException e) {
             return false;
+        } finally {
+            releaseOutputBuffers(); // Data that wasn't sent till now won't be sent
+            releaseOrigin();
+            metricsProvider.unregisterConnection(connectionMetrics);
+            TCPSelector.getCurrent().deregister(this.key);
         }
         return true;
     }
 
 
-    /**
-     * This class is in charge of retrieving and storing instances of {@link ByteBuffer}.
-     */
-    private static class ByteBuffersManager {
-        /**
-         * A stack that contains non-used {@link ByteBuffer}s. It allows to re-use outputBuffers.
-         */
-        private static final Stack<ByteBuffer> buffersStack = new Stack<>();
-
-
-        /**
-         * Gets a {@link ByteBuffer} from the outputBuffers stack.
-         *
-         * @return An unused buffer.
-         */
-        private static ByteBuffer getByteBuffer() {
-
-            if (buffersStack.isEmpty()) {
-                return ByteBuffer.allocate(BUFFER_SIZE);
-            }
-            ByteBuffer buffer = buffersStack.pop();
-            buffer.clear();
-            return buffer;
-        }
-
-        /**
-         * Stores the given {@link ByteBuffer} in the outputBuffers stack.
-         * It will clear the buffer, so it will lose all its information.
-         *
-         * @param buffer The buffer to be stored.
-         */
-        private static void returnByteBuffer(ByteBuffer buffer) {
-            if (buffer == null) {
-                throw new IllegalArgumentException();
-            }
-            buffersStack.push(buffer);
-        }
-
-        /**
-         * Returns the capacity of the outputBuffers given by this manager.
-         *
-         * @return The capacity of the outputBuffers given by this manager.
-         */
-        private static int buffersSize() {
-            return BUFFER_SIZE;
-        }
-    }
-
-
     protected enum HandlerState {
         NORMAL,
         ERROR,
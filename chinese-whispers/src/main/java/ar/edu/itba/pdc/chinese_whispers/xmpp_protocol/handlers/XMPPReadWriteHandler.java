@@ -3,6 +3,7 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.XMLInterpreter;
 
 import java.nio.channels.SelectionKey;
@@ -107,8 +108,16 @@ public class XMPPReadWriteHandler extends XMPPHandler {
             throw new IllegalStateException();
         }
         if (message != null && length > 0) {
-            xmlInterpreter.setSilenced(configurationsConsumer.isUserSilenced(clientJid));
-            handleResponse(xmlInterpreter.feed(message, length));
+            xmlInterpreter.setSilenced(getSessionConfigurations().isSilenced());
+            long feedStart = System.nanoTime();
+            ParserResponse parserResponse = xmlInterpreter.feed(message, length);
+            long transformTime = xmlInterpreter.takeTransformTime();
+            metricsProvider.addParseTime(System.nanoTime() - feedStart - transformTime);
+            if (transformTime > 0) {
+                metricsProvider.addTransformTime(transformTime);
+            }
+            countStanzas(xmlInterpreter.takeCompletedStanzas());
+            handleResponse(parserResponse);
         }
     }
 
@@ -3,11 +3,16 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations.HostAndPort;
+import ar.edu.itba.pdc.chinese_whispers.connection.OriginHealthMonitor;
+import ar.edu.itba.pdc.chinese_whispers.connection.RetryScheduler;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPConnectionCallback;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ServerNegotiationProcessor;
 
+import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.util.Base64;
 
@@ -19,6 +24,11 @@ import java.util.Base64;
  * Once the negotiation with the origin server ended, control is given to a new {@link XMPPReadWriteHandler},
  * which will be in charge of reading and writing to the connected client.
  * <p>
+ * When speculative connects are enabled, the connection with the default server starts as soon as the client opens
+ * its stream, so it's established (and the origin server's stream features received) while the client authenticates.
+ * Once the client authenticates, that connection is adopted if the user is routed to the default server,
+ * or aborted otherwise.
+ * <p>
  * Created by jbellini on 27/10/16.
  */
 public class XMPPServerHandler extends XMPPNegotiatorHandler {
@@ -28,11 +38,35 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
      */
     private static int MAX_PEER_CONNECTIONS_TRIES = 3;
 
+    /**
+     * Time (in milliseconds) after which a connection to an origin server that was not established is given up.
+     */
+    private static final long ORIGIN_CONNECT_TIMEOUT = 5000;
+
     /**
      * Holds how many peer connection tries have been done.
      */
     private int peerConnectionTries;
 
+    /**
+     * Says if a speculative connection was already tried (it's tried at most once).
+     */
+    private boolean speculationTried;
+
+    /**
+     * The handler of the speculative connection with the origin server, or {@code null} if there is none.
+     */
+    private XMPPClientHandler speculativeHandler;
+
+    /**
+     * The origin server (a member of the default route) to which the speculative connection was started.
+     */
+    private HostAndPort speculativeOrigin;
+
+    /**
+     * The scheduled retry of the connection with the origin server, or {@code null} if there is none.
+     */
+    private RetryScheduler.Retry pendingRetry;
 
 
 
@@ -53,6 +87,8 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
         super(applicationProcessor, metricsProvider, configurationsConsumer);
         setNegotiationProcessor(new ServerNegotiationProcessor(this));
         this.peerConnectionTries = 0;
+        this.speculationTried = false;
+        this.speculativeHandler = null;
         this.key = key;
     }
 
@@ -87,6 +123,8 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
         XMPPReadWriteHandler xmppReadWriteHandler = new XMPPReadWriteHandler(applicationProcessor, metricsProvider,
                 configurationsConsumer, clientJid, this.key, newPeerHandler);
         newPeerHandler.setPeerHandler(xmppReadWriteHandler);
+        xmppReadWriteHandler.takeOutputBuffers(this); // Data not sent yet must not be lost
+        xmppReadWriteHandler.takeConnectionMetrics(this); // Traffic is counted per connection
         this.key.attach(xmppReadWriteHandler);
 
         String response = "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>";
@@ -109,9 +147,61 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
             case MALFORMED_REQUEST:
                 notifyStreamError(XMPPErrors.MALFORMED_REQUEST);
                 break;
+            case EVERYTHING_NORMAL:
+            case EVENT_INCOMPLETE:
+                // The client is authenticating (if it also sent its authentication, negotiation has ended)
+                if (!speculationTried && peerHandler == null
+                        && ((ServerNegotiationProcessor) getNegotiationProcessor()).isStreamOpened()
+                        && configurationsConsumer.getSnapshot().isSpeculativeConnects()) {
+                    startSpeculativeConnection();
+                }
+                break;
         }
     }
 
+    /**
+     * Starts connecting with (a member of) the default route while the client is authenticating.
+     * The origin stream is opened as soon as the connection is established,
+     * and negotiation stops when authentication must be sent.
+     */
+    private void startSpeculativeConnection() {
+        speculationTried = true;
+        HostAndPort origin = configurationsConsumer.getSnapshot().getDefaultRoute().choose(null); // JID not known yet
+        if (!OriginHealthMonitor.getInstance().allowConnection(origin)) {
+            return; // The client will fail fast (or be rerouted) once it authenticates
+        }
+        speculativeOrigin = origin;
+        XMPPClientHandler handler = new XMPPClientHandler(applicationProcessor, metricsProvider,
+                configurationsConsumer, this, null, getNegotiationProcessor().getInitialParameters(), null);
+        speculativeHandler = handler;
+        logger.trace("Speculatively connecting to origin server {}...", speculativeOrigin);
+        connect(speculativeOrigin, handler);
+    }
+
+    /**
+     * Tells this handler that the given speculative connection can't be used
+     * (the client's connection will be started normally once it authenticates).
+     *
+     * @param handler The handler of the failed speculative connection.
+     */
+    /* package */ void speculationFailed(XMPPClientHandler handler) {
+        if (speculativeHandler == handler) {
+            speculativeHandler = null;
+        }
+    }
+
+    /**
+     * Aborts the speculative connection with the origin server, if there is one.
+     */
+    private void abortSpeculativeConnection() {
+        if (speculativeHandler == null) {
+            return;
+        }
+        XMPPClientHandler handler = speculativeHandler;
+        speculativeHandler = null;
+        handler.abortSpeculation();
+    }
+
     /**
      * Finishes the XMPP negotiation process.
      * When executing this method, first parameters are checked in order to make sure that needed params are contained.
@@ -158,6 +248,18 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
 
         // Create a client handler to connect to origin server
         clientJid = userName + "@" + getNegotiationProcessor().getInitialParameters().get("to");
+
+        if (speculativeHandler != null) {
+            if (getSessionConfigurations().useOrigin(speculativeOrigin)) {
+                // The connection to the user's origin server was already started, so it's used for this client
+                this.peerHandler = speculativeHandler;
+                speculativeHandler = null;
+                peerConnectionTries++;
+                ((XMPPClientHandler) this.peerHandler).adopt(clientJid, getNegotiationProcessor().getAuthentication());
+                return;
+            }
+            abortSpeculativeConnection(); // The user is routed elsewhere
+        }
         this.peerHandler = new XMPPClientHandler(applicationProcessor, metricsProvider, configurationsConsumer, this,
                 clientJid, getNegotiationProcessor().getInitialParameters(),
                 getNegotiationProcessor().getAuthentication());
@@ -178,29 +280,126 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
                 || this.clientJid == null) {
             throw new IllegalStateException();
         }
+        if (peerConnectionTries >= MAX_PEER_CONNECTIONS_TRIES) {
+            notifyStreamError(XMPPErrors.CONNECTION_REFUSED);
+            return;
+        }
+        SessionConfigurations sessionConfigurations = getSessionConfigurations();
+        HostAndPort origin = sessionConfigurations.getOrigin();
+        if (peerConnectionTries > 0) {
+            // Retries choose again, so they can be routed to another member of the user's group
+            HostAndPort previousOrigin = origin;
+            origin = sessionConfigurations.chooseOriginAgain();
+            if (!origin.equals(previousOrigin)) {
+                metricsProvider.addOriginReroutes(1);
+            }
+        }
+        OriginHealthMonitor healthMonitor = OriginHealthMonitor.getInstance();
+        if (!healthMonitor.allowConnection(origin)) {
+            HostAndPort failingOrigin = origin;
+            origin = sessionConfigurations.chooseOriginAgain(); // Members not accepting connections are skipped
+            if (origin.equals(failingOrigin) || !healthMonitor.allowConnection(origin)) {
+                logger.debug("Origin server {} is not accepting connections", failingOrigin);
+                metricsProvider.addOriginFastFailures(1);
+                notifyStreamError(XMPPErrors.CONNECTION_REFUSED); // Fail fast instead of waiting for timeouts
+                return;
+            }
+            metricsProvider.addOriginReroutes(1);
+        }
+        logger.trace("Trying to connect to origin server {}...", origin);
+        peerConnectionTries++;
+        connect(origin, (XMPPClientHandler) this.peerHandler);
+    }
 
-        // TODO: add some timestamp...
-
-        // TODO: Should we avoid trying to connect again for some seconds? We can mark the clientHandler with a timestamp and retry after some time has passed.
-        // TODO: We can save the key in a Map and update those timestamps before the select.
+    /**
+     * Schedules a retry of the connection with the origin server, after the peer handler's connection failed.
+     * Retries are delayed with exponential backoff and jitter, so failing origin servers are not hammered.
+     * An error is sent to the client if there are no tries left, or if the origin server has too many
+     * pending retries.
+     *
+     * @param failedOrigin The origin server whose connection failed.
+     */
+    /* package */ void retryConnection(HostAndPort failedOrigin) {
         if (peerConnectionTries >= MAX_PEER_CONNECTIONS_TRIES) {
             notifyStreamError(XMPPErrors.CONNECTION_REFUSED);
             return;
         }
-        logger.trace("Trying to connect to origin server {}...", configurationsConsumer.getServer(clientJid) + ":" + configurationsConsumer.getServerPort(clientJid));
-        SelectionKey peerKey = TCPSelector.getInstance().
-                addClientSocketChannel(configurationsConsumer.getServer(clientJid),
-                        configurationsConsumer.getServerPort(clientJid),
-                        (XMPPClientHandler) this.peerHandler);
-        if (peerKey == null) {
-            // Start of connection failed ...
+        RetryScheduler retryScheduler = TCPSelector.getCurrent().getRetryScheduler();
+        pendingRetry = retryScheduler.schedule(failedOrigin, peerConnectionTries, () -> {
+            pendingRetry = null;
+            if (key != null && key.isValid() && peerHandler != null
+                    && peerHandler.getClass() == XMPPClientHandler.class) {
+                connectClientHandler();
+            }
+        });
+        if (pendingRetry == null) {
+            logger.debug("Too many pending retries to origin server {}", failedOrigin);
+            notifyStreamError(XMPPErrors.CONNECTION_REFUSED);
+        }
+    }
+
+    /**
+     * Starts connecting the given handler to the given origin server,
+     * using an already connected socket from the selector's origin connections pool if there is one.
+     * If the connection is not established within {@link #ORIGIN_CONNECT_TIMEOUT} milliseconds, it's given up.
+     * The connection is discarded if, once it starts, the handler is not this handler's peer
+     * (or speculative) handler anymore, or if this handler was closed.
+     *
+     * @param origin  The origin server.
+     * @param handler The handler that will handle the connection with the origin server.
+     */
+    private void connect(HostAndPort origin, XMPPClientHandler handler) {
+        // The origin server connection is handled by the same selector that is handling this handler's connection
+        // Name resolution is performed off the selector's thread, so the connection might start later
+        TCPSelector selector = TCPSelector.getCurrent();
+        SelectionKey pooledKey = selector.getOriginConnectionPool().take(origin.getHost(), origin.getPort());
+        if (pooledKey != null) {
+            handler.setOrigin(origin);
+            handler.usePooledConnection(pooledKey); // No need to wait for the TCP handshake
             return;
         }
-        peerHandler.setKey(peerKey);
-        peerConnectionTries++;
+        selector.addClientSocketChannel(origin.getHost(), origin.getPort(), handler, new TCPConnectionCallback() {
+            @Override
+            public void connectionStarted(SelectionKey peerKey) {
+                if (key == null || !key.isValid() || (handler != peerHandler && handler != speculativeHandler)) {
+                    // Client went away (or the speculation was aborted) while the name was being resolved
+                    try {
+                        peerKey.channel().close();
+                    } catch (IOException ignored) {
+                    }
+                    selector.deregister(peerKey);
+                    return;
+                }
+                handler.setKey(peerKey);
+                handler.setOrigin(origin);
+                selector.schedule(() -> handler.checkConnectTimeout(peerKey), ORIGIN_CONNECT_TIMEOUT);
+            }
+
+            @Override
+            public void connectionFailed() {
+                OriginHealthMonitor.getInstance().connectionFailed(origin);
+                if (handler.isSpeculative()) {
+                    speculationFailed(handler);
+                    return;
+                }
+                if (key != null && key.isValid() && handler == peerHandler) {
+                    retryConnection(origin); // An error is sent when there are no tries left
+                }
+            }
+        });
     }
 
 
+    @Override
+    public boolean handleClose(SelectionKey key) {
+        abortSpeculativeConnection(); // Client went away before authenticating
+        if (pendingRetry != null) {
+            pendingRetry.cancel(); // Client went away while waiting to retry
+            pendingRetry = null;
+        }
+        return super.handleClose(key);
+    }
+
     @Override
     public void handleTimeout(SelectionKey key) {
         if (peerHandler == null) {
@@ -24,5 +24,37 @@ public interface ApplicationProcessor {
      */
     void processMessageBody(StringBuilder stringBuilder, char[] message, boolean isInBodyTag);
 
+    /**
+     * Method to be executed when parsing content that is part of a body, taking the content from a region of an array
+     * (e.g. the parser's text buffer), so it does not need to be copied.
+     *
+     * @param stringBuilder The string builder to build the final message.
+     * @param message       The array containing the message to be parsed.
+     * @param offset        The position in the array where the message starts.
+     * @param length        The message length.
+     * @param isInBodyTag   Boolean telling if it is in a bodyTag.
+     */
+    void processMessageBody(StringBuilder stringBuilder, char[] message, int offset, int length, boolean isInBodyTag);
+
+    /**
+     * Method to be executed when parsing content that is part of a body, appending the final message to the given
+     * {@link CharacterSink} instead of building it in a string builder.
+     *
+     * @param sink        The sink to which the final message is appended.
+     * @param message     The array containing the message to be parsed.
+     * @param offset      The position in the array where the message starts.
+     * @param length      The message length.
+     * @param isInBodyTag Boolean telling if it is in a bodyTag.
+     */
+    void processMessageBody(CharacterSink sink, char[] message, int offset, int length, boolean isInBodyTag);
+
+    /**
+     * Says if messages bodies are being changed by this processor.
+     * When they are not, data can be forwarded without being processed.
+     *
+     * @return {@code true} if messages bodies are being changed, or {@code false} otherwise.
+     */
+    boolean transformsMessageBodies();
+
 
 }
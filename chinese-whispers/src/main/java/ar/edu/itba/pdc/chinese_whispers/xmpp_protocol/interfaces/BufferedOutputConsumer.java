@@ -0,0 +1,28 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputConsumer} that allows writing output straight into its buffers,
+ * avoiding intermediate copies of the data.
+ */
+public interface BufferedOutputConsumer extends OutputConsumer {
+
+    /**
+     * Returns a buffer (in writing mode) in which output can be written, with at least {@code minimumSpace} bytes
+     * of free space. The buffer is already queued to be sent, so data written into it will be sent
+     * after calling {@link #commitOutput()}.
+     * <p>
+     * Note: The buffer must only be written before calling again this method, or any of the
+     * {@link OutputConsumer} methods.
+     *
+     * @param minimumSpace The minimum amount of free space the buffer must have.
+     * @return A buffer in which output can be written, or {@code null} if this consumer does not accept output.
+     */
+    ByteBuffer getWritableBuffer(int minimumSpace);
+
+    /**
+     * Notifies that output was written into the buffers returned by {@link #getWritableBuffer(int)}.
+     */
+    void commitOutput();
+}
@@ -0,0 +1,24 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces;
+
+/**
+ * A destination for processed characters (e.g. an encoder writing straight into output buffers),
+ * which avoids building intermediate strings.
+ */
+public interface CharacterSink {
+
+    /**
+     * Appends the given part of the {@code characters} array.
+     *
+     * @param characters The array containing the characters to be appended.
+     * @param offset     The position in the array of the first character to be appended.
+     * @param length     The amount of characters to be appended.
+     */
+    void append(char[] characters, int offset, int length);
+
+    /**
+     * Appends the given string.
+     *
+     * @param string The string to be appended.
+     */
+    void append(String string);
+}
@@ -16,4 +16,13 @@ public interface OutputConsumer {
      */
     void consumeMessage(byte[] message);
 
+    /**
+     * Consumes the given part of the {@code message}. The array can be reused by the caller once this method returns.
+     *
+     * @param message The array containing the message to be consumed.
+     * @param offset  The position in the array where the message starts.
+     * @param length  The message's length.
+     */
+    void consumeMessage(byte[] message, int offset, int length);
+
 }
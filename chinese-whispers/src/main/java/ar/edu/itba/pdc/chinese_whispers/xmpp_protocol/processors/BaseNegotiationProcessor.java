@@ -99,7 +99,6 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
         ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
         while (parser.hasNext()) {
             next();
-            updateStoredBytes(getParserStatus());
             if (getParserStatus() == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
                 break;
             } else if (getParserStatus() == -1) {
@@ -109,7 +108,7 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
             response = this.getStateMachine().negotiate();
 
             // Stop negotiation if an error occurred.
-            if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
+            if (StreamErrorsManager.getInstance().isError(response)) {
                 break;
             }
         }
@@ -120,8 +119,8 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
         return parser;
     }
 
-    private void consumeOutput(byte[] message) {
-        outputConsumer.consumeMessage(message);
+    private void consumeOutput(FrameTemplate frame, String... values) {
+        frame.writeTo(outputConsumer, values);
     }
 
     /**
@@ -197,8 +196,8 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
             return negotiationProcessor.getParser();
         }
 
-        private void consumeOutput(byte[] message) {
-            negotiationProcessor.consumeOutput(message);
+        private void consumeOutput(FrameTemplate frame, String... values) {
+            negotiationProcessor.consumeOutput(frame, values);
         }
 
 
@@ -251,8 +250,8 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
                 return stateMachine.getParser();
             }
 
-            protected void consumeOutput(byte[] message) {
-                stateMachine.consumeOutput(message);
+            protected void consumeOutput(FrameTemplate frame, String... values) {
+                stateMachine.consumeOutput(frame, values);
             }
 
 
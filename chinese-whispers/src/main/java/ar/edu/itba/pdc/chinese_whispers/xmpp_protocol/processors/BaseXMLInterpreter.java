@@ -1,6 +1,5 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 
-import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
 import com.fasterxml.aalto.AsyncByteArrayFeeder;
 import com.fasterxml.aalto.AsyncXMLStreamReader;
@@ -17,6 +16,10 @@ public abstract class BaseXMLInterpreter {
      * Says how many bytes this interpreter can hold at most.
      */
     public final static int MAX_AMOUNT_OF_BYTES =  10 * 1024; // We allow up to 10 KiB data inside the parser.
+    /**
+     * Says how deep the XML document can be.
+     */
+    public final static int MAX_DEPTH = 10000;
 
     /**
      * The XML parser.
@@ -30,6 +33,16 @@ public abstract class BaseXMLInterpreter {
      * Holds how many bytes the parser has in its internal buffer.
      */
     protected int amountOfStoredBytes;
+    /**
+     * Holds how many bytes were fed to the parser since it was created.
+     * The parser's byte offsets (see {@link AsyncXMLStreamReader#getLocationInfo()}) are relative to the first fed
+     * byte, so they can be compared with this value.
+     */
+    private long amountOfFedBytes;
+    /**
+     * Reused to feed data that does not start at the beginning of an array.
+     */
+    private byte[] shiftedInput;
 
     /**
      * Object that will consume output.
@@ -46,6 +59,7 @@ public abstract class BaseXMLInterpreter {
         this.parser = new InputFactoryImpl().createAsyncForByteArray();
         this.outputConsumer = outputConsumer;
         this.amountOfStoredBytes = 0;
+        this.amountOfFedBytes = 0;
     }
 
     
@@ -55,43 +69,52 @@ public abstract class BaseXMLInterpreter {
      * @param data   The data to process.
      * @param length The amount of data that will be processed.
      * @return The result of processing the given data.
-     * @throws XMLStreamException If this interpreter has unprocessed data. Be sure to call {@link #process()} between
-     *                            calls to this method, which ensures that all data is consumed.
      */
     public ParserResponse feed(byte[] data, int length) {
+        return feed(data, 0, length);
+    }
 
-        if (data == null || length < 0 || length > data.length) {
+    /**
+     * Adds bytes to be processed by the interpreter.
+     * All the given data is fed to the parser at once, and then processed till the parser needs more data.
+     *
+     * @param data   The data to process.
+     * @param offset The offset in the array from which data will be processed.
+     * @param length The amount of data that will be processed.
+     * @return The result of processing the given data.
+     */
+    public ParserResponse feed(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
             throw new IllegalArgumentException(); // return internal server error?
         }
+        if (length == 0) {
+            return ParserResponse.EVERYTHING_NORMAL;
+        }
 
-        ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
-        
-        try {
-            for (int offset = 0; offset < length; offset++) {
-                parser.getInputFeeder().feedInput(data, offset, 1);
-                response = process();
-
-                // TODO: check order of this lines...
-                if (amountOfStoredBytes >= MAX_AMOUNT_OF_BYTES || parser.getDepth() > 10000) {
-                    return ParserResponse.POLICY_VIOLATION;
-                }
-                if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
-                    break;
-                }
+        if (offset > 0) {
+            // The parser adds the array offset to the byte offsets it reports, so data is fed from an array start
+            if (shiftedInput == null || shiftedInput.length < length) {
+                shiftedInput = new byte[length];
             }
+            System.arraycopy(data, offset, shiftedInput, 0, length);
+            data = shiftedInput;
+            offset = 0;
+        }
+        ParserResponse response;
+        try {
+            // Will throw exception if there is still unprocessed data (i.e. process stopped because of an error)
+            parser.getInputFeeder().feedInput(data, offset, length);
+            amountOfFedBytes += length;
+            response = process();
         } catch (XMLStreamException e) {
-            response = ParserResponse.XML_ERROR;
+            return ParserResponse.XML_ERROR;
         }
-        return response;
-    }
-
-    
-    protected void updateStoredBytes(int status) {  //TODO transform also atributes.
-        if (status == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
-            amountOfStoredBytes++;
-        }else{
-            amountOfStoredBytes=-1;
+        // Once all data is processed, what is left in the parser is the incomplete token that starts at this offset
+        amountOfStoredBytes = (int) (amountOfFedBytes - parser.getLocationInfo().getStartingByteOffset());
+        if (amountOfStoredBytes >= MAX_AMOUNT_OF_BYTES || parser.getDepth() > MAX_DEPTH) {
+            return ParserResponse.POLICY_VIOLATION;
         }
+        return response;
     }
 
     protected abstract ParserResponse process() throws XMLStreamException;
@@ -11,15 +11,27 @@ import java.util.Map;
  */
 public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
 
-    private static final String PARTIAL_INITIAL_MESSAGE = "<?xml version='1.0' encoding='UTF-8'?>" +
+    /**
+     * The initial stream tag (filled with the parameters sent by the client connected to the proxy).
+     */
+    private static final FrameTemplate INITIAL_MESSAGE = FrameTemplate.compile("<?xml version='1.0' encoding='UTF-8'?>" +
             "<stream:stream " +
             "xmlns:stream=\'http://etherx.jabber.org/streams\' " +
             "xmlns=\'jabber:client\' " +
-            "xmlns:xml=\'http://www.w3.org/XML/1998/namespace\'";
+            "xmlns:xml=\'http://www.w3.org/XML/1998/namespace\'" +
+            "{parameters}>");
 
 
     private boolean initialMessageSent;
 
+    /**
+     * Constructor.
+     *
+     * @param outputConsumer    An object to which data must be sent when processing the negotiation.
+     * @param authentication    The authentication string (i.e. text between the auth tags), or {@code null} if it's
+     *                          not known yet (it must be set later with {@link #setAuthentication(String)}).
+     * @param initialParameters The parameters to be sent in the initial stream tag.
+     */
     public ClientNegotiationProcessor(OutputConsumer outputConsumer,
                                       String authentication,
                                       Map<String, String> initialParameters) {
@@ -35,9 +47,28 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
     }
 
 
+    /**
+     * Sets the authentication string, when it was not known at construction time.
+     * If the negotiation is waiting for it (i.e. the server already offered the plain mechanism),
+     * authentication is sent immediately.
+     *
+     * @param authentication The authentication string (i.e. text between the auth tags).
+     * @throws IllegalStateException If the authentication was already set.
+     */
+    public void setAuthentication(String authentication) {
+        if (authentication == null) {
+            throw new IllegalArgumentException();
+        }
+        if (getAuthentication() != null) {
+            throw new IllegalStateException("Authentication was already set.");
+        }
+        setBuiltAuthentication(authentication);
+        ((ClientNegotiationStateMachine) getStateMachine()).authenticationArrived();
+    }
+
+
     public void sendInitialMessage() {
         getStringBuilder().setLength(0); // Clears the string builder
-        getStringBuilder().append(PARTIAL_INITIAL_MESSAGE);
 
         // Adds to the initial message all parameters sent by the client connected to the proxy
         for (String attributeKey : getInitialParameters().keySet()) {
@@ -47,8 +78,7 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
             appendEscapedCharacters(getStringBuilder(),getInitialParameters().get(attributeKey));
             getStringBuilder().append("\'");
         }
-        getStringBuilder().append(">");
-        outputConsumer.consumeMessage(getStringBuilder().toString().getBytes()); // TODO: check if enough space
+        INITIAL_MESSAGE.writeTo(outputConsumer, getStringBuilder().toString());
         initialMessageSent = true;
         getStateMachine().negotiate();
     }
@@ -57,6 +87,18 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
 
     private static class ClientNegotiationStateMachine extends BaseNegotiationProcessor.NegotiationStateMachine {
 
+        /**
+         * The plain authentication (filled with the authentication string, which is already escaped).
+         */
+        private final static FrameTemplate AUTH_RESPONSE = FrameTemplate.compile("<auth " +
+                "xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>{authentication}</auth>");
+
+        /**
+         * The state waiting for the authentication string to be set (if the server offered the plain mechanism
+         * before the authentication was known), or {@code null} otherwise.
+         */
+        private AwaitingAuthenticationState awaitingAuthenticationState;
+
         /**
          * Constructor.
          */
@@ -74,6 +116,19 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
             return getNegotiationProcessor().getAuthentication();
         }
 
+
+        /**
+         * Sends the authentication if the negotiation was waiting for it.
+         */
+        private void authenticationArrived() {
+            if (awaitingAuthenticationState == null) {
+                return; // The server didn't offer its mechanisms yet, so the authentication will be sent later
+            }
+            AwaitingAuthenticationState state = awaitingAuthenticationState;
+            awaitingAuthenticationState = null;
+            state.sendAuthentication();
+        }
+
         private static abstract class BaseState extends BaseNegotiationProcessor.NegotiationStateMachine.State {
 
             private BaseState(ClientNegotiationStateMachine stateMachine) {
@@ -96,6 +151,14 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                 return ((ClientNegotiationStateMachine) getStateMachine()).initialMessageWasSent();
             }
 
+            /**
+             * Sends the plain authentication to the server, and starts waiting for its response.
+             */
+            protected void sendAuthentication() {
+                consumeOutput(AUTH_RESPONSE, getAuthentication());
+                getStateMachine().setState(new ChallengeState((ClientNegotiationStateMachine) getStateMachine()));
+            }
+
 
         }
 
@@ -117,9 +180,6 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
 
         private static class AuthState extends BaseState {
 
-            private final static String PARTIAL_AUTH_RESPONSE = "<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' " +
-                    "mechanism='PLAIN'>";
-
 
             private final StringBuilder authMechanisms;
 
@@ -187,13 +247,14 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                             break;
                         }
                         isMechanism = false;
-                        getStringBuilder().setLength(0);
-                        getStringBuilder().append(PARTIAL_AUTH_RESPONSE)
-                                .append(getAuthentication())
-                                .append("</auth>");
-                        consumeOutput(getStringBuilder().toString().getBytes());
-                        getStateMachine()
-                                .setState(new ChallengeState((ClientNegotiationStateMachine) getStateMachine()));
+                        if (getAuthentication() == null) {
+                            // Speculative connection: authentication will be sent once the client sends it
+                            ClientNegotiationStateMachine stateMachine = (ClientNegotiationStateMachine) getStateMachine();
+                            stateMachine.awaitingAuthenticationState = new AwaitingAuthenticationState(stateMachine);
+                            stateMachine.setState(stateMachine.awaitingAuthenticationState);
+                            break;
+                        }
+                        sendAuthentication();
                         break;
                     case AsyncXMLStreamReader.EVENT_INCOMPLETE:
                         return ParserResponse.EVENT_INCOMPLETE;
@@ -204,6 +265,37 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
             }
         }
 
+        /**
+         * State in which the server offered the plain mechanism, but the authentication is not known yet.
+         * It just ignores the rest of the stream features (stopping if the server says the host is unknown).
+         */
+        private static class AwaitingAuthenticationState extends BaseState {
+
+            private AwaitingAuthenticationState(ClientNegotiationStateMachine stateMachine) {
+                super(stateMachine);
+            }
+
+            @Override
+            ParserResponse action() {
+                switch (getProcessorStatus()) {
+                    case AsyncXMLStreamReader.START_ELEMENT:
+                        switch (getParser().getLocalName()) {
+                            case "host-gone":
+                            case "host-unknown":
+                                return ParserResponse.HOST_UNKNOWN;
+                        }
+                        return ParserResponse.EVERYTHING_NORMAL;
+                    case AsyncXMLStreamReader.END_ELEMENT:
+                    case AsyncXMLStreamReader.CHARACTERS:
+                        return ParserResponse.EVERYTHING_NORMAL;
+                    case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                        return ParserResponse.EVENT_INCOMPLETE;
+                    default:
+                        return ParserResponse.XML_ERROR;
+                }
+            }
+        }
+
         private static class ChallengeState extends BaseState {
 
 
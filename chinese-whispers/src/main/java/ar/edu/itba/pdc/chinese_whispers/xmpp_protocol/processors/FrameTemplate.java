@@ -0,0 +1,535 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.BufferedOutputConsumer;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable protocol frame (e.g. a stream header, an error or a closing tag), whose constant parts are encoded
+ * in UTF-8 only once, when the template is compiled. Frames are written straight into arrays or output buffers,
+ * filling the template's slots, which are written between braces:
+ * <ul>
+ * <li>{@code {id}}: A new stream id (see {@link IdGenerator}). It takes no value.</li>
+ * <li>{@code {@name}}: An attribute (i.e. a space followed by {@code name='value'}), whose value is escaped.
+ * Nothing is written if the value is {@code null}.</li>
+ * <li>{@code {name}}: Markup written as is (i.e. it must be escaped by the caller).
+ * Nothing is written if the value is {@code null}.</li>
+ * </ul>
+ * Values are given in the same order as the slots that take them appear in the template.
+ * <p>
+ * This class is thread safe.
+ */
+public final class FrameTemplate {
+
+    /**
+     * Maximum length of frames written straight into the buffers of a {@link BufferedOutputConsumer}
+     * (longer frames are encoded into a new array, as they might not fit in a single buffer).
+     */
+    private static final int MAX_DIRECT_WRITE_LENGTH = 1024;
+
+    /**
+     * Values of templates that take none.
+     */
+    private static final String[] NO_VALUES = {};
+
+    /**
+     * Maximum amount of bytes needed to encode a character (a surrogate pair takes 4 bytes for 2 characters).
+     */
+    private static final int MAX_BYTES_PER_CHARACTER = 3;
+
+    /**
+     * Maximum amount of bytes needed to encode an escaped character (i.e. {@code &apos;} or {@code &quot;}).
+     */
+    private static final int MAX_ESCAPED_BYTES_PER_CHARACTER = 6;
+
+    /**
+     * Maximum length of the arrays kept by threads to encode frames.
+     */
+    private static final int MAX_SCRATCH_ARRAY_LENGTH = 16 * 1024;
+
+    /**
+     * The length of each ASCII character once escaped (i.e. as written in attribute values).
+     */
+    private static final byte[] ESCAPED_LENGTHS = new byte[0x80];
+
+    static {
+        Arrays.fill(ESCAPED_LENGTHS, (byte) 1);
+        ESCAPED_LENGTHS['<'] = 4;
+        ESCAPED_LENGTHS['>'] = 4;
+        ESCAPED_LENGTHS['&'] = 5;
+        ESCAPED_LENGTHS['\''] = 6;
+        ESCAPED_LENGTHS['\"'] = 6;
+    }
+
+    /**
+     * Array of each thread in which frames are encoded before being copied (e.g. into direct buffers).
+     */
+    private static final ThreadLocal<byte[]> scratchArrays =
+            ThreadLocal.withInitial(() -> new byte[MAX_DIRECT_WRITE_LENGTH]);
+
+    /**
+     * The encoded constant parts of the template. The i-th segment goes before the i-th slot
+     * (the last one goes after all slots).
+     */
+    private final byte[][] segments;
+    /**
+     * The kind of each slot.
+     */
+    private final Slot[] slots;
+    /**
+     * The encoded beginning of each attribute slot (i.e. a space, the attribute name, an equal sign and a quote),
+     * or {@code null} for the other slots.
+     */
+    private final byte[][] attributePrefixes;
+    /**
+     * The amount of values this template takes.
+     */
+    private final int amountOfValues;
+    /**
+     * The length of the frame without values (i.e. constant parts and ids).
+     */
+    private final int length;
+
+
+    private FrameTemplate(byte[][] segments, Slot[] slots, byte[][] attributePrefixes) {
+        this.segments = segments;
+        this.slots = slots;
+        this.attributePrefixes = attributePrefixes;
+        int values = 0;
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        for (Slot slot : slots) {
+            if (slot == Slot.ID) {
+                length += IdGenerator.ID_LENGTH;
+            } else {
+                values++;
+            }
+        }
+        this.amountOfValues = values;
+        this.length = length;
+    }
+
+    /**
+     * Compiles the given template, encoding its constant parts.
+     *
+     * @param template The template (see {@link FrameTemplate} for the slots syntax).
+     * @return The compiled template.
+     * @throws IllegalArgumentException If the template is malformed (i.e. it has unclosed or empty slots).
+     */
+    public static FrameTemplate compile(String template) {
+        if (template == null) {
+            throw new IllegalArgumentException();
+        }
+        List<byte[]> segments = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        List<byte[]> attributePrefixes = new ArrayList<>();
+        int segmentStart = 0;
+        int slotStart;
+        while ((slotStart = template.indexOf('{', segmentStart)) >= 0) {
+            int slotEnd = template.indexOf('}', slotStart);
+            String name = slotEnd < 0 ? "" : template.substring(slotStart + 1, slotEnd);
+            if (name.isEmpty() || name.equals("@")) {
+                throw new IllegalArgumentException("Malformed slot in frame template: " + template);
+            }
+            segments.add(template.substring(segmentStart, slotStart).getBytes(StandardCharsets.UTF_8));
+            if (name.equals("id")) {
+                slots.add(Slot.ID);
+                attributePrefixes.add(null);
+            } else if (name.startsWith("@")) {
+                slots.add(Slot.ATTRIBUTE);
+                attributePrefixes.add((" " + name.substring(1) + "='").getBytes(StandardCharsets.UTF_8));
+            } else {
+                slots.add(Slot.MARKUP);
+                attributePrefixes.add(null);
+            }
+            segmentStart = slotEnd + 1;
+        }
+        segments.add(template.substring(segmentStart).getBytes(StandardCharsets.UTF_8));
+        return new FrameTemplate(segments.toArray(new byte[segments.size()][]), slots.toArray(new Slot[slots.size()]),
+                attributePrefixes.toArray(new byte[attributePrefixes.size()][]));
+    }
+
+
+    /**
+     * Returns the length of the frame without values (i.e. the exact length of frames of templates without
+     * attribute or markup slots).
+     *
+     * @return The length (in bytes).
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the length of the frame with the given values.
+     *
+     * @param values The values of the slots.
+     * @return The length (in bytes).
+     */
+    public int getLength(String... values) {
+        checkValues(values);
+        int length = this.length;
+        for (int slot = 0, value = 0; slot < slots.length; slot++) {
+            switch (slots[slot]) {
+                case ATTRIBUTE:
+                    if (values[value] != null) {
+                        length += attributePrefixes[slot].length + encodedLength(values[value], true) + 1;
+                    }
+                    value++;
+                    break;
+                case MARKUP:
+                    if (values[value] != null) {
+                        length += encodedLength(values[value], false);
+                    }
+                    value++;
+                    break;
+                default:
+                    // Ids are already counted
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the frame into the given buffer (for templates that take no values).
+     *
+     * @param buffer The buffer (in writing mode) in which the frame will be written.
+     * @throws IllegalArgumentException If the frame does not fit in the buffer, or if this template takes values.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, NO_VALUES);
+    }
+
+    /**
+     * Writes the frame with the given values into the given buffer.
+     *
+     * @param buffer The buffer (in writing mode) in which the frame will be written.
+     * @param values The values of the slots.
+     * @throws IllegalArgumentException If the frame does not fit in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer, String... values) {
+        if (buffer == null) {
+            throw new IllegalArgumentException();
+        }
+        int maxLength = getMaxLength(values);
+        if (buffer.hasArray() && buffer.remaining() >= maxLength) {
+            int end = write(buffer.array(), buffer.arrayOffset() + buffer.position(), values);
+            buffer.position(end - buffer.arrayOffset());
+            return;
+        }
+        // Otherwise, the frame is encoded first (direct buffers are filled with a single bulk copy,
+        // as writing them byte by byte is much slower)
+        byte[] scratch = getScratchArray(maxLength);
+        int length = write(scratch, 0, values);
+        if (buffer.remaining() < length) {
+            throw new IllegalArgumentException();
+        }
+        buffer.put(scratch, 0, length);
+    }
+
+    /**
+     * Writes the frame with the given values into the given array.
+     *
+     * @param destination The array in which the frame will be written.
+     * @param offset      The position from which the frame will be written.
+     * @param values      The values of the slots.
+     * @return The position after the frame.
+     * @throws IllegalArgumentException If the frame does not fit in the array.
+     */
+    public int writeTo(byte[] destination, int offset, String... values) {
+        if (destination == null || offset < 0 || offset > destination.length) {
+            throw new IllegalArgumentException();
+        }
+        int maxLength = getMaxLength(values);
+        if (destination.length - offset >= maxLength) {
+            return write(destination, offset, values);
+        }
+        byte[] scratch = getScratchArray(maxLength);
+        int length = write(scratch, 0, values);
+        if (destination.length - offset < length) {
+            throw new IllegalArgumentException();
+        }
+        return copy(scratch, length, destination, offset);
+    }
+
+    /**
+     * Encodes the frame into a new array (for templates that take no values).
+     *
+     * @return The encoded frame.
+     * @throws IllegalArgumentException If this template takes values.
+     */
+    public byte[] toByteArray() {
+        return toByteArray(NO_VALUES);
+    }
+
+    /**
+     * Encodes the frame with the given values into a new array.
+     *
+     * @param values The values of the slots.
+     * @return The encoded frame.
+     */
+    public byte[] toByteArray(String... values) {
+        byte[] scratch = getScratchArray(getMaxLength(values));
+        return Arrays.copyOf(scratch, write(scratch, 0, values));
+    }
+
+    /**
+     * Makes the given consumer consume the frame with the given values. If the consumer is a
+     * {@link BufferedOutputConsumer}, the frame is written straight into its buffers
+     * (unless it is too long to fit in a single buffer).
+     *
+     * @param consumer The consumer of the frame.
+     * @param values   The values of the slots.
+     */
+    public void writeTo(OutputConsumer consumer, String... values) {
+        if (consumer == null) {
+            throw new IllegalArgumentException();
+        }
+        byte[] scratch = getScratchArray(getMaxLength(values));
+        int length = write(scratch, 0, values);
+        if (!(consumer instanceof BufferedOutputConsumer) || length > MAX_DIRECT_WRITE_LENGTH) {
+            consumer.consumeMessage(scratch, 0, length);
+            return;
+        }
+        BufferedOutputConsumer bufferedConsumer = (BufferedOutputConsumer) consumer;
+        ByteBuffer buffer = bufferedConsumer.getWritableBuffer(length);
+        if (buffer == null) {
+            return; // The consumer does not accept output
+        }
+        buffer.put(scratch, 0, length);
+        bufferedConsumer.commitOutput();
+    }
+
+
+    /**
+     * Returns an upper bound of the length of the frame with the given values (computed without encoding them).
+     *
+     * @param values The values of the slots.
+     * @return The upper bound (in bytes).
+     */
+    private int getMaxLength(String[] values) {
+        checkValues(values);
+        int maxLength = this.length;
+        for (int slot = 0, value = 0; slot < slots.length; slot++) {
+            switch (slots[slot]) {
+                case ATTRIBUTE:
+                    if (values[value] != null) {
+                        maxLength += attributePrefixes[slot].length + MAX_ESCAPED_BYTES_PER_CHARACTER
+                                * values[value].length() + 1;
+                    }
+                    value++;
+                    break;
+                case MARKUP:
+                    if (values[value] != null) {
+                        maxLength += MAX_BYTES_PER_CHARACTER * values[value].length();
+                    }
+                    value++;
+                    break;
+                default:
+                    // Ids are already counted
+            }
+        }
+        return maxLength;
+    }
+
+    /**
+     * Returns an array (owned by the calling thread) in which a frame of the given length can be encoded.
+     * Arrays for unusually long frames are not kept.
+     *
+     * @param length The length of the frame.
+     * @return The array.
+     */
+    private static byte[] getScratchArray(int length) {
+        byte[] scratch = scratchArrays.get();
+        if (scratch.length >= length) {
+            return scratch;
+        }
+        if (length > MAX_SCRATCH_ARRAY_LENGTH) {
+            return new byte[length];
+        }
+        scratch = new byte[Math.min(Math.max(length, scratch.length * 2), MAX_SCRATCH_ARRAY_LENGTH)];
+        scratchArrays.set(scratch);
+        return scratch;
+    }
+
+    /**
+     * Writes the frame with the given values into the given array (which must have enough space).
+     *
+     * @param destination The array in which the frame will be written.
+     * @param offset      The position from which the frame will be written.
+     * @param values      The values of the slots (already checked).
+     * @return The position after the frame.
+     */
+    private int write(byte[] destination, int offset, String[] values) {
+        for (int slot = 0, value = 0; slot < slots.length; slot++) {
+            offset = copy(segments[slot], destination, offset);
+            switch (slots[slot]) {
+                case ID:
+                    offset = IdGenerator.generateId(destination, offset);
+                    break;
+                case ATTRIBUTE:
+                    if (values[value] != null) {
+                        offset = copy(attributePrefixes[slot], destination, offset);
+                        offset = encode(values[value], true, destination, offset);
+                        destination[offset++] = '\'';
+                    }
+                    value++;
+                    break;
+                case MARKUP:
+                    if (values[value] != null) {
+                        offset = encode(values[value], false, destination, offset);
+                    }
+                    value++;
+                    break;
+            }
+        }
+        return copy(segments[slots.length], destination, offset);
+    }
+
+    /**
+     * Copies the given encoded segment into the given array.
+     *
+     * @return The position after the segment.
+     */
+    private static int copy(byte[] segment, byte[] destination, int offset) {
+        return copy(segment, segment.length, destination, offset);
+    }
+
+    /**
+     * Copies the first {@code length} bytes of the given array into the given array.
+     *
+     * @return The position after the copied bytes.
+     */
+    private static int copy(byte[] source, int length, byte[] destination, int offset) {
+        System.arraycopy(source, 0, destination, offset, length);
+        return offset + length;
+    }
+
+    /**
+     * Checks that the given values can fill this template's slots.
+     *
+     * @param values The values of the slots.
+     */
+    private void checkValues(String[] values) {
+        if (values == null || values.length != amountOfValues) {
+            throw new IllegalArgumentException("Frame template takes " + amountOfValues + " values.");
+        }
+    }
+
+    /**
+     * Returns the length of the given string once encoded (and escaped if requested).
+     *
+     * @param value  The string.
+     * @param escape Says if characters not allowed in attribute values must be escaped.
+     * @return The length (in bytes).
+     */
+    private static int encodedLength(String value, boolean escape) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += escape ? ESCAPED_LENGTHS[c] : 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // Malformed surrogate pair (replaced by '?')
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the given string (escaping it if requested) into the given array.
+     *
+     * @param value       The string.
+     * @param escape      Says if characters not allowed in attribute values must be escaped.
+     * @param destination The array in which the string will be written.
+     * @param offset      The position from which the string will be written.
+     * @return The position after the encoded string.
+     */
+    private static int encode(String value, boolean escape, byte[] destination, int offset) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (escape && ESCAPED_LENGTHS[c] > 1) {
+                    offset = writeEscaped(c, destination, offset);
+                } else {
+                    destination[offset++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                destination[offset++] = (byte) (0xC0 | (c >> 6));
+                destination[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                destination[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                destination[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                destination[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                destination[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                destination[offset++] = '?'; // Malformed surrogate pair (same replacement as String#getBytes)
+            } else {
+                destination[offset++] = (byte) (0xE0 | (c >> 12));
+                destination[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                destination[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Writes the escaped form of the given ASCII character.
+     *
+     * @param c           The character.
+     * @param destination The array in which the character will be written.
+     * @param offset      The position from which the character will be written.
+     * @return The position after the escaped character.
+     */
+    private static int writeEscaped(char c, byte[] destination, int offset) {
+        String escaped;
+        switch (c) {
+            case '<':
+                escaped = "&lt;";
+                break;
+            case '>':
+                escaped = "&gt;";
+                break;
+            case '&':
+                escaped = "&amp;";
+                break;
+            case '\'':
+                escaped = "&apos;";
+                break;
+            default:
+                escaped = "&quot;";
+        }
+        for (int i = 0; i < escaped.length(); i++) {
+            destination[offset++] = (byte) escaped.charAt(i);
+        }
+        return offset;
+    }
+
+
+    /**
+     * The kinds of slots.
+     */
+    private enum Slot {
+        ID,
+        ATTRIBUTE,
+        MARKUP
+    }
+}
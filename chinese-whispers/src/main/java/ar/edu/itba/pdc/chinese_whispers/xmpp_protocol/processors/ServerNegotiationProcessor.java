@@ -1,6 +1,5 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 
-import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
 import com.fasterxml.aalto.AsyncXMLStreamReader;
@@ -15,6 +14,11 @@ import java.util.*;
 public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
 
 
+    /**
+     * Says if the client's initial stream was received (and answered).
+     */
+    private boolean streamOpened;
+
 
     /**
      * Constructor.
@@ -23,6 +27,17 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
      */
     public ServerNegotiationProcessor(OutputConsumer outputConsumer) {
         super(outputConsumer, new ServerNegotiationStateMachine());
+        this.streamOpened = false;
+    }
+
+    /**
+     * Says if the client's initial stream was received, and answered with the stream features
+     * (i.e. the initial parameters are known, and the client is expected to authenticate).
+     *
+     * @return {@code true} if the stream was opened, or {@code false} otherwise.
+     */
+    public boolean isStreamOpened() {
+        return streamOpened;
     }
 
 
@@ -50,6 +65,10 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
             return getNegotiationProcessor().getInitialParameters();
         }
 
+        private void notifyStreamOpened() {
+            ((ServerNegotiationProcessor) getNegotiationProcessor()).streamOpened = true;
+        }
+
 
         private static abstract class BaseState extends BaseNegotiationProcessor.NegotiationStateMachine.State {
 
@@ -73,6 +92,10 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
             protected Map<String, String> getInitialParameters() {
                 return ((ServerNegotiationStateMachine) getStateMachine()).getInitialParameters();
             }
+
+            protected void notifyStreamOpened() {
+                ((ServerNegotiationStateMachine) getStateMachine()).notifyStreamOpened();
+            }
         }
 
         /**
@@ -120,14 +143,20 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
         private static class StreamState extends BaseState {
 
 
-            private static final String END_OF_STREAM_TAG = "xmlns:stream=\'http://etherx.jabber.org/streams\' " +
-                    "xmlns=\'jabber:client\' " +
-                    "xmlns:xml=\'http://www.w3.org/XML/1998/namespace\'>";
-            private static final String FEATURES = "<stream:features> " +
-                    "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'> " +
-                    "<mechanism>PLAIN</mechanism> " +
-                    "</mechanisms> " +
-                    "</stream:features>";
+            /**
+             * The response stream tag (filled with the echoed attributes and a new id), followed by the features.
+             */
+            private static final FrameTemplate STREAM_HEADER = FrameTemplate.compile(
+                    "<?xml version=\'1.0\' encoding=\'UTF-8\'?>" +
+                            "<stream:stream{attributes} id=\'{id}\' " +
+                            "xmlns:stream=\'http://etherx.jabber.org/streams\' " +
+                            "xmlns=\'jabber:client\' " +
+                            "xmlns:xml=\'http://www.w3.org/XML/1998/namespace\'>" +
+                            "<stream:features> " +
+                            "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'> " +
+                            "<mechanism>PLAIN</mechanism> " +
+                            "</mechanisms> " +
+                            "</stream:features>");
 
 
             /**
@@ -153,12 +182,9 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                             return ParserResponse.XML_ERROR;
                         }
 
-                        getStringBuilder().append("<?xml version=\'1.0\' encoding=\'UTF-8\'?>")
-                                .append("<stream:stream");
+                        // The echoed attributes (the rest of the stream tag is in the header template)
                         int attrCount = getParser().getAttributeCount();
                         if (attrCount > 0) {
-                            getStringBuilder().append(" ");
-
                             StringBuilder attributeFullName = new StringBuilder();
                             for (int i = 0; i < attrCount; i++) {
                                 attributeFullName.setLength(0); // Clears the string buffer
@@ -174,6 +200,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                                 }
                                 appendEscapedCharacters(attributeFullName,getParser().getAttributeLocalName(i));
 
+                                getStringBuilder().append(" ");
                                 switch (attributeFullName.toString()) {
                                     case "to":
                                         getStringBuilder().append("from");
@@ -186,8 +213,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                                 }
                                 getStringBuilder().append("=\'")
                                         .append(getParser().getAttributeValue(i))
-                                        .append("\'")
-                                        .append(i < attrCount - 1 ? " " : "");
+                                        .append("\'");
                                 if (!getInitialParameters().containsKey(attributeFullName.toString())) {
                                     getInitialParameters().put(attributeFullName.toString(), getParser().getAttributeValue(i));
                                 }
@@ -197,13 +223,8 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                         if (!getInitialParameters().containsKey("to")) {
                             return ParserResponse.HOST_UNKNOWN; // Do not continue if missing "to" param
                         }
-                        getStringBuilder().append(" id=\'")
-                                .append(IdGenerator.generateId())
-                                .append("\' ");                     // The id param.
-                        getStringBuilder().append(END_OF_STREAM_TAG);    // The rest of the stream tag
-                        getStringBuilder().append(FEATURES);             // Features
-
-                        consumeOutput(getStringBuilder().toString().getBytes());
+                        consumeOutput(STREAM_HEADER, getStringBuilder().toString());
+                        notifyStreamOpened();
                         getStateMachine().setState(new AuthState((ServerNegotiationStateMachine) getStateMachine()));
                         break;
                     case AsyncXMLStreamReader.EVENT_INCOMPLETE:
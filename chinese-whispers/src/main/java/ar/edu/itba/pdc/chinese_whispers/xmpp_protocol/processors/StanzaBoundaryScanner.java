@@ -0,0 +1,257 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+/**
+ * A lightweight byte-level scanner that tracks the elements depth of an XMPP stream, in order to find the boundaries
+ * between top-level stanzas (i.e. the elements that are direct children of the stream element).
+ * It does not check that data is well formed, as it's only used to forward data untouched.
+ * <p>
+ * Scanning starts inside the stream element (i.e. at depth 1, between stanzas).
+ * Anything at depth 1 that is not a stanza or whitespace (e.g. the stream closing tag, text, comments or processing
+ * instructions) makes the scanner stop, so it can be handled by the XML parser.
+ */
+/* package */ final class StanzaBoundaryScanner {
+
+    private static final byte[] COMMENT_END = "-->".getBytes();
+    private static final byte[] CDATA_END = "]]>".getBytes();
+    private static final byte[] PROCESSING_INSTRUCTION_END = "?>".getBytes();
+    private static final byte[] DECLARATION_END = ">".getBytes();
+
+    /**
+     * Holds the elements depth (the stream element is at depth 1).
+     */
+    private int depth;
+    /**
+     * The scanner's state.
+     */
+    private State state;
+    /**
+     * The sequence that finishes the markup being scanned (i.e. comments, CDATA sections, etc.).
+     */
+    private byte[] markupEnd;
+    /**
+     * Amount of bytes of the markup end sequence that were already matched.
+     */
+    private int markupEndMatched;
+    /**
+     * The quote that finishes the attribute value being scanned.
+     */
+    private byte quote;
+    /**
+     * Says if the last scan stopped because more data was needed to take a decision.
+     */
+    private boolean needsMoreData;
+    /**
+     * Amount of stanzas that finished since they were last taken.
+     */
+    private int completedStanzas;
+
+
+    /* package */ StanzaBoundaryScanner() {
+        reset();
+    }
+
+    /**
+     * Makes this scanner start again at depth 1, between stanzas.
+     */
+    /* package */ void reset() {
+        this.depth = 1;
+        this.state = State.TEXT;
+        this.markupEnd = null;
+        this.markupEndMatched = 0;
+        this.needsMoreData = false;
+    }
+
+    /**
+     * Returns the amount of stanzas that finished since the last time this method was called, resetting it.
+     *
+     * @return The amount of completed stanzas.
+     */
+    /* package */ int takeCompletedStanzas() {
+        int stanzas = completedStanzas;
+        completedStanzas = 0;
+        return stanzas;
+    }
+
+    /**
+     * Returns the actual elements depth.
+     *
+     * @return The depth.
+     */
+    /* package */ int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Says if the last scan stopped because more data is needed to decide whether the bytes starting at the returned
+     * position belong to a stanza (i.e. the data ended with a {@code '<'} at depth 1).
+     *
+     * @return {@code true} if the bytes from the position returned by the last scan must be scanned again together
+     * with the next data, or {@code false} otherwise.
+     */
+    /* package */ boolean needsMoreData() {
+        return needsMoreData;
+    }
+
+    /**
+     * Scans the given data till its end, or till a point in which it must be handled by the XML parser.
+     *
+     * @param data           The data to be scanned.
+     * @param offset         The position from which data will be scanned.
+     * @param end            The position till which data will be scanned (exclusive).
+     * @param stopAtBoundary Says if scanning must stop at the next boundary between stanzas.
+     * @return The position in which scanning stopped (all bytes before it can be forwarded untouched).
+     */
+    /* package */ int scan(byte[] data, int offset, int end, boolean stopAtBoundary) {
+        needsMoreData = false;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            switch (state) {
+                case TEXT:
+                    if (depth == 1) {
+                        if (stopAtBoundary) {
+                            return i;
+                        }
+                        if (b == '<') {
+                            if (i + 1 == end) {
+                                needsMoreData = true; // Can't know yet if a stanza starts
+                                return i;
+                            }
+                            byte next = data[i + 1];
+                            if (next == '/' || next == '!' || next == '?') {
+                                return i; // Not a stanza
+                            }
+                            state = State.START_TAG;
+                            i++;
+                        } else if (!isWhitespace(b)) {
+                            return i; // Text between stanzas
+                        }
+                    } else if (b == '<') {
+                        state = State.TAG_OPEN;
+                    }
+                    break;
+                case TAG_OPEN:
+                    if (b == '/') {
+                        state = State.END_TAG;
+                    } else if (b == '!') {
+                        state = State.DECLARATION;
+                    } else if (b == '?') {
+                        startMarkup(PROCESSING_INSTRUCTION_END);
+                    } else {
+                        state = State.START_TAG;
+                    }
+                    break;
+                case DECLARATION:
+                    // Comments start with "<!-", and CDATA sections with "<!["
+                    if (b == '-') {
+                        startMarkup(COMMENT_END);
+                    } else if (b == '[') {
+                        startMarkup(CDATA_END);
+                    } else {
+                        startMarkup(DECLARATION_END);
+                    }
+                    break;
+                case MARKUP:
+                    if (b == markupEnd[markupEndMatched]) {
+                        markupEndMatched++;
+                        if (markupEndMatched == markupEnd.length) {
+                            state = State.TEXT;
+                        }
+                    } else if (b == markupEnd[0]) {
+                        // Sequences like "--->" or "]]]>" must keep the already matched prefix
+                        markupEndMatched = markupEndMatched == 2 && markupEnd[1] == b ? 2 : 1;
+                    } else {
+                        markupEndMatched = 0;
+                    }
+                    break;
+                case START_TAG:
+                    if (b == '"' || b == '\'') {
+                        quote = b;
+                        state = State.ATTRIBUTE_VALUE;
+                    } else if (b == '/') {
+                        state = State.EMPTY_TAG_END;
+                    } else if (b == '>') {
+                        depth++;
+                        state = State.TEXT;
+                    }
+                    break;
+                case ATTRIBUTE_VALUE:
+                    if (b == quote) {
+                        state = State.START_TAG;
+                    }
+                    break;
+                case EMPTY_TAG_END:
+                    // An empty element does not change depth
+                    if (b == '>') {
+                        if (depth == 1) {
+                            completedStanzas++; // An empty stanza
+                        }
+                        state = State.TEXT;
+                    } else {
+                        state = State.START_TAG;
+                    }
+                    break;
+                case END_TAG:
+                    if (b == '>') {
+                        depth--;
+                        if (depth == 1) {
+                            completedStanzas++;
+                        }
+                        state = State.TEXT;
+                    }
+                    break;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Starts scanning a markup that finishes with the given sequence.
+     *
+     * @param end The sequence that finishes the markup.
+     */
+    private void startMarkup(byte[] end) {
+        markupEnd = end;
+        markupEndMatched = 0;
+        state = State.MARKUP;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+
+    private enum State {
+        /**
+         * Scanning character data.
+         */
+        TEXT,
+        /**
+         * A '<' was found inside a stanza.
+         */
+        TAG_OPEN,
+        /**
+         * Scanning a start tag.
+         */
+        START_TAG,
+        /**
+         * Scanning an attribute value.
+         */
+        ATTRIBUTE_VALUE,
+        /**
+         * A '/' was found inside a start tag.
+         */
+        EMPTY_TAG_END,
+        /**
+         * Scanning an end tag.
+         */
+        END_TAG,
+        /**
+         * A "<!" was found.
+         */
+        DECLARATION,
+        /**
+         * Scanning a comment, a CDATA section, a processing instruction or a declaration.
+         */
+        MARKUP,
+    }
+}
@@ -4,23 +4,89 @@ import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.XMPPReadWriteHandler;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
-import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.BufferedOutputConsumer;
 import com.fasterxml.aalto.AsyncXMLStreamReader;
 import org.slf4j.Logger;
 
 import javax.xml.stream.XMLStreamException;
+import java.util.Arrays;
 
 /**
  * Basic byte-level XML interpreter. Handles reading incomplete and invalid XML, as well as "l33ting" messages when
  * appropriate, and ignoring messages when silenced.
+ * <p>
+ * When messages don't need to be changed (i.e. the {@link ApplicationProcessor} is not transforming bodies, and the
+ * stream is not silenced), the interpreter switches to passthrough mode, in which received bytes are forwarded
+ * untouched, only tracking stanzas boundaries with a {@link StanzaBoundaryScanner}.
+ * Full interpretation is restored at the next top-level stanza once messages must be changed again.
+ * <p>
+ * While interpreting, only messages bodies are rewritten. The rest of the input is copied verbatim to the output.
  */
 public class XMLInterpreter extends BaseXMLInterpreter {
 
+    /**
+     * Initial size of the buffer holding the bytes fed to the parser that were not sent yet.
+     */
+    private final static int INITIAL_SPAN_BUFFER_SIZE = 4 * 1024;
+    /**
+     * Error sent back to the sender of a silenced message (filled with the message's to, from and id attributes).
+     */
+    private final static FrameTemplate SILENCED_MESSAGE_ERROR = FrameTemplate.compile("<message{@from}{@to}{@id}>" +
+            "<error type='wait'><policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></message>");
+
     private int status = 0;
     private boolean isSilenced;
     private boolean silenceRequested;
     private boolean isInBodyTag;
     private boolean isInMessageTag;
+    /**
+     * Depth of the elements processed by the parser (the stream element is at depth 1).
+     */
+    private int elementDepth;
+    /**
+     * Amount of stanzas processed by the parser since they were last taken.
+     */
+    private int completedStanzas;
+    /**
+     * Time (in nanoseconds) spent transforming messages bodies since it was last taken.
+     */
+    private long transformTime;
+    /**
+     * Says if data is being forwarded untouched.
+     */
+    private boolean passthrough;
+    /**
+     * Scanner that finds stanzas boundaries while in passthrough mode.
+     */
+    private final StanzaBoundaryScanner scanner;
+    /**
+     * Bytes that the scanner couldn't decide about, which must be scanned again with the next data (if any).
+     */
+    private byte[] pendingBytes;
+    /**
+     * Writes the serialized XML straight into the output consumer's buffers.
+     */
+    private final XMLOutputWriter writer;
+    /**
+     * Holds the bytes fed to the parser that were not sent (or dropped) yet, so unchanged spans can be copied.
+     */
+    private byte[] spanBuffer;
+    /**
+     * Amount of bytes in the span buffer.
+     */
+    private int spanBufferLength;
+    /**
+     * The parser's byte offset of the first byte in the span buffer.
+     */
+    private long spanBufferOffset;
+    /**
+     * The parser's byte offset of the first byte that was not sent (or dropped) yet.
+     */
+    private long spanStart;
+    /**
+     * The parser's byte offset in which the last processed event ends.
+     */
+    private long lastEventEnd;
 
 
     /**
@@ -41,33 +107,202 @@ public class XMLInterpreter extends BaseXMLInterpreter {
      * @param applicationProcessor Object that will perform data processing.
      * @param outputConsumer       The object that will consume output (i.e. parsed) data.
      */
-    public XMLInterpreter(ApplicationProcessor applicationProcessor, OutputConsumer outputConsumer,
+    public XMLInterpreter(ApplicationProcessor applicationProcessor, BufferedOutputConsumer outputConsumer,
                           XMPPReadWriteHandler ownerHandler) {
         super(outputConsumer);
+        this.writer = new XMLOutputWriter(outputConsumer);
         this.applicationProcessor = applicationProcessor;
         logger = LogHelper.getLogger(getClass());
         this.ownerHandler = ownerHandler;
+        this.elementDepth = 0;
+        this.completedStanzas = 0;
+        this.transformTime = 0;
+        this.passthrough = false;
+        this.scanner = new StanzaBoundaryScanner();
+        this.pendingBytes = null;
+        this.spanBuffer = new byte[INITIAL_SPAN_BUFFER_SIZE];
+        this.spanBufferLength = 0;
+        this.spanBufferOffset = 0;
+        this.spanStart = 0;
+        this.lastEventEnd = 0;
+    }
+
+
+    @Override
+    public ParserResponse feed(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        int end = offset + length;
+        if (pendingBytes != null) {
+            byte[] joined = new byte[pendingBytes.length + length];
+            System.arraycopy(pendingBytes, 0, joined, 0, pendingBytes.length);
+            System.arraycopy(data, offset, joined, pendingBytes.length, length);
+            data = joined;
+            offset = 0;
+            end = joined.length;
+            pendingBytes = null;
+        }
+        int position = offset;
+        if (passthrough) {
+            int stop = scanner.scan(data, position, end, mustInterpret());
+            if (stop > position) {
+                outputConsumer.consumeMessage(data, position, stop - position);
+            }
+            if (scanner.getDepth() > MAX_DEPTH) {
+                return ParserResponse.POLICY_VIOLATION;
+            }
+            if (scanner.needsMoreData()) {
+                pendingBytes = Arrays.copyOfRange(data, stop, end);
+                return ParserResponse.EVERYTHING_NORMAL;
+            }
+            if (stop == end) {
+                return ParserResponse.EVERYTHING_NORMAL;
+            }
+            // The parser is still between stanzas (as when passthrough started), so it can continue from here
+            passthrough = false;
+            position = stop;
+        }
+        appendToSpanBuffer(data, position, end);
+        ParserResponse response = super.feed(data, position, end - position);
+        compactSpanBuffer();
+        if (canStartPassthrough(data, position, end, response)) {
+            passthrough = true;
+            scanner.reset();
+        }
+        return response;
+    }
+
+    /**
+     * Returns the amount of stanzas that finished since the last time this method was called
+     * (both those processed by the parser and those forwarded untouched), resetting it.
+     *
+     * @return The amount of completed stanzas.
+     */
+    public int takeCompletedStanzas() {
+        int stanzas = completedStanzas + scanner.takeCompletedStanzas();
+        completedStanzas = 0;
+        return stanzas;
+    }
+
+    /**
+     * Returns the time spent transforming messages bodies (through the {@link ApplicationProcessor})
+     * since the last time this method was called, resetting it.
+     *
+     * @return The transformation time (in nanoseconds), or 0 if nothing was transformed.
+     */
+    public long takeTransformTime() {
+        long time = transformTime;
+        transformTime = 0;
+        return time;
+    }
+
+    /**
+     * Says if data must be interpreted by the parser (i.e. messages must be changed or silenced).
+     *
+     * @return {@code true} if data must be interpreted, or {@code false} otherwise.
+     */
+    private boolean mustInterpret() {
+        return silenceRequested || applicationProcessor.transformsMessageBodies();
+    }
+
+    /**
+     * Says if passthrough mode can start after the given data was processed by the parser.
+     * This is possible if no messages must be changed, and the parser is between stanzas,
+     * holding nothing but whitespace.
+     *
+     * @param data     The data that was processed.
+     * @param offset   The position from which data was processed.
+     * @param end      The position till which data was processed.
+     * @param response The result of processing the data.
+     * @return {@code true} if passthrough mode can start, or {@code false} otherwise.
+     */
+    private boolean canStartPassthrough(byte[] data, int offset, int end, ParserResponse response) {
+        if ((response != ParserResponse.EVERYTHING_NORMAL && response != ParserResponse.EVENT_INCOMPLETE)
+                || elementDepth != 1 || mustInterpret() || amountOfStoredBytes > end - offset) {
+            return false;
+        }
+        for (int i = end - amountOfStoredBytes; i < end; i++) {
+            if (data[i] != ' ' && data[i] != '\n' && data[i] != '\r' && data[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Appends the given data to the span buffer, as it's about to be fed to the parser.
+     *
+     * @param data   The array containing the data.
+     * @param offset The position from which data will be appended.
+     * @param end    The position till which data will be appended (exclusive).
+     */
+    private void appendToSpanBuffer(byte[] data, int offset, int end) {
+        int length = end - offset;
+        if (spanBuffer.length - spanBufferLength < length) {
+            spanBuffer = Arrays.copyOf(spanBuffer, Math.max(spanBuffer.length * 2, spanBufferLength + length));
+        }
+        System.arraycopy(data, offset, spanBuffer, spanBufferLength, length);
+        spanBufferLength += length;
+    }
+
+    /**
+     * Removes from the span buffer all bytes that were already sent or dropped.
+     */
+    private void compactSpanBuffer() {
+        int sent = (int) (spanStart - spanBufferOffset);
+        if (sent == 0) {
+            return;
+        }
+        System.arraycopy(spanBuffer, sent, spanBuffer, 0, spanBufferLength - sent);
+        spanBufferLength -= sent;
+        spanBufferOffset = spanStart;
+    }
+
+    /**
+     * Sends untouched all input bytes that were not sent yet, till the given parser's byte offset.
+     *
+     * @param end The parser's byte offset till which bytes are sent (exclusive).
+     */
+    private void writeSpan(long end) {
+        if (end > spanStart) {
+            writer.writeBytes(spanBuffer, (int) (spanStart - spanBufferOffset), (int) (end - spanStart));
+            spanStart = end;
+        }
     }
 
 
     /**
      * Processes all fed data. Transforms messages if leeted, ignores messages if silenced, and sets an error state on
-     * invalid XML. Sends all processed data to the Deque specified upon instantiation.
+     * invalid XML. Processed data is encoded straight into the buffers of the output consumer specified upon
+     * instantiation.
+     * <p>
+     * Unless the stream is silenced, only the text inside body elements is rewritten (and only when the
+     * {@link ApplicationProcessor} transforms bodies). Every other input span (i.e. the bytes between rewritten
+     * texts) is copied verbatim, using the parser's byte offsets. Silenced streams are serialized event by event,
+     * as messages must be dropped.
      *
-     * @return The number of bytes offered to the output Deque, or -1 if the interpreter is in error state.
+     * @return The result of processing the fed data.
      */
     @Override
     protected ParserResponse process() throws XMLStreamException {
         if (!parser.hasNext()) {
             return ParserResponse.EVERYTHING_NORMAL;
         }
-        StringBuilder readXML = new StringBuilder();
-        while (parser.hasNext()) {
-            status = parser.next();
-            updateStoredBytes(status);
-
-            switch (status) {
-                case AsyncXMLStreamReader.START_ELEMENT:
+        writer.begin();
+        try {
+            while (parser.hasNext()) {
+                status = next();
+                if (status == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+                    return ParserResponse.EVENT_INCOMPLETE;
+                }
+                if (status == -1) {
+                    logger.warn("XML interpreter {} entered error state (invalid XML)", this);
+                    return ParserResponse.XML_ERROR;
+                }
+                if (status == AsyncXMLStreamReader.START_ELEMENT) {
+                    elementDepth++;
                     //Update status when starting a non-nested element
                     if (parser.getDepth() <= 2) {
                         isSilenced = silenceRequested;
@@ -77,126 +312,155 @@ public class XMLInterpreter extends BaseXMLInterpreter {
                     } else if (parser.getLocalName().equals("message")) {
                         isInMessageTag = true;
                     }
+                }
 
-                    // Only process content if NOT message tag or NOT silenced
-                    if (!(isInMessageTag && isSilenced)) {
-                        readXML.append("<");
-                        //Name (and namespace prefix if necessary)
-                        if (!parser.getName().getPrefix().isEmpty()) {
-                            appendEscapedCharacters(readXML,parser.getPrefix());
-                            readXML.append(":");
-                        }
-                        readXML.append(parser.getLocalName());
-
-                        // Namespaces
-                        int namespaceCount = parser.getNamespaceCount();
-                        if (namespaceCount > 0) {
-                            readXML.append(" ");
-                            for (int i = 0; i < namespaceCount; i++) {
-                                readXML.append("xmlns");
-                                if (!parser.getNamespacePrefix(i).isEmpty()) {
-                                    readXML.append(":");
-                                    appendEscapedCharacters(readXML,parser.getNamespacePrefix(i));
-                                }
-                                readXML.append("=\'");
-                                appendEscapedCharacters(readXML,parser.getNamespaceURI(i));
-                                readXML.append("\'")
-                                        .append(i < namespaceCount - 1 ? " " : "");
-                            }
-                        }
+                long eventEnd = parser.getLocationInfo().getEndingByteOffset();
+                if (isSilenced) {
+                    writeSpan(lastEventEnd); // Bytes before this event might not have been sent yet
+                    serializeEvent();
+                    spanStart = eventEnd;
+                } else if (isInBodyTag && applicationProcessor.transformsMessageBodies()
+                        && (status == AsyncXMLStreamReader.CHARACTERS || status == AsyncXMLStreamReader.CDATA)) {
+                    writeSpan(lastEventEnd);
+                    //Append l337ed characters
+                    processMessageBody(true);
+                    spanStart = eventEnd;
+                }
+                // Otherwise, the event's bytes will be copied untouched together with the following ones
+                lastEventEnd = eventEnd;
 
-                        // Attributes (with namespace prefixes if necessary)
-                        int attrCount = parser.getAttributeCount();
-                        if (attrCount > 0) {
-                            readXML.append(" ");
-                            for (int i = 0; i < attrCount; i++) {
-                                if (!parser.getAttributePrefix(i).isEmpty()) {
-                                    appendEscapedCharacters(readXML,parser.getAttributePrefix(i));
-                                    readXML.append(":");
-                                }
-                                appendEscapedCharacters(readXML,parser.getAttributeLocalName(i));
-                                readXML.append("=\'");
-                                appendEscapedCharacters(readXML,parser.getAttributeValue(i));
-                                readXML.append("\'")
-                                        .append(i < attrCount - 1 ? " " : "");
-                            }
-                        }
-                        readXML.append(">");
-                    } else {
-                        if (parser.getLocalName().equals("message")) {
-                            //ownerHandler.notifyStanzaError(generateErrorMessage());
-                            ownerHandler.consumeMessage(generateErrorMessage().getBytes());
-                            MetricsManager.getInstance().addNumSilencedMessages(1); //TODO user producer
-                        }
-                    }
-                    break;
-                case AsyncXMLStreamReader.CHARACTERS:
-                    //Only process content if NOT message tag or NOT silenced
-                    if (!(isInMessageTag && isSilenced)) {
-                        //Append l337ed or normal characters as appropriate
-                        applicationProcessor.processMessageBody(readXML, parser.getText().toCharArray(), isInBodyTag);
-                    }
-                    break;
-                case AsyncXMLStreamReader.END_ELEMENT:
-                    //Only process content if NOT message tag or NOT silenced
-                    if (!(isInMessageTag && isSilenced)) {
-                        readXML.append("</");
-                        if (!parser.getName().getPrefix().isEmpty()) {
-                            readXML.append(parser.getPrefix()).append(":");
-                        }
-                        readXML.append(parser.getLocalName());
-                        readXML.append(">");
+                if (status == AsyncXMLStreamReader.END_ELEMENT) {
+                    elementDepth--;
+                    if (elementDepth == 1) {
+                        completedStanzas++;
                     }
-
                     //Update status
                     if (parser.getLocalName().equals("body")) {
                         isInBodyTag = false;
                     } else if (parser.getLocalName().equals("message")) {
                         isInMessageTag = false;
                     }
-                    break;
-                case AsyncXMLStreamReader.EVENT_INCOMPLETE:
-                    String processedXML = readXML.toString();
-                    byte[] bytes = processedXML.getBytes();
-                    outputConsumer.consumeMessage(bytes);
-                    return ParserResponse.EVENT_INCOMPLETE;
-                case -1:
-                    logger.warn("XML interpreter {} entered error state (invalid XML)", this);
-                    return ParserResponse.XML_ERROR;
+                }
             }
+        } finally {
+            writeSpan(lastEventEnd); // Output is sent even if an error occurs, as before
+            writer.end();
         }
-        byte[] bytes = readXML.toString().getBytes();
-        outputConsumer.consumeMessage(bytes);
         return ParserResponse.EVERYTHING_NORMAL;
     }
 
+    /**
+     * Serializes the actual event, unless it belongs to a silenced message.
+     * Messages are replaced by an error sent back to their sender.
+     */
+    private void serializeEvent() {
+        switch (status) {
+            case AsyncXMLStreamReader.START_ELEMENT:
+                // Only process content if NOT message tag or NOT silenced
+                if (!(isInMessageTag && isSilenced)) {
+                    writer.write('<');
+                    //Name (and namespace prefix if necessary)
+                    if (!parser.getName().getPrefix().isEmpty()) {
+                        writer.writeEscaped(parser.getPrefix()).write(':');
+                    }
+                    writer.write(parser.getLocalName());
 
-    private String generateErrorMessage() {
-        StringBuilder silencedErrorBuilder = new StringBuilder();
-        silencedErrorBuilder.append("<message");
+                    // Namespaces
+                    int namespaceCount = parser.getNamespaceCount();
+                    if (namespaceCount > 0) {
+                        writer.write(' ');
+                        for (int i = 0; i < namespaceCount; i++) {
+                            writer.write("xmlns");
+                            if (!parser.getNamespacePrefix(i).isEmpty()) {
+                                writer.write(':').writeEscaped(parser.getNamespacePrefix(i));
+                            }
+                            writer.write("=\'").writeEscaped(parser.getNamespaceURI(i)).write('\'');
+                            if (i < namespaceCount - 1) {
+                                writer.write(' ');
+                            }
+                        }
+                    }
+
+                    // Attributes (with namespace prefixes if necessary)
+                    int attrCount = parser.getAttributeCount();
+                    if (attrCount > 0) {
+                        writer.write(' ');
+                        for (int i = 0; i < attrCount; i++) {
+                            if (!parser.getAttributePrefix(i).isEmpty()) {
+                                writer.writeEscaped(parser.getAttributePrefix(i)).write(':');
+                            }
+                            writer.writeEscaped(parser.getAttributeLocalName(i))
+                                    .write("=\'").writeEscaped(parser.getAttributeValue(i)).write('\'');
+                            if (i < attrCount - 1) {
+                                writer.write(' ');
+                            }
+                        }
+                    }
+                    writer.write('>');
+                } else {
+                    if (parser.getLocalName().equals("message")) {
+                        sendSilencedMessageError();
+                        MetricsManager.getInstance().addNumSilencedMessages(1); //TODO user producer
+                    }
+                }
+                break;
+            case AsyncXMLStreamReader.CHARACTERS:
+                //Only process content if NOT message tag or NOT silenced
+                if (!(isInMessageTag && isSilenced)) {
+                    //Append l337ed or normal characters as appropriate
+                    processMessageBody(isInBodyTag);
+                }
+                break;
+            case AsyncXMLStreamReader.END_ELEMENT:
+                //Only process content if NOT message tag or NOT silenced
+                if (!(isInMessageTag && isSilenced)) {
+                    writer.write("</");
+                    if (!parser.getName().getPrefix().isEmpty()) {
+                        writer.write(parser.getPrefix()).write(':');
+                    }
+                    writer.write(parser.getLocalName()).write('>');
+                }
+                break;
+        }
+    }
+
+
+    /**
+     * Makes the {@link ApplicationProcessor} write the actual text event, timing it.
+     *
+     * @param isInBodyTag Whether the text belongs to a message body.
+     */
+    private void processMessageBody(boolean isInBodyTag) {
+        long start = System.nanoTime();
+        applicationProcessor.processMessageBody(writer, parser.getTextCharacters(),
+                parser.getTextStart(), parser.getTextLength(), isInBodyTag);
+        transformTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Sends the sender of the actual (silenced) message a policy violation error, addressed back to it.
+     */
+    private void sendSilencedMessageError() {
+        String to = null;
+        String from = null;
+        String id = null;
         int attrCount = parser.getAttributeCount();
         for (int i = 0; i < attrCount; i++) {
             if (parser.getAttributePrefix(i).isEmpty()) {
-                if (parser.getAttributeLocalName(i).equals("to")) {
-                    silencedErrorBuilder.append(" from='");
-                    appendEscapedCharacters(silencedErrorBuilder,parser.getAttributeValue(i));
-                           silencedErrorBuilder.append("'");
-                }
-                if (parser.getAttributeLocalName(i).equals("from")) {
-                    silencedErrorBuilder.append(" to='");
-                    appendEscapedCharacters(silencedErrorBuilder,parser.getAttributeValue(i));
-                    silencedErrorBuilder.append("'");
-                }
-                if (parser.getAttributeLocalName(i).equals("id")) {
-                    silencedErrorBuilder.append(" id='");
-                    appendEscapedCharacters(silencedErrorBuilder,parser.getAttributeValue(i));
-                    silencedErrorBuilder.append("'");
+                switch (parser.getAttributeLocalName(i)) {
+                    case "to":
+                        to = parser.getAttributeValue(i);
+                        break;
+                    case "from":
+                        from = parser.getAttributeValue(i);
+                        break;
+                    case "id":
+                        id = parser.getAttributeValue(i);
+                        break;
                 }
             }
         }
-        silencedErrorBuilder.append("><error type='wait'><policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></message>");
-
-        return silencedErrorBuilder.toString();
+        SILENCED_MESSAGE_ERROR.writeTo(ownerHandler, to, from, id); // Addresses are swapped by the template
     }
 
 
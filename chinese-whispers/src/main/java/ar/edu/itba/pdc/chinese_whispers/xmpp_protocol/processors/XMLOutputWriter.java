@@ -0,0 +1,241 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.BufferedOutputConsumer;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.CharacterSink;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes XML output encoded in UTF-8 straight into the buffers of a {@link BufferedOutputConsumer},
+ * without creating intermediate strings or arrays.
+ * <p>
+ * Output must be written between calls to {@link #begin()} and {@link #end()}.
+ * If the consumer does not accept output, everything written is discarded.
+ * <p>
+ * As a {@link CharacterSink}, appended characters are written without being escaped.
+ */
+/* package */ final class XMLOutputWriter implements CharacterSink {
+
+    /**
+     * Maximum amount of bytes needed to encode a character (a surrogate pair takes 4 bytes).
+     */
+    private static final int MAX_BYTES_PER_CHARACTER = 4;
+
+    /**
+     * The consumer whose buffers will be written.
+     */
+    private final BufferedOutputConsumer consumer;
+    /**
+     * The buffer being written.
+     */
+    private ByteBuffer buffer;
+    /**
+     * Says if output is being discarded because the consumer does not accept it.
+     */
+    private boolean discarding;
+    /**
+     * Says if something was written since the last call to {@link #begin()}.
+     */
+    private boolean written;
+
+
+    /* package */ XMLOutputWriter(BufferedOutputConsumer consumer) {
+        if (consumer == null) {
+            throw new IllegalArgumentException();
+        }
+        this.consumer = consumer;
+        this.buffer = null;
+        this.discarding = false;
+        this.written = false;
+    }
+
+    /**
+     * Starts writing output.
+     */
+    /* package */ void begin() {
+        this.buffer = null;
+        this.discarding = false;
+        this.written = false;
+    }
+
+    /**
+     * Finishes writing output, notifying the consumer if something was written.
+     */
+    /* package */ void end() {
+        if (written) {
+            consumer.commitOutput();
+        }
+        this.buffer = null;
+    }
+
+    /**
+     * Writes the given ASCII character.
+     *
+     * @param c The character to be written.
+     * @return This writer.
+     */
+    /* package */ XMLOutputWriter write(char c) {
+        if (ensureSpace(1)) {
+            buffer.put((byte) c);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the given characters, without escaping them.
+     *
+     * @param characters The characters to be written.
+     * @return This writer.
+     */
+    /* package */ XMLOutputWriter write(CharSequence characters) {
+        writeCharacters(null, characters, 0, characters.length(), false);
+        return this;
+    }
+
+    @Override
+    public void append(char[] characters, int offset, int length) {
+        writeCharacters(characters, null, offset, offset + length, false);
+    }
+
+    @Override
+    public void append(String string) {
+        writeCharacters(null, string, 0, string.length(), false);
+    }
+
+    /**
+     * Writes the given characters, escaping those that are not allowed in XML text or attribute values.
+     *
+     * @param characters The characters to be written.
+     * @return This writer.
+     */
+    /* package */ XMLOutputWriter writeEscaped(CharSequence characters) {
+        writeCharacters(null, characters, 0, characters.length(), true);
+        return this;
+    }
+
+    /**
+     * Writes the given characters, escaping those that are not allowed in XML text or attribute values.
+     *
+     * @param characters The array containing the characters to be written.
+     * @param offset     The position in the array of the first character to be written.
+     * @param length     The amount of characters to be written.
+     * @return This writer.
+     */
+    /* package */ XMLOutputWriter writeEscaped(char[] characters, int offset, int length) {
+        writeCharacters(characters, null, offset, offset + length, true);
+        return this;
+    }
+
+    /**
+     * Writes the given bytes untouched.
+     *
+     * @param data   The array containing the bytes to be written.
+     * @param offset The position in the array of the first byte to be written.
+     * @param length The amount of bytes to be written.
+     * @return This writer.
+     */
+    /* package */ XMLOutputWriter writeBytes(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (offset < end && ensureSpace(1)) {
+            int amount = Math.min(buffer.remaining(), end - offset);
+            buffer.put(data, offset, amount);
+            offset += amount;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given characters (taken from an array or from a char sequence) into the consumer's buffers.
+     *
+     * @param array    The array containing the characters (or {@code null} if they are taken from the sequence).
+     * @param sequence The sequence containing the characters (used if the array is {@code null}).
+     * @param start    The position of the first character to be written.
+     * @param end      The position after the last character to be written.
+     * @param escape   Says if characters not allowed in XML text or attribute values must be escaped.
+     */
+    private void writeCharacters(char[] array, CharSequence sequence, int start, int end, boolean escape) {
+        for (int i = start; i < end; i++) {
+            char c = array != null ? array[i] : sequence.charAt(i);
+            if (!ensureSpace(MAX_BYTES_PER_CHARACTER)) {
+                return;
+            }
+            if (c < 0x80) {
+                if (escape) {
+                    switch (c) {
+                        case '<':
+                            writeAscii("&lt;");
+                            continue;
+                        case '>':
+                            writeAscii("&gt;");
+                            continue;
+                        case '&':
+                            writeAscii("&amp;");
+                            continue;
+                        case '\'':
+                            writeAscii("&apos;");
+                            continue;
+                        case '\"':
+                            writeAscii("&quot;");
+                            continue;
+                    }
+                }
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                char next = i + 1 < end ? (array != null ? array[i + 1] : sequence.charAt(i + 1)) : 0;
+                if (!Character.isHighSurrogate(c) || !Character.isLowSurrogate(next)) {
+                    buffer.put((byte) '?'); // Malformed surrogate pair (same replacement as String#getBytes)
+                    continue;
+                }
+                int codePoint = Character.toCodePoint(c, next);
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                i++;
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Writes the given ASCII string (an escaped character).
+     *
+     * @param ascii The string to be written.
+     */
+    private void writeAscii(String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (!ensureSpace(1)) {
+                return;
+            }
+            buffer.put((byte) ascii.charAt(i));
+        }
+    }
+
+    /**
+     * Makes sure the actual buffer has at least the given amount of free space, asking the consumer for another one
+     * if needed.
+     *
+     * @param space The needed space.
+     * @return {@code true} if there is a buffer with enough space, or {@code false} if output is being discarded.
+     */
+    private boolean ensureSpace(int space) {
+        if (discarding) {
+            return false;
+        }
+        if (buffer == null || buffer.remaining() < space) {
+            buffer = consumer.getWritableBuffer(space);
+            if (buffer == null) {
+                discarding = true;
+                return false;
+            }
+        }
+        written = true;
+        return true;
+    }
+}